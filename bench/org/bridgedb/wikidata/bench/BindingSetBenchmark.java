@@ -0,0 +1,123 @@
+package org.bridgedb.wikidata.bench;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowHandler;
+import org.bridgedb.wikidata.utils.RowMapping;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning query result rows into Xrefs. The rows are taken round-robin
+ * from a fixed pool, so only the extraction itself scales with the size.
+ * The <code>writer</code> methods add the rows to a MappingWriter, by hand
+ * as the builders did and through a {@link RowMapping} spec, and hand the
+ * mappings to a sink that only consumes them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BindingSetBenchmark {
+
+	private static final int POOL = 10000;
+
+	@Param({"10000", "1000000", "10000000"})
+	public int rows;
+
+	private BindingSet[] pool;
+	private DataSource dsWikidata;
+	private DataSource dsEnsembl;
+	private RowMapping mapping;
+
+	@Setup
+	public void setup() {
+		SyntheticData.setupDatasources();
+		dsWikidata = SyntheticData.wikidata();
+		dsEnsembl = SyntheticData.ensembl();
+		pool = SyntheticData.geneRows(POOL);
+		Properties props = new Properties();
+		props.setProperty("mapping.main", "wikidata=Wd");
+		props.setProperty("mapping.links", "ensembl=En");
+		props.setProperty("mapping.attributes", "taxonLabel=Taxon");
+		mapping = RowMapping.fromProperties(props);
+	}
+
+	@Benchmark
+	public void getValue(Blackhole bh) {
+		for (int i = 0; i < rows; i++) {
+			BindingSet bs = pool[i % POOL];
+			bh.consume(new Xref(bs.getValue("wikidata").stringValue(), dsWikidata));
+			if (bs.getValue("ensembl") != null) {
+				bh.consume(new Xref(bs.getValue("ensembl").stringValue(), dsEnsembl));
+			}
+		}
+	}
+
+	@Benchmark
+	public void bindingNamesContains(Blackhole bh) {
+		for (int i = 0; i < rows; i++) {
+			BindingSet bs = pool[i % POOL];
+			bh.consume(new Xref(bs.getBinding("wikidata").getValue().stringValue(), dsWikidata));
+			if (bs.getBindingNames().contains("ensembl") && bs.getBinding("ensembl") != null) {
+				bh.consume(new Xref(bs.getBinding("ensembl").getValue().stringValue(), dsEnsembl));
+			}
+		}
+	}
+
+	@Benchmark
+	public void writerGetValue(Blackhole bh) throws IDMapperException {
+		MappingWriter writer = writer(bh);
+		for (int i = 0; i < rows; i++) {
+			BindingSet bs = pool[i % POOL];
+			Xref x = new Xref(bs.getValue("wikidata").stringValue(), dsWikidata);
+			writer.add(x);
+			if (bs.getValue("taxonLabel") != null) {
+				writer.addAttribute(x, "Taxon", bs.getValue("taxonLabel").stringValue());
+			}
+			if (bs.getValue("ensembl") != null) {
+				writer.add(x, new Xref(bs.getValue("ensembl").stringValue(), dsEnsembl));
+			}
+		}
+		writer.close();
+	}
+
+	@Benchmark
+	public void writerRowMapping(Blackhole bh) throws IDMapperException {
+		MappingWriter writer = writer(bh);
+		RowHandler handler = mapping.handler(writer);
+		for (int i = 0; i < rows; i++) handler.handle(pool[i % POOL]);
+		writer.close();
+	}
+
+	private static MappingWriter writer(final Blackhole bh) {
+		MappingSink sink = new MappingSink() {
+			public void setInfo(String key, String value) {}
+			public void addGene(Xref xref) { bh.consume(xref); }
+			public void addAttribute(Xref xref, String name, String value) { bh.consume(value); }
+			public void addLink(Xref left, Xref right) { bh.consume(right); }
+			public void commit() {}
+			public void finish() {}
+		};
+		return MappingWriter.fromProperties(sink, new Properties());
+	}
+}
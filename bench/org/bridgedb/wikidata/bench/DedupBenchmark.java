@@ -0,0 +1,71 @@
+package org.bridgedb.wikidata.bench;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.bridgedb.wikidata.utils.XrefSet;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Build-wide deduplication of Q-ids, DOIs and PubMed IDs with a
+ * HashSet&lt;Xref&gt; and with {@link XrefSet}. Run with -prof gc to compare
+ * the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class DedupBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int rows;
+
+	private DataSource dsWikidata;
+	private DataSource dsDoi;
+	private DataSource dsPubMed;
+
+	@Setup
+	public void setup() {
+		SyntheticData.setupDatasources();
+		dsWikidata = SyntheticData.wikidata();
+		dsDoi = DataSource.getExistingBySystemCode("Pbd");
+		dsPubMed = DataSource.getExistingBySystemCode("Pbm");
+	}
+
+	private Xref xref(int i) {
+		switch (i % 3) {
+			case 0: return new Xref(SyntheticData.qid(i / 3), dsWikidata);
+			case 1: return new Xref("10.1000/J.BENCH." + i / 3, dsDoi);
+			default: return new Xref(String.valueOf(20000000 + i / 3), dsPubMed);
+		}
+	}
+
+	@Benchmark
+	public Set<Xref> hashSet() {
+		Set<Xref> set = new HashSet<Xref>();
+		for (int i = 0; i < rows; i++) set.add(xref(i));
+		return set;
+	}
+
+	@Benchmark
+	public XrefSet xrefSet() {
+		XrefSet set = new XrefSet();
+		for (int i = 0; i < rows; i++) set.add(xref(i));
+		return set;
+	}
+}
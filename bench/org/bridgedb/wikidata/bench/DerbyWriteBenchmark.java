@@ -0,0 +1,89 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.rdb.construct.GdbConstruct;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Writing mappings into a fresh Derby database in the temp folder, through
+ * the same MappingWriter and CommitPolicy the builders use, and finishing
+ * the database. <code>buildMode</code> compares GdbConstructImpl3's
+ * addGene/addLink/commit (full) with the CSV import of BulkSink (bulk).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class DerbyWriteBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int rows;
+
+	@Param({"50000"})
+	public int commitLinks;
+
+	@Param({"full", "bulk"})
+	public String buildMode;
+
+	private DataSource dsWikidata;
+	private DataSource dsEnsembl;
+	private File dbFile;
+	private GdbConstruct newDb;
+
+	@Setup
+	public void setupDatasources() {
+		SyntheticData.setupDatasources();
+		dsWikidata = SyntheticData.wikidata();
+		dsEnsembl = SyntheticData.ensembl();
+	}
+
+	@Setup(Level.Iteration)
+	public void createDb() throws IOException, IDMapperException {
+		dbFile = File.createTempFile("wd2bdb-bench-", ".bridge");
+		dbFile.delete();
+		newDb = Utils.createDb(dbFile, "benchmark", "GeneProduct", "1.0.0");
+	}
+
+	@TearDown(Level.Iteration)
+	public void deleteDb() {
+		dbFile.delete();
+	}
+
+	@Benchmark
+	public void writeAndFinish() throws IDMapperException {
+		Properties props = new Properties();
+		props.setProperty("commit.links", String.valueOf(commitLinks));
+		props.setProperty("build.mode", buildMode);
+		MappingSink sink = Utils.createSink(newDb, dbFile, props);
+		MappingWriter writer = MappingWriter.fromProperties(sink, props);
+		for (int i = 0; i < rows; i++) {
+			writer.add(new Xref(SyntheticData.qid(i / 2), dsWikidata), new Xref("ENSG" + i, dsEnsembl));
+		}
+		writer.close();
+		sink.finish();
+	}
+}
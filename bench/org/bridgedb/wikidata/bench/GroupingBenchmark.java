@@ -0,0 +1,95 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Building the in-memory Map&lt;Xref, Set&lt;Xref&gt;&gt; for a whole result,
+ * with two rows per item, against grouping it with a MappingWriter that
+ * spills sorted runs to the temp folder beyond a heap budget of
+ * <code>groupHeapMb</code> and merges them into a sink that only consumes
+ * the mappings. The rows of an item are far apart, as in an unordered result.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx8g")
+public class GroupingBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int rows;
+
+	@Param({"64"})
+	public int groupHeapMb;
+
+	private DataSource dsWikidata;
+	private DataSource dsEnsembl;
+
+	@Setup
+	public void setup() {
+		SyntheticData.setupDatasources();
+		dsWikidata = SyntheticData.wikidata();
+		dsEnsembl = SyntheticData.ensembl();
+	}
+
+	@Benchmark
+	public Map<Xref, Set<Xref>> hashMap() {
+		Map<Xref, Set<Xref>> map = new HashMap<Xref, Set<Xref>>();
+		for (int i = 0; i < rows; i++) {
+			Xref x = new Xref(SyntheticData.qid(i / 2), dsWikidata);
+			Set<Xref> rights = map.get(x);
+			if (rights == null) {
+				rights = new HashSet<Xref>();
+				map.put(x, rights);
+			}
+			rights.add(new Xref("ENSG" + i, dsEnsembl));
+		}
+		return map;
+	}
+
+	@Benchmark
+	public void groupOnDisk(final Blackhole bh) throws IDMapperException {
+		MappingSink sink = new MappingSink() {
+			public void setInfo(String key, String value) {}
+			public void addGene(Xref xref) { bh.consume(xref); }
+			public void addAttribute(Xref xref, String name, String value) { bh.consume(value); }
+			public void addLink(Xref left, Xref right) { bh.consume(right); }
+			public void commit() {}
+			public void finish() {}
+		};
+		MappingWriter writer = MappingWriter.fromProperties(sink, new Properties());
+		writer.groupOnDisk(new File(System.getProperty("java.io.tmpdir"), "wd2bdb-bench-group"),
+				groupHeapMb * 1024L * 1024L);
+		int items = (rows + 1) / 2;
+		for (int i = 0; i < rows; i++) {
+			int item = i % items;
+			writer.add(new Xref(SyntheticData.qid(item), dsWikidata), new Xref("ENSG" + i, dsEnsembl));
+		}
+		writer.close();
+	}
+}
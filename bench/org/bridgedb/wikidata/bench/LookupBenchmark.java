@@ -0,0 +1,118 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.IDMapper;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappedIDMapper;
+import org.bridgedb.wikidata.utils.MemoryIDMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Lookups in a finished gene database from all processors at once, through
+ * the in-memory index of {@link MemoryIDMapper} or the memory-mapped
+ * <code>.bmap</code> file of {@link MappedIDMapper}. The sample mixes
+ * Wikidata items, Ensembl IDs and IDs that are not in the database, and
+ * every thread walks it from its own position; <code>bulk</code> maps 1000
+ * Xrefs per call. Scores are lookups per millisecond over all threads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Threads(Threads.MAX)
+@Fork(1)
+public class LookupBenchmark {
+
+	private static final int SAMPLE = 1 << 16;
+	private static final int BATCH = 1000;
+
+	@Param({"1000000"})
+	public int rows;
+
+	@Param({"memory", "mapped"})
+	public String index;
+
+	private IDMapper mapper;
+	private Xref[] sample;
+	private List<List<Xref>> batches;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+		int next = (int) (Thread.currentThread().getId() * 7919);
+	}
+
+	@Setup
+	public void load() throws IOException, IDMapperException {
+		File bridge = SyntheticData.geneBridge(rows);
+		if (index.equals("memory")) {
+			MemoryIDMapper memory = MemoryIDMapper.load(bridge);
+			System.out.println("\nLoaded in " + memory.getLoadMillis() + " ms, about "
+					+ (memory.memoryUsage() >> 20) + " MB");
+			mapper = memory;
+		} else {
+			File mapped = MappedExport.mappedFile(bridge);
+			if (!mapped.exists()) new MappedExport(0).export(bridge, mapped);
+			mapper = new MappedIDMapper(mapped);
+		}
+		sample = new Xref[SAMPLE];
+		for (int i = 0; i < SAMPLE; i++) {
+			// spread over the database, so lookups do not stay in the cache
+			int row = (int) ((i * 2654435761L) % rows);
+			switch (i % 4) {
+			case 0:
+				sample[i] = new Xref(SyntheticData.qid(row / 2), SyntheticData.wikidata());
+				break;
+			case 3:
+				sample[i] = new Xref("ENSG" + row, SyntheticData.ensembl());
+				break;
+			default:
+				sample[i] = new Xref("ENSG" + String.format("%011d", row), SyntheticData.ensembl());
+			}
+		}
+		batches = new ArrayList<List<Xref>>();
+		for (int i = 0; i + BATCH <= SAMPLE; i += BATCH) {
+			List<Xref> batch = new ArrayList<Xref>(BATCH);
+			for (int j = i; j < i + BATCH; j++) batch.add(sample[j]);
+			batches.add(batch);
+		}
+	}
+
+	@TearDown
+	public void close() throws IDMapperException {
+		mapper.close();
+	}
+
+	@Benchmark
+	public Set<Xref> single(Cursor cursor) throws IDMapperException {
+		return mapper.mapID(sample[cursor.next++ & (SAMPLE - 1)]);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(BATCH)
+	public Map<Xref, Set<Xref>> bulk(Cursor cursor) throws IDMapperException {
+		return mapper.mapID(batches.get((cursor.next++ & Integer.MAX_VALUE) % batches.size()));
+	}
+}
@@ -0,0 +1,121 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.wikidata.utils.ReplayServer;
+import org.bridgedb.wikidata.utils.SparqlClient;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Fetching a query result from a local {@link ReplayServer}: a new
+ * repository per query with rdf4j's defaults (<code>legacy</code>, how the
+ * builders used to query) against the pooled {@link SparqlClient} asking for
+ * XML or binary results. The auxiliary counters give the bytes sent by the
+ * server, after gzip, and the CPU time of the process, which includes the
+ * server copying and compressing the recording, summed over the measured
+ * queries.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SparqlTransportBenchmark {
+
+	private static final String QUERY = "SELECT ?taxonLabel ?wikidata ?ensembl WHERE { ?item ?p ?o }";
+
+	@Param({"10000", "1000000"})
+	public int rows;
+
+	@Param({"legacy", "xml", "binary"})
+	public String transport;
+
+	private File dir;
+	private ReplayServer replay;
+	private String endpoint;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Traffic {
+		public long bytes;
+		public long cpuMs;
+	}
+
+	@Setup
+	public void setup() throws IOException {
+		dir = Files.createTempDirectory("wd2bdb-transport-").toFile();
+		File queries = new File(dir, "queries");
+		File recordings = new File(dir, "recordings");
+		queries.mkdirs();
+		recordings.mkdirs();
+		Files.write(new File(queries, "genes.rq").toPath(), QUERY.getBytes(StandardCharsets.UTF_8));
+		boolean binary = transport.equals("binary");
+		SyntheticData.writeGeneResults(new File(recordings, binary ? "genes.brt" : "genes.srx"), rows,
+				binary ? TupleQueryResultFormat.BINARY : TupleQueryResultFormat.SPARQL);
+		System.setProperty("sparql.format", binary ? "binary" : "xml");
+		replay = new ReplayServer(recordings, queries);
+		replay.setPort(0);
+		replay.start();
+		endpoint = replay.getEndpoint();
+	}
+
+	@TearDown
+	public void tearDown() {
+		replay.stop();
+		SparqlClient.shutdown();
+		for (File sub : new File[] { new File(dir, "queries"), new File(dir, "recordings") }) {
+			File[] files = sub.listFiles();
+			if (files != null) for (File file : files) file.delete();
+			sub.delete();
+		}
+		dir.delete();
+	}
+
+	@Benchmark
+	public void fetch(Traffic traffic, Blackhole bh) {
+		long bytes = replay.getBytesSent();
+		long cpu = processCpuNanos();
+		if (transport.equals("legacy")) {
+			SPARQLRepository repository = new SPARQLRepository(endpoint);
+			RepositoryConnection con = repository.getConnection();
+			try (TupleQueryResult result = con.prepareTupleQuery(QueryLanguage.SPARQL, QUERY).evaluate()) {
+				while (result.hasNext()) bh.consume(result.next());
+			}
+		} else {
+			try (TupleQueryResult result = SparqlClient.evaluate(endpoint, QUERY)) {
+				while (result.hasNext()) bh.consume(result.next());
+			}
+		}
+		traffic.bytes += replay.getBytesSent() - bytes;
+		traffic.cpuMs += (processCpuNanos() - cpu) / 1000000;
+	}
+
+	private static long processCpuNanos() {
+		return ((com.sun.management.OperatingSystemMXBean) ManagementFactory.getOperatingSystemMXBean())
+				.getProcessCpuTime();
+	}
+}
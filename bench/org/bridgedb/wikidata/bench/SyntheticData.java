@@ -0,0 +1,137 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.DataSourceTxt;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.Utils;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriter;
+
+/**
+ * Deterministic synthetic datasets that look like the WDQS results the
+ * builders consume. Files are written once per size to the temp folder
+ * and reused by later benchmark runs.
+ */
+public class SyntheticData {
+
+	public static final int FIRST_QID = 1000000;
+
+	private static boolean initialized = false;
+
+	public static synchronized void setupDatasources() {
+		if (!initialized) {
+			DataSourceTxt.init();
+			initialized = true;
+		}
+	}
+
+	public static DataSource wikidata() {
+		return DataSource.getExistingBySystemCode("Wd");
+	}
+
+	public static DataSource ensembl() {
+		return DataSource.getExistingBySystemCode("En");
+	}
+
+	public static String qid(int i) {
+		return "Q" + (FIRST_QID + i);
+	}
+
+	/**
+	 * A publications.tsv as returned by WDQS: a header, then a quoted Q-id,
+	 * DOI, PubMed ID and, for every third row, a PubMed Central ID.
+	 */
+	public static synchronized File publicationsTsv(int rows) throws IOException {
+		File file = new File(System.getProperty("java.io.tmpdir"), "wd2bdb-publications-" + rows + ".tsv");
+		if (file.exists()) return file;
+		File tmp = new File(file.getPath() + ".part");
+		BufferedWriter out = new BufferedWriter(new FileWriter(tmp), 1 << 16);
+		try {
+			out.write("?wikidata\t?doi\t?pmid\t?pmcid\n");
+			for (int i = 0; i < rows; i++) {
+				out.write('"' + qid(i) + "\"\t\"10.1000/J.BENCH." + i + "\"\t\"" + (20000000 + i) + "\"\t");
+				if (i % 3 == 0) out.write("\"" + (7000000 + i) + "\"");
+				out.write('\n');
+			}
+		} finally {
+			out.close();
+		}
+		if (!tmp.renameTo(file)) throw new IOException("Could not write " + file);
+		return file;
+	}
+
+	/**
+	 * A finished gene database written through MappingWriter, with one
+	 * Wikidata item for every two Ensembl IDs, as for {@link #geneRow}.
+	 */
+	public static synchronized File geneBridge(int rows) throws IOException, IDMapperException {
+		File file = new File(System.getProperty("java.io.tmpdir"), "wd2bdb-genes-" + rows + ".bridge");
+		if (file.exists()) return file;
+		setupDatasources();
+		File tmp = new File(System.getProperty("java.io.tmpdir"), "wd2bdb-genes-" + rows + ".part.bridge");
+		Properties props = new Properties();
+		props.setProperty("build.mode", "bulk");
+		MappingSink sink = Utils.createSink(Utils.createDb(tmp, "benchmark", "GeneProduct", "1.0.0"), tmp, props);
+		MappingWriter writer = MappingWriter.fromProperties(sink, props);
+		for (int i = 0; i < rows; i++) {
+			writer.add(new Xref(qid(i / 2), wikidata()), new Xref("ENSG" + String.format("%011d", i), ensembl()));
+		}
+		writer.close();
+		sink.finish();
+		if (!tmp.renameTo(file)) throw new IOException("Could not write " + file);
+		return file;
+	}
+
+	/**
+	 * A genes.rq result row; every item has two Ensembl IDs in consecutive rows.
+	 */
+	public static BindingSet geneRow(ValueFactory vf, int i) {
+		MapBindingSet bs = new MapBindingSet(3);
+		bs.addBinding("taxonLabel", vf.createLiteral(i % 5 == 0 ? "Mus musculus" : "Homo sapiens", "en"));
+		bs.addBinding("wikidata", vf.createLiteral(qid(i / 2)));
+		bs.addBinding("ensembl", vf.createLiteral("ENSG" + String.format("%011d", i)));
+		return bs;
+	}
+
+	public static BindingSet[] geneRows(int count) {
+		ValueFactory vf = SimpleValueFactory.getInstance();
+		BindingSet[] rows = new BindingSet[count];
+		for (int i = 0; i < count; i++) rows[i] = geneRow(vf, i);
+		return rows;
+	}
+
+	/**
+	 * The result of genes.rq with the given number of rows, written in the
+	 * given format, as a recording for {@link org.bridgedb.wikidata.utils.ReplayServer}.
+	 */
+	public static void writeGeneResults(File file, int rows, TupleQueryResultFormat format) throws IOException {
+		ValueFactory vf = SimpleValueFactory.getInstance();
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+		try {
+			TupleQueryResultWriter writer = QueryResultIO.createTupleWriter(format, out);
+			writer.startQueryResult(Arrays.asList("taxonLabel", "wikidata", "ensembl"));
+			for (int i = 0; i < rows; i++) writer.handleSolution(geneRow(vf, i));
+			writer.endQueryResult();
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,71 @@
+package org.bridgedb.wikidata.bench;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.wikidata.utils.TsvReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parsing publications.tsv with split/replaceAll, as the builders used to,
+ * and with {@link TsvReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class TsvParseBenchmark {
+
+	@Param({"10000", "1000000", "10000000"})
+	public int rows;
+
+	private File file;
+
+	@Setup
+	public void setup() throws IOException {
+		file = SyntheticData.publicationsTsv(rows);
+	}
+
+	@Benchmark
+	public void splitAndReplaceAll(Blackhole bh) throws IOException {
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String dataRow = in.readLine(); // header
+			while ((dataRow = in.readLine()) != null) {
+				String[] fields = dataRow.split("\\t");
+				for (String field : fields) bh.consume(field.replaceAll("\"", ""));
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Benchmark
+	public void tsvReader(Blackhole bh) throws IOException {
+		TsvReader in = new TsvReader(file);
+		try {
+			in.next(); // header
+			while (in.next()) {
+				for (int i = 0; i < in.getFieldCount(); i++) bh.consume(in.getField(i));
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
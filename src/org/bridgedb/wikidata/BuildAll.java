@@ -0,0 +1,202 @@
+/**
+Copyright 2020-2023 Martina Kutmon
+               		Egon Willighagen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ **/
+package org.bridgedb.wikidata;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+import org.bridgedb.wikidata.utils.SparqlClient;
+import org.bridgedb.wikidata.utils.Utils;
+import org.bridgedb.wikidata.utils.WdqsPermits;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds all databases described in the properties folder concurrently
+ * in a single JVM. Each properties file names its builder with the
+ * <code>builder</code> key and the heap it is expected to use with
+ * <code>job.heap.mb</code>; a job only starts when this estimate fits in the
+ * memory still available. It is only used to admit jobs: nothing holds a
+ * running build to it, so it should cover the peak of the build.
+ * <code>--wdqs</code> limits the open WDQS queries of all jobs together and
+ * <code>job.max.queries</code> those of one job, so that a job with many
+ * slices leaves connections for the others.
+ *
+ * Usage: BuildAll [--threads N] [--wdqs N] [--endpoint URL] [--resume] [properties folder]
+ */
+public class BuildAll {
+
+	private static final Logger log = LoggerFactory.getLogger(BuildAll.class);
+
+	interface Builder {
+		void setupDatasources();
+		File build(Properties props) throws Exception;
+	}
+
+	static final Map<String, Builder> BUILDERS = new LinkedHashMap<String, Builder>();
+	static {
+		BUILDERS.put("GeneIdentifiers", new Builder() {
+			public void setupDatasources() { GeneIdentifiers.setupDatasources(); }
+			public File build(Properties props) throws Exception { return GeneIdentifiers.build(props); }
+		});
+		BUILDERS.put("ComplexIdentifiers", new Builder() {
+			public void setupDatasources() { ComplexIdentifiers.setupDatasources(); }
+			public File build(Properties props) throws Exception { return ComplexIdentifiers.build(props); }
+		});
+		BUILDERS.put("CoronavirusProteins", new Builder() {
+			public void setupDatasources() { CoronavirusProteins.setupDatasources(); }
+			public File build(Properties props) throws Exception { return CoronavirusProteins.build(props); }
+		});
+		BUILDERS.put("Publications", new Builder() {
+			public void setupDatasources() { Publications.setupDatasources(); }
+			public File build(Properties props) throws Exception { return Publications.build(props); }
+		});
+		BUILDERS.put("Pathways", new Builder() {
+			public void setupDatasources() { Pathways.setupDatasources(); }
+			public File build(Properties props) throws Exception { return Pathways.build(props); }
+		});
+		BUILDERS.put("SeriesBuilder", new Builder() {
+			public void setupDatasources() { SeriesBuilder.setupDatasources(); }
+			public File build(Properties props) throws Exception { return SeriesBuilder.build(props); }
+		});
+	}
+
+	public static final int DEFAULT_JOB_HEAP = 512;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int wdqsConnections = 4;
+		File propsDir = new File("properties");
+		boolean resume = false;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--wdqs")) wdqsConnections = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--endpoint")) Utils.setEndpoint(args[++i]);
+			else if (args[i].equals("--resume")) resume = true;
+			else propsDir = new File(args[i]);
+		}
+
+		List<Job> jobs = new ArrayList<Job>();
+		File[] files = propsDir.listFiles();
+		if (files == null) throw new IOException("Not a folder: " + propsDir);
+		Arrays.sort(files);
+		for (File file : files) {
+			if (!file.getName().endsWith(".props")) continue;
+			Properties props = Utils.loadProperties(file.getPath());
+			if (resume) props.setProperty("resume", "true");
+			Builder builder = BUILDERS.get(props.getProperty("builder"));
+			if (builder == null) {
+				log.warn("No builder for " + file.getName() + ", skipping");
+				continue;
+			}
+			jobs.add(new Job(file.getName(), builder, props));
+		}
+
+		// DataSourceTxt.init() is not meant to run concurrently
+		for (Job job : jobs) job.builder.setupDatasources();
+		WdqsPermits.setMaxConnections(wdqsConnections);
+
+		int heapBudget = (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024) * 3 / 4);
+		final Semaphore heap = new Semaphore(heapBudget, true);
+		log.info("Building " + jobs.size() + " databases with " + threads
+				+ " threads, " + wdqsConnections + " WDQS connections and " + heapBudget + " MB heap");
+
+		long start = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, jobs.size())));
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for (final Job job : jobs) {
+			job.heapMb = Math.min(heapBudget, Utils.getIntProperty(job.props, "job.heap.mb", DEFAULT_JOB_HEAP));
+			futures.add(pool.submit(new Runnable() {
+				public void run() {
+					job.run(heap);
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<?> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				// recorded in the job itself
+			}
+		}
+		SparqlClient.shutdown();
+
+		boolean failed = false;
+		log.info("Build summary");
+		for (Job job : jobs) {
+			failed |= job.error != null;
+			log.info(String.format("  %-28s %-7s %8.1f s %12s  %s", job.name,
+					job.error == null ? "OK" : "FAILED", job.millis / 1000.0,
+					job.output == null ? "-" : job.output.length() + " B",
+					job.error == null ? (job.output == null ? "" : job.output.getPath()) : job.error.toString()));
+		}
+		log.info(String.format("Total wall-clock time %.1f s",
+				(System.currentTimeMillis() - start) / 1000.0));
+		if (failed) System.exit(1);
+	}
+
+	private static class Job {
+
+		final String name;
+		final Builder builder;
+		final Properties props;
+		int heapMb;
+		long millis;
+		File output;
+		Throwable error;
+
+		Job(String name, Builder builder, Properties props) {
+			this.name = name;
+			this.builder = builder;
+			this.props = props;
+		}
+
+		void run(Semaphore heap) {
+			try {
+				heap.acquire(heapMb);
+			} catch (InterruptedException e) {
+				error = e;
+				return;
+			}
+			long start = System.currentTimeMillis();
+			try {
+				log.info("Start " + name);
+				WdqsPermits.setJobLimit(Utils.getIntProperty(props, "job.max.queries", 0));
+				output = builder.build(props);
+			} catch (Throwable e) {
+				error = e;
+				log.error(name + " failed", e);
+			} finally {
+				millis = System.currentTimeMillis() - start;
+				WdqsPermits.setJobLimit(0);
+				heap.release(heapMb);
+			}
+		}
+	}
+}
@@ -17,26 +17,27 @@ limitations under the License.
 package org.bridgedb.wikidata;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.Future;
 
 import org.bridgedb.DataSource;
 import org.bridgedb.IDMapperException;
 import org.bridgedb.Xref;
 import org.bridgedb.bio.DataSourceTxt;
-import org.bridgedb.rdb.construct.GdbConstruct;
+import org.bridgedb.wikidata.utils.BridgeOptimizer;
+import org.bridgedb.wikidata.utils.BuildMetrics;
+import org.bridgedb.wikidata.utils.Checkpoint;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowHandler;
+import org.bridgedb.wikidata.utils.TaxonShards;
 import org.bridgedb.wikidata.utils.Utils;
 import org.eclipse.rdf4j.query.BindingSet;
-import org.eclipse.rdf4j.query.QueryResults;
-import org.eclipse.rdf4j.query.TupleQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Retrieves complex identifier mappings
@@ -48,11 +49,12 @@ import org.eclipse.rdf4j.query.TupleQuery;
  */
 public class ComplexIdentifiers {
 
+	private static final Logger log = LoggerFactory.getLogger(ComplexIdentifiers.class);
+
 
 	private static DataSource dsWikidata;
 	private static DataSource dsComplexPortal;
 	private static DataSource dsReactome;
-	private static GdbConstruct newDb;
 
 	/**
 	 * @param args
@@ -61,79 +63,92 @@ public class ComplexIdentifiers {
 	 * @throws SQLException
 	 */
 	public static void main(String[] args) throws IOException, IDMapperException, SQLException {
-		System.out.println("[INFO]: Initial setup");
+		log.info("Initial setup");
 		setupDatasources();
-		Properties props = new Properties();
-		props.load(new FileInputStream(new File("properties/complex.props")));
-		String dateStr = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
-
-		// create output directy and database with date in file name
-		System.out.println("[INFO]: Start database creation for " + props.getProperty("output.file"));
-		File outputDir = new File("output",dateStr);
-		outputDir.mkdir();
-		File outputFile = new File(outputDir, props.getProperty("output.file") + "-" + dateStr + ".bridge");
-		newDb = Utils.createDb(outputFile, "Complexes", props.getProperty("data.type"), "1.0.0");		
-		
-		// connect to wikidata
-		System.out.println("[INFO]: Connect to Wikidata");
-		TupleQuery tupleQuery = Utils.connect2Wikidata("complexes.rq");
-
-		// start filling database
-		System.out.println("[INFO]: Start filling BridgeDb database");
-		fillDb(tupleQuery);
-		
-		// write database
-		newDb.finalize();
-		System.out.println("[INFO]: Database finished: " + outputFile.getName() + " (" + outputFile.getTotalSpace() + ")");
-		
-		
-		if(props.getProperty("old.db") != null && !props.getProperty("old.db").equals("")) {
-			System.out.println("[INFO]: Quality control and comparison with previous version\n");
-			Utils.runQC(props.getProperty("old.db"), outputFile);
+		build(Utils.loadProperties("properties/complex.props", args));
+	}
+
+	/**
+	 * Builds the database described by the given properties. The data sources
+	 * must have been set up before.
+	 */
+	static File build(Properties props) throws IOException, IDMapperException, SQLException {
+		String dateStr = Utils.buildDate(props);
+		Future<File> previousRelease = Utils.prefetchRelease(props);
+		BuildMetrics metrics = BuildMetrics.start(props);
+		try {
+			// create output directy and database with date in file name
+			log.info("Start database creation for " + props.getProperty("output.file"));
+			File outputDir = new File("output",dateStr);
+			outputDir.mkdirs();
+			File outputFile = new File(outputDir, props.getProperty("output.file") + "-" + dateStr + ".bridge");
+			MappingSink newDb = Utils.createSink(outputFile, "Complexes", props.getProperty("data.type"), "1.0.0", props);		
+
+			// start filling database
+			log.info("Start filling BridgeDb database");
+			Checkpoint checkpoint = Checkpoint.fromProperties(outputFile, props);
+			MappingWriter writer = MappingWriter.fromProperties(newDb, props);
+			if (checkpoint != null) writer.setCheckpoint(checkpoint);
+			TaxonShards shards = TaxonShards.fromProperties(outputFile, "Complexes", props, new TaxonShards.Rows() {
+				public RowHandler handler(MappingWriter shardWriter) {
+					return rows(shardWriter);
+				}
+			});
+			fillDb(props, writer, shards);
+
+			// write database
+			newDb.finish();
+			if (shards != null) shards.finish();
+			if (checkpoint != null) checkpoint.delete();
+			BridgeOptimizer.optimize(outputFile, props);
+			MappedExport.export(outputFile, props);
+			log.info("Database finished: " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+			metrics.finish(outputFile);
+
+
+			if(previousRelease != null) {
+				log.info("Quality control and comparison with previous version");
+				Utils.runQC(Utils.getRelease(previousRelease), outputFile, props);
+			}
+			return outputFile;
+		} finally {
+			metrics.end();
 		}
 	}
 	
-	private static void fillDb(TupleQuery tupleQuery) throws IDMapperException {
-		Map<Xref, Set<Xref>> map = new HashMap<Xref, Set<Xref>>();
-		for (BindingSet bs : QueryResults.asList(tupleQuery.evaluate())) {
-			String wikidata = bs.getBinding("wikidata").getValue().stringValue();
-			Xref x = new Xref(wikidata, dsWikidata);
-			map.put(x, new HashSet<Xref>());
-			if(bs.getBindingNames().contains("cpx")) {
-				String ncbi = bs.getBinding("cpx").getValue().stringValue();
-				map.get(x).add(new Xref(ncbi, dsComplexPortal));
-			}
-			if(bs.getBindingNames().contains("reactome")) {
-				String ncbi = bs.getBinding("reactome").getValue().stringValue();
-				map.get(x).add(new Xref(ncbi, dsReactome));
+	private static void fillDb(Properties props, MappingWriter writer, TaxonShards shards)
+			throws IOException, IDMapperException {
+		Utils.fetch(props, shards == null ? rows(writer) : shards.route(rows(writer)), writer);
+		writer.close();
+	}
+
+	/**
+	 * Adds the complex of a row, with its taxon as attribute.
+	 */
+	private static RowHandler rows(final MappingWriter writer) {
+		return new RowHandler() {
+			public void handle(BindingSet bs) throws IDMapperException {
+				String wikidata = bs.getValue("wikidata").stringValue();
+				Xref x = new Xref(wikidata, dsWikidata);
+				writer.add(x);
+				String taxon = TaxonShards.taxon(bs);
+				if (taxon != null) writer.addAttribute(x, TaxonShards.ATTRIBUTE, taxon);
+				if (bs.getValue("cpx") != null) {
+					String cpx = bs.getValue("cpx").stringValue();
+					writer.add(x, new Xref(cpx, dsComplexPortal));
+				}
+				if (bs.getValue("reactome") != null) {
+					String reactome = bs.getValue("reactome").stringValue();
+					writer.add(x, new Xref(reactome, dsReactome));
+				}
 			}
-		}
-		addEntries(map);
+		};
 	}
 
-	private static void setupDatasources() {
+	static void setupDatasources() {
 		DataSourceTxt.init();
 		dsWikidata = DataSource.getExistingBySystemCode("Wd");
 		dsReactome = DataSource.getExistingBySystemCode("Re");
 		dsComplexPortal = DataSource.register("Cpx", "Complex Portal").asDataSource();
 	}
-
-	
-
-	private static void addEntries(Map<Xref, Set<Xref>> dbEntries) throws IDMapperException {
-		Set<Xref> addedXrefs = new HashSet<Xref>();
-		for (Xref ref : dbEntries.keySet()) {
-			Xref mainXref = ref;
-			if (addedXrefs.add(mainXref)) newDb.addGene(mainXref);
-			newDb.addLink(mainXref, mainXref);
-
-			for (Xref rightXref : dbEntries.get(mainXref)) {
-				if (!rightXref.equals(mainXref) && rightXref != null) {
-					if (addedXrefs.add(rightXref)) newDb.addGene(rightXref);
-					newDb.addLink(mainXref, rightXref);
-				}
-			}
-			newDb.commit();
-		}
-	}
 }
@@ -17,26 +17,23 @@ limitations under the License.
 package org.bridgedb.wikidata;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
 import java.util.Properties;
-import java.util.Set;
+import java.util.concurrent.Future;
 
-import org.bridgedb.DataSource;
 import org.bridgedb.IDMapperException;
-import org.bridgedb.Xref;
 import org.bridgedb.bio.DataSourceTxt;
-import org.bridgedb.rdb.construct.GdbConstruct;
+import org.bridgedb.wikidata.utils.BridgeOptimizer;
+import org.bridgedb.wikidata.utils.BuildMetrics;
+import org.bridgedb.wikidata.utils.Checkpoint;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowMapping;
 import org.bridgedb.wikidata.utils.Utils;
-import org.eclipse.rdf4j.query.BindingSet;
-import org.eclipse.rdf4j.query.QueryResults;
-import org.eclipse.rdf4j.query.TupleQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Retrieves human coronavirus gene-protein mappings (Wikidata, NCBI Gene,
@@ -47,12 +44,7 @@ import org.eclipse.rdf4j.query.TupleQuery;
  */
 public class CoronavirusProteins {
 
-	private static DataSource dsWikiData;
-	private static DataSource dsNcbi;
-	private static DataSource dsRefseq;
-	private static DataSource dsUniprot;
-	private static DataSource dsGuideToPharma;
-	private static GdbConstruct newDb;
+	private static final Logger log = LoggerFactory.getLogger(CoronavirusProteins.class);
 
 	/**
 	 * @param args
@@ -61,96 +53,61 @@ public class CoronavirusProteins {
 	 * @throws SQLException
 	 */
 	public static void main(String[] args) throws IOException, IDMapperException, SQLException {
-		System.out.println("[INFO]: Initial setup");
+		log.info("Initial setup");
 		setupDatasources();
-		Properties props = new Properties();
-		props.load(new FileInputStream(new File("properties/coronavirus-proteins.props")));
-		String dateStr = new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+		build(Utils.loadProperties("properties/coronavirus-proteins.props", args));
+	}
+
+	/**
+	 * Builds the database described by the given properties. The data sources
+	 * must have been set up before.
+	 */
+	static File build(Properties props) throws IOException, IDMapperException, SQLException {
+		String dateStr = Utils.buildDate(props);
+		Future<File> previousRelease = Utils.prefetchRelease(props);
+		BuildMetrics metrics = BuildMetrics.start(props);
+		try {
+			// create output directy and database with date in file name
+			log.info("Start database creation for " + props.getProperty("output.file"));
+			File outputDir = new File("output",dateStr);
+			outputDir.mkdirs();
+			File outputFile = new File(outputDir, props.getProperty("output.file") + "-" + dateStr + ".bridge");
+			MappingSink newDb = Utils.createSink(outputFile, "Coronavirus", props.getProperty("data.type"), "1.0.0", props);
+
+			// start filling database
+			log.info("Start filling BridgeDb database");
+			Checkpoint checkpoint = Checkpoint.fromProperties(outputFile, props);
+			MappingWriter writer = MappingWriter.fromProperties(newDb, props);
+			if (checkpoint != null) writer.setCheckpoint(checkpoint);
+			fillDb(props, writer);
 
-		// create output directy and database with date in file name
-		System.out.println("[INFO]: Start database creation for " + props.getProperty("output.file"));
-		File outputDir = new File("output",dateStr);
-		outputDir.mkdir();
-		File outputFile = new File(outputDir, props.getProperty("output.file") + "-" + dateStr + ".bridge");
-		newDb = Utils.createDb(outputFile, "Coronavirus", props.getProperty("data.type"), "1.0.0");
-		
-		// connect to wikidata
-		System.out.println("[INFO]: Connect to Wikidata");
-		TupleQuery tupleQuery = Utils.connect2Wikidata("coronavirus-proteins.rq");
+			// write database
+			newDb.finish();
+			if (checkpoint != null) checkpoint.delete();
+			BridgeOptimizer.optimize(outputFile, props);
+			MappedExport.export(outputFile, props);
+			log.info("Database finished: " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+			metrics.finish(outputFile);
 
 
-		// start filling database
-		System.out.println("[INFO]: Start filling BridgeDb database");
-		fillDb(tupleQuery);
-		
-		// write database
-		newDb.finalize();
-		System.out.println("[INFO]: Database finished: " + outputFile.getName() + " (" + outputFile.getTotalSpace() + ")");
-		
-		
-		if(props.getProperty("old.db") != null && !props.getProperty("old.db").equals("")) {
-			System.out.println("[INFO]: Quality control and comparison with previous version\n");
-			Utils.runQC(props.getProperty("old.db"), outputFile);
+			if(previousRelease != null) {
+				log.info("Quality control and comparison with previous version");
+				Utils.runQC(Utils.getRelease(previousRelease), outputFile, props);
+			}
+			return outputFile;
+		} finally {
+			metrics.end();
 		}
 	}
 	
-	private static void fillDb(TupleQuery tupleQuery) throws IDMapperException {
-		Map<Xref, Set<Xref>> map = new HashMap<Xref, Set<Xref>>();
-		Map<Xref, String> virusLabel = new HashMap<Xref, String>();
-		for (BindingSet bs : QueryResults.asList(tupleQuery.evaluate())) {
-			String wikidata = bs.getBinding("wikidata").getValue().stringValue();
-			String vl = bs.getBinding("virusLabel").getValue().stringValue();
-			Xref x = new Xref(wikidata, dsWikiData);
-			map.put(x, new HashSet<Xref>());
-			virusLabel.put(x,vl);
-			if(bs.getBindingNames().contains("ncbi") && bs.getBinding("ncbi") != null) {
-				String ncbi = bs.getBinding("ncbi").getValue().stringValue();
-				map.get(x).add(new Xref(ncbi, dsNcbi));
-			}
-			if(bs.getBindingNames().contains("refseq") && bs.getBinding("refseq") != null) {
-				String refseq = bs.getBinding("refseq").getValue().stringValue();
-				map.get(x).add(new Xref(refseq, dsRefseq));
-			}
-			if(bs.getBindingNames().contains("uniprot") && bs.getBinding("uniprot") != null) {
-				String uniprot = bs.getBinding("uniprot").getValue().stringValue();
-				map.get(x).add(new Xref(uniprot, dsUniprot));
-			}
-			if(bs.getBindingNames().contains("guideToPharma") && bs.getBinding("guideToPharma") != null) {
-				String gptarget = bs.getBinding("guideToPharma").getValue().stringValue();
-				map.get(x).add(new Xref(gptarget, dsGuideToPharma));
-			}
-		}
-		addEntries(map, virusLabel);
+	private static void fillDb(Properties props, final MappingWriter writer) throws IOException, IDMapperException {
+		RowMapping mapping = RowMapping.fromProperties(props);
+		if (mapping == null) throw new IllegalArgumentException("mapping.main is not set");
+		Utils.fetch(props, mapping.handler(writer), writer);
+		writer.close();
 	}
 
-	private static void setupDatasources() {
+	static void setupDatasources() {
 		DataSourceTxt.init();
-		dsWikiData = DataSource.getExistingBySystemCode("Wd");
-		dsNcbi = DataSource.getExistingBySystemCode("L");
-		dsRefseq = DataSource.getExistingBySystemCode("Q");
-		dsUniprot = DataSource.getExistingBySystemCode("S");
-		dsGuideToPharma = DataSource.getExistingBySystemCode("Gpt");
-	}
-
-	private static void addEntries(Map<Xref, Set<Xref>> dbEntries, Map<Xref, String> virusLabel)
-			throws IDMapperException {
-		Set<Xref> addedXrefs = new HashSet<Xref>();
-		for (Xref ref : dbEntries.keySet()) {
-			Xref mainXref = ref;
-			if (addedXrefs.add(mainXref)) {
-				newDb.addGene(mainXref);
-				newDb.addAttribute(mainXref, "virus", virusLabel.get(mainXref));
-			}
-			newDb.addLink(mainXref, mainXref);
-
-			for (Xref rightXref : dbEntries.get(mainXref)) {
-				if (!rightXref.equals(mainXref) && rightXref != null) {
-					if (addedXrefs.add(rightXref))
-						newDb.addGene(rightXref);
-					newDb.addLink(mainXref, rightXref);
-				}
-			}
-			newDb.commit();
-		}
 	}
 }
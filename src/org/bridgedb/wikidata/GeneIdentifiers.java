@@ -18,33 +18,27 @@ package org.bridgedb.wikidata;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Properties;
 
 import org.bridgedb.DataSource;
 import org.bridgedb.IDMapperException;
 import org.bridgedb.Xref;
 import org.bridgedb.bio.DataSourceTxt;
-import org.bridgedb.rdb.construct.DBConnector;
-import org.bridgedb.rdb.construct.DataDerby;
 import org.bridgedb.rdb.construct.GdbConstruct;
-import org.bridgedb.rdb.construct.GdbConstructImpl3;
 import org.bridgedb.tools.qc.BridgeQC;
+import org.bridgedb.wikidata.utils.BridgeOptimizer;
+import org.bridgedb.wikidata.utils.BuildMetrics;
+import org.bridgedb.wikidata.utils.Checkpoint;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowHandler;
+import org.bridgedb.wikidata.utils.TaxonShards;
+import org.bridgedb.wikidata.utils.Utils;
 import org.eclipse.rdf4j.query.BindingSet;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.query.QueryResults;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Retrieves geme identifier mappings
@@ -56,87 +50,88 @@ import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
  */
 public class GeneIdentifiers {
 
+	private static final Logger log = LoggerFactory.getLogger(GeneIdentifiers.class);
+
 	private static DataSource dsWikidata;
 	private static DataSource dsEnsembl;
-	private static GdbConstruct newDb;
 
 	public static void main(String[] args) throws IOException, IDMapperException, SQLException {
 		setupDatasources();
-		File outputDir = new File("output");
-		outputDir.mkdir();
-		File outputFile = new File(outputDir, "genes.bridge");
-		createDb(outputFile);
-
-		String query = readQuery("queries/genes.rq");
-		SPARQLRepository sparqlRepository = new SPARQLRepository("https://query.wikidata.org/sparql");
-		RepositoryConnection sparqlConnection = sparqlRepository.getConnection();
-
-		TupleQuery tupleQuery = sparqlConnection.prepareTupleQuery(QueryLanguage.SPARQL, query);
-
-		Map<Xref, Set<Xref>> map = new HashMap<Xref, Set<Xref>>();
-		for (BindingSet bs : QueryResults.asList(tupleQuery.evaluate())) {
-//			System.out.println(bs);
-			String wikidata = bs.getBinding("wikidata").getValue().stringValue();
-			Xref x = new Xref(wikidata, dsWikidata);
-			map.put(x, new HashSet<Xref>());
-			if(bs.getBindingNames().contains("ensembl")) {
-				String ncbi = bs.getBinding("ensembl").getValue().stringValue();
-				map.get(x).add(new Xref(ncbi, dsEnsembl));
-			}
+		build(Utils.loadProperties("properties/genes.props", args));
+	}
+
+	/**
+	 * Builds the database described by the given properties. The data sources
+	 * must have been set up before.
+	 */
+	static File build(Properties props) throws IOException, IDMapperException, SQLException {
+		BuildMetrics metrics = BuildMetrics.start(props);
+		try {
+			File outputDir = new File("output");
+			outputDir.mkdirs();
+			File outputFile = new File(outputDir, props.getProperty("output.file") + ".bridge");
+			MappingSink newDb = Utils.createSink(createDb(outputFile, props), outputFile, props);
+
+			Checkpoint checkpoint = Checkpoint.fromProperties(outputFile, props);
+			MappingWriter writer = MappingWriter.fromProperties(newDb, props);
+			if (checkpoint != null) writer.setCheckpoint(checkpoint);
+			TaxonShards shards = TaxonShards.fromProperties(outputFile, "Genes and proteins", props, new TaxonShards.Rows() {
+				public RowHandler handler(MappingWriter shardWriter) {
+					return rows(shardWriter);
+				}
+			});
+			Utils.fetch(props, shards == null ? rows(writer) : shards.route(rows(writer)), writer);
+			writer.close();
+			newDb.finish();
+			if (shards != null) shards.finish();
+			if (checkpoint != null) checkpoint.delete();
+			BridgeOptimizer.optimize(outputFile, props);
+			MappedExport.export(outputFile, props);
+			log.info("Database finished: " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+			metrics.finish(outputFile);
+			runQC(outputFile, outputFile);
+			return outputFile;
+		} finally {
+			metrics.end();
 		}
-		addEntries(map);
-		newDb.finalize();
-		System.out.println("[INFO]: Database finished.");
-		runQC(outputFile, outputFile);
 	}
 
-	private static void createDb(File outputFile) throws IDMapperException {
-		newDb = new GdbConstructImpl3(outputFile.getAbsolutePath(),new DataDerby(), DBConnector.PROP_RECREATE);
-		newDb.createGdbTables();
-		newDb.preInsert();
+	/**
+	 * Adds the gene of a row, with its taxon as attribute.
+	 */
+	private static RowHandler rows(final MappingWriter writer) {
+		return new RowHandler() {
+			public void handle(BindingSet bs) throws IDMapperException {
+				String wikidata = bs.getValue("wikidata").stringValue();
+				Xref x = new Xref(wikidata, dsWikidata);
+				writer.add(x);
+				String taxon = TaxonShards.taxon(bs);
+				if (taxon != null) writer.addAttribute(x, TaxonShards.ATTRIBUTE, taxon);
+				if (bs.getValue("ensembl") != null) {
+					String ensembl = bs.getValue("ensembl").stringValue();
+					writer.add(x, new Xref(ensembl, dsEnsembl));
+				}
+			}
+		};
+	}
+
+	private static GdbConstruct createDb(File outputFile, Properties props) throws IDMapperException {
+		GdbConstruct newDb = Utils.newDatabase(outputFile, props);
 
-		String dateStr = new SimpleDateFormat("yyyyMMdd").format(new Date());
-		newDb.setInfo("BUILDDATE", dateStr);
+		newDb.setInfo("BUILDDATE", Utils.buildDateInfo(props));
 		newDb.setInfo("DATASOURCENAME", "Wikidata");
 		newDb.setInfo("DATASOURCEVERSION", "1.0.0");
 		newDb.setInfo("SERIES", "Homo sapiens genes and proteins");
 		newDb.setInfo("DATATYPE", "GeneProduct");
+		return newDb;
 	}
 
-	private static void setupDatasources() {
+	static void setupDatasources() {
 		DataSourceTxt.init();
 		dsWikidata = DataSource.getExistingBySystemCode("Wd");
 		dsEnsembl = DataSource.getExistingBySystemCode("En");
 	}
 
-	private static String readQuery(String path) throws IOException {
-		String content = readFile(path, StandardCharsets.UTF_8);
-		return content;
-	}
-
-	private static String readFile(String path, Charset encoding) throws IOException {
-		byte[] encoded = Files.readAllBytes(Paths.get(path));
-		return new String(encoded, encoding);
-	}
-
-	private static void addEntries(Map<Xref, Set<Xref>> dbEntries) throws IDMapperException {
-		Set<Xref> addedXrefs = new HashSet<Xref>();
-		for (Xref ref : dbEntries.keySet()) {
-			Xref mainXref = ref;
-			if (addedXrefs.add(mainXref)) newDb.addGene(mainXref);
-			newDb.addLink(mainXref, mainXref);
-
-			for (Xref rightXref : dbEntries.get(mainXref)) {
-				if (!rightXref.equals(mainXref) && rightXref != null) {
-					if (addedXrefs.add(rightXref)) newDb.addGene(rightXref);
-					newDb.addLink(mainXref, rightXref);
-				}
-			}
-			System.out.println("[INFO]: Commit " + mainXref);
-			newDb.commit();
-		}
-	}
-
 	private static void runQC(File oldDB, File newDB) throws IDMapperException, SQLException{
 		BridgeQC qc = new BridgeQC (oldDB, newDB);
 		qc.run();
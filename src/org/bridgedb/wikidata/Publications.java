@@ -16,31 +16,30 @@ limitations under the License.
  **/
 package org.bridgedb.wikidata;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.Properties;
 
-import org.bridgedb.DataSource;
 import org.bridgedb.IDMapperException;
-import org.bridgedb.Xref;
 import org.bridgedb.bio.DataSourceTxt;
-import org.bridgedb.rdb.construct.DBConnector;
-import org.bridgedb.rdb.construct.DataDerby;
 import org.bridgedb.rdb.construct.GdbConstruct;
-import org.bridgedb.rdb.construct.GdbConstructImpl3;
 import org.bridgedb.tools.qc.BridgeQC;
+import org.bridgedb.wikidata.utils.BridgeOptimizer;
+import org.bridgedb.wikidata.utils.BuildMetrics;
+import org.bridgedb.wikidata.utils.Checkpoint;
+import org.bridgedb.wikidata.utils.DumpSource;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowMapping;
+import org.bridgedb.wikidata.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Retrieves the DOIs and PubMed identifiers of publications.
@@ -50,93 +49,64 @@ import org.bridgedb.tools.qc.BridgeQC;
  */
 public class Publications {
 
-	private static DataSource dsWikiData;
-	private static DataSource dsDOI;
-	private static DataSource dsPubMed;
-	private static DataSource dsPubMedCentral;
-	private static GdbConstruct newDb;
-	
+	private static final Logger log = LoggerFactory.getLogger(Publications.class);
+
 	public static void main(String[] args) throws IOException, IDMapperException, SQLException {
 		setupDatasources();
-		File outputDir = new File("output");
-		outputDir.mkdir();
-		File outputFile = new File(outputDir, "publications.bridge");
-		createDb(outputFile);
-		File releasedDb = new File(outputDir, "publications_20200510.bridge");
-		
-		BufferedReader file = new BufferedReader(new FileReader("publications.tsv"));
-        String dataRow = file.readLine(); // skip the first line
-        dataRow = file.readLine();
+		build(Utils.loadProperties("properties/publications.props", args));
+	}
 
-		Map<Xref, Set<Xref>> map = new HashMap<Xref, Set<Xref>>();
-		int counter = 0;
-		int counter2 = 0;
-		boolean finished = false;
-        while (dataRow != null && !finished) {
-        	String[] fields = dataRow.split("\\t");
-        	String wikidata = fields[0].replaceAll("\"", "");
-			Xref wdid = new Xref(wikidata, dsWikiData);
-			map.put(wdid, new HashSet<Xref>());
-			
-			if (fields.length > 1) {
-				String doi = fields[1].replaceAll("\"", "");
-				Xref doiRef = new Xref(doi, dsDOI);
-				map.get(wdid).add(doiRef);
-				if (fields.length > 2) {
-					String pmid = fields[2].replaceAll("\"", "");
-					Xref pmidRef = new Xref(pmid, dsPubMed);
-					map.get(wdid).add(pmidRef);
-					System.out.println(wdid);
-					System.out.println(doiRef);
-					System.out.println(pmidRef);
-				}
-				if (fields.length > 3 && !(fields[3].isEmpty())) {
-					String pmcid = fields[3].replaceAll("\"", "");
-					Xref pmcidRef = new Xref("PMC" + pmcid, dsPubMedCentral);
-					map.get(wdid).add(pmcidRef);
-					System.out.println(wdid);
-					System.out.println(doiRef);
-					System.out.println(pmcidRef);
-				}
-			}
-			dataRow = file.readLine();
-			counter++;
-			if (counter == 5000) {
-				counter2++;
-				System.out.println("5k mark " + counter2 + ": " + wdid);
-				counter = 0;
-				addEntries(map);
-				map.clear();
-				// finished = true;
+	/**
+	 * Builds the database described by the given properties. The data sources
+	 * must have been set up before.
+	 */
+	static File build(Properties props) throws IOException, IDMapperException, SQLException {
+		BuildMetrics metrics = BuildMetrics.start(props);
+		try {
+			File outputDir = new File("output");
+			outputDir.mkdirs();
+			File outputFile = new File(outputDir, props.getProperty("output.file") + ".bridge");
+			MappingSink newDb = Utils.createSink(createDb(outputFile, props), outputFile, props);
+			File releasedDb = new File(outputDir, "publications_20200510.bridge");
+
+			Checkpoint checkpoint = Checkpoint.fromProperties(outputFile, props);
+			MappingWriter writer = MappingWriter.fromProperties(newDb, props);
+			if (checkpoint != null) writer.setCheckpoint(checkpoint);
+			RowMapping mapping = RowMapping.fromProperties(props);
+			if (mapping == null) throw new IllegalArgumentException("mapping.main is not set");
+			if (DumpSource.isEnabled(props)) {
+				Utils.fetch(props, mapping.handler(writer), writer);
+			} else {
+				Utils.readTsv(props, mapping, writer);
 			}
+			writer.close();
+			newDb.finish();
+			if (checkpoint != null) checkpoint.delete();
+			BridgeOptimizer.optimize(outputFile, props);
+			MappedExport.export(outputFile, props);
+			log.info("Database finished: " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+			metrics.finish(outputFile);
+			runQC(releasedDb, outputFile);
+			return outputFile;
+		} finally {
+			metrics.end();
 		}
-		addEntries(map);
-		newDb.finalize();
-		file.close();
-		System.out.println("[INFO]: Database finished.");
-		runQC(releasedDb, outputFile);
 	}
 	
-	private static void createDb(File outputFile) throws IDMapperException {
-		newDb = new GdbConstructImpl3(outputFile.getAbsolutePath(),new DataDerby(), DBConnector.PROP_RECREATE);
-		newDb.createGdbTables();
-		newDb.preInsert();
+	private static GdbConstruct createDb(File outputFile, Properties props) throws IDMapperException {
+		GdbConstruct newDb = Utils.newDatabase(outputFile, props);
 		
-		String dateStr = new SimpleDateFormat("yyyyMMdd").format(new Date());
-		newDb.setInfo("BUILDDATE", dateStr);
+		newDb.setInfo("BUILDDATE", Utils.buildDateInfo(props));
 		newDb.setInfo("DATASOURCENAME", "Wikidata");
 		newDb.setInfo("DATASOURCEVERSION", "1.0.0");
 		newDb.setInfo("BRIDGEDBVERSION", "3.0.22-SNAPSHOT");
 		newDb.setInfo("SERIES", "publications");
-		newDb.setInfo("DATATYPE", "Article");	
+		newDb.setInfo("DATATYPE", "Article");
+		return newDb;	
 	}
 	
-	private static void setupDatasources() {
+	static void setupDatasources() {
 		DataSourceTxt.init();
-		dsWikiData = DataSource.getExistingBySystemCode("Wd");
-		dsDOI = DataSource.getExistingBySystemCode("Pbd");
-		dsPubMed = DataSource.getExistingBySystemCode("Pbm");
-		dsPubMedCentral = DataSource.getExistingBySystemCode("Pmc");
 	}
 
 	private static String readQuery(String path) throws IOException {
@@ -149,24 +119,6 @@ public class Publications {
 		return new String(encoded, encoding);
 	}
 
-	private static void addEntries(Map<Xref, Set<Xref>> dbEntries) throws IDMapperException {
-		Set<Xref> addedXrefs = new HashSet<Xref>();
-		for (Xref ref : dbEntries.keySet()) {
-			Xref mainXref = ref;
-			if (addedXrefs.add(mainXref)) newDb.addGene(mainXref);
-			newDb.addLink(mainXref, mainXref);
-
-			for (Xref rightXref : dbEntries.get(mainXref)) {
-				if (!rightXref.equals(mainXref) && rightXref != null) {
-					if (addedXrefs.add(rightXref)) newDb.addGene(rightXref);
-					newDb.addLink(mainXref, rightXref);
-				}
-			}
-			// System.out.println("[INFO]: Commit " + mainXref);
-			newDb.commit();
-		}
-	}
-	
 	private static void runQC(File oldDB, File newDB) throws IDMapperException, SQLException{
 		BridgeQC qc = new BridgeQC (oldDB, newDB);
 		qc.run();
@@ -0,0 +1,99 @@
+/**
+Copyright 2020-2023 Martina Kutmon
+               		Egon Willighagen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ **/
+package org.bridgedb.wikidata;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Properties;
+import java.util.concurrent.Future;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.bio.DataSourceTxt;
+import org.bridgedb.wikidata.utils.BridgeOptimizer;
+import org.bridgedb.wikidata.utils.BuildMetrics;
+import org.bridgedb.wikidata.utils.Checkpoint;
+import org.bridgedb.wikidata.utils.MappedExport;
+import org.bridgedb.wikidata.utils.MappingSink;
+import org.bridgedb.wikidata.utils.MappingWriter;
+import org.bridgedb.wikidata.utils.RowMapping;
+import org.bridgedb.wikidata.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Builds a series that is described entirely by its properties: the query
+ * in <code>query.file</code> and the {@link RowMapping} spec that turns its
+ * rows into mappings, stored under the name given by <code>series</code>.
+ *
+ * Usage: SeriesBuilder [--resume] properties/jrcmaterials.props
+ */
+public class SeriesBuilder {
+
+	private static final Logger log = LoggerFactory.getLogger(SeriesBuilder.class);
+
+	public static void main(String[] args) throws IOException, IDMapperException, SQLException {
+		if (args.length == 0) {
+			System.err.println("Usage: SeriesBuilder [--resume] file.props");
+			System.exit(1);
+		}
+		setupDatasources();
+		build(Utils.loadProperties(args[args.length - 1], args));
+	}
+
+	/**
+	 * Builds the database described by the given properties. The data sources
+	 * must have been set up before.
+	 */
+	static File build(Properties props) throws IOException, IDMapperException, SQLException {
+		RowMapping mapping = RowMapping.fromProperties(props);
+		if (mapping == null) throw new IllegalArgumentException("mapping.main is not set");
+		Future<File> previousRelease = Utils.prefetchRelease(props);
+		BuildMetrics metrics = BuildMetrics.start(props);
+		try {
+			File outputDir = new File("output");
+			outputDir.mkdirs();
+			File outputFile = new File(outputDir, props.getProperty("output.file") + ".bridge");
+			MappingSink newDb = Utils.createSink(outputFile, props.getProperty("series", props.getProperty("output.file")),
+					props.getProperty("data.type"), "1.0.0", props);
+
+			Checkpoint checkpoint = Checkpoint.fromProperties(outputFile, props);
+			MappingWriter writer = MappingWriter.fromProperties(newDb, props);
+			if (checkpoint != null) writer.setCheckpoint(checkpoint);
+			Utils.fetch(props, mapping.handler(writer), writer);
+			writer.close();
+			newDb.finish();
+			if (checkpoint != null) checkpoint.delete();
+			BridgeOptimizer.optimize(outputFile, props);
+			MappedExport.export(outputFile, props);
+			log.info("Database finished: " + outputFile.getName() + " (" + outputFile.length() + " bytes)");
+			metrics.finish(outputFile);
+
+			if (previousRelease != null) {
+				log.info("Quality control and comparison with previous version");
+				Utils.runQC(Utils.getRelease(previousRelease), outputFile, props);
+			}
+			return outputFile;
+		} finally {
+			metrics.end();
+		}
+	}
+
+	static void setupDatasources() {
+		DataSourceTxt.init();
+	}
+}
@@ -0,0 +1,290 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.bridgedb.IDMapperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Compares the links of two .bridge files. The links are compared per data
+ * source of the right-hand Xref, and the data sources are compared in
+ * parallel: both databases are read sorted by Derby and merged as streams,
+ * so memory use does not depend on the size of the databases. Reports the
+ * added, removed and unchanged links per data source, a few examples of
+ * each, and optionally writes all differences to a delta file with lines
+ * <code>+|-  idLeft  codeLeft  idRight  codeRight</code>.
+ * <p>
+ * Both files are unpacked to temporary folders first, because Derby reads
+ * deflated archives very slowly when scanning.
+ *
+ * Usage: BridgeDiff [--threads N] [--sample N] [--delta file] old.bridge new.bridge
+ */
+public class BridgeDiff {
+
+	private static final Logger log = LoggerFactory.getLogger(BridgeDiff.class);
+
+	private static final String LINKS = "SELECT idLeft, codeLeft, idRight FROM link WHERE codeRight = ?"
+			+ " ORDER BY idLeft, codeLeft, idRight";
+
+	private final int threads;
+	private final int sampleSize;
+	private final File deltaFile;
+
+	public BridgeDiff(int threads, int sampleSize, File deltaFile) {
+		this.threads = Math.max(1, threads);
+		this.sampleSize = sampleSize;
+		this.deltaFile = deltaFile;
+	}
+
+	public static void main(String[] args) throws IOException, IDMapperException {
+		int threads = Runtime.getRuntime().availableProcessors();
+		int sample = 5;
+		File delta = null;
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--threads")) threads = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--sample")) sample = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--delta")) delta = new File(args[++i]);
+			else files.add(new File(args[i]));
+		}
+		if (files.size() != 2) {
+			System.out.println("Usage: BridgeDiff [--threads N] [--sample N] [--delta file] old.bridge new.bridge");
+			return;
+		}
+		new BridgeDiff(threads, sample, delta).compare(files.get(0), files.get(1));
+	}
+
+	/**
+	 * Compares the files and prints the report. Returns the differences per
+	 * system code.
+	 */
+	public Map<String, Counts> compare(File oldFile, File newFile) throws IOException, IDMapperException {
+		long start = System.currentTimeMillis();
+		final File oldDir = Files.createTempDirectory("diff-old-").toFile();
+		final File newDir = Files.createTempDirectory("diff-new-").toFile();
+		final File partDir = Files.createTempDirectory("diff-parts-").toFile();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			BridgeFiles.unzip(oldFile, oldDir);
+			BridgeFiles.unzip(newFile, newDir);
+			TreeSet<String> codes = new TreeSet<String>();
+			codes.addAll(codes(oldDir));
+			codes.addAll(codes(newDir));
+
+			Map<String, Future<Counts>> futures = new TreeMap<String, Future<Counts>>();
+			for (final String code : codes) {
+				futures.put(code, pool.submit(new Callable<Counts>() {
+					public Counts call() throws SQLException, IOException {
+						return compare(oldDir, newDir, code, deltaFile == null ? null : new File(partDir, code + ".tsv"));
+					}
+				}));
+			}
+			Map<String, Counts> result = new TreeMap<String, Counts>();
+			for (Map.Entry<String, Future<Counts>> entry : futures.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().get());
+			}
+			if (deltaFile != null) concatenate(partDir, result.keySet(), deltaFile);
+			report(oldFile, newFile, result, System.currentTimeMillis() - start);
+			return result;
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not compare " + oldFile + " and " + newFile, e);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDMapperException("Interrupted", e);
+		} catch (ExecutionException e) {
+			throw new IDMapperException("Could not compare " + oldFile + " and " + newFile, e.getCause());
+		} finally {
+			pool.shutdownNow();
+			BridgeFiles.shutdown(oldDir);
+			BridgeFiles.shutdown(newDir);
+			BridgeFiles.deleteRecursive(oldDir);
+			BridgeFiles.deleteRecursive(newDir);
+			BridgeFiles.deleteRecursive(partDir);
+		}
+	}
+
+	private static List<String> codes(File workDir) throws SQLException {
+		List<String> codes = new ArrayList<String>();
+		Connection con = BridgeFiles.open(workDir);
+		try {
+			Statement st = con.createStatement();
+			ResultSet rs = st.executeQuery("SELECT DISTINCT codeRight FROM link");
+			while (rs.next()) codes.add(rs.getString(1));
+			rs.close();
+			st.close();
+		} finally {
+			con.close();
+		}
+		return codes;
+	}
+
+	private Counts compare(File oldDir, File newDir, String code, File part) throws SQLException, IOException {
+		Counts counts = new Counts();
+		Connection oldCon = BridgeFiles.open(oldDir);
+		Connection newCon = BridgeFiles.open(newDir);
+		Writer delta = part == null ? null
+				: new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), StandardCharsets.UTF_8), 65536);
+		try {
+			Rows oldRows = new Rows(oldCon, code);
+			Rows newRows = new Rows(newCon, code);
+			while (oldRows.row != null || newRows.row != null) {
+				int cmp = oldRows.row == null ? 1 : newRows.row == null ? -1 : compare(oldRows.row, newRows.row);
+				if (cmp == 0) {
+					counts.unchanged++;
+					oldRows.next();
+					newRows.next();
+				} else if (cmp < 0) {
+					counts.removed++;
+					difference(counts.removedSample, delta, '-', oldRows.row, code);
+					oldRows.next();
+				} else {
+					counts.added++;
+					difference(counts.addedSample, delta, '+', newRows.row, code);
+					newRows.next();
+				}
+			}
+		} finally {
+			if (delta != null) delta.close();
+			oldCon.close();
+			newCon.close();
+		}
+		return counts;
+	}
+
+	private void difference(List<String> sample, Writer delta, char sign, String[] row, String code) throws IOException {
+		String line = row[0] + "\t" + row[1] + "\t" + row[2] + "\t" + code;
+		if (sample.size() < sampleSize) sample.add(line);
+		if (delta != null) {
+			delta.write(sign);
+			delta.write('\t');
+			delta.write(line);
+			delta.write('\n');
+		}
+	}
+
+	private static int compare(String[] a, String[] b) {
+		for (int i = 0; i < a.length; i++) {
+			int cmp = compareChars(a[i], b[i]);
+			if (cmp != 0) return cmp;
+		}
+		return 0;
+	}
+
+	/**
+	 * Compares like Derby sorts VARCHAR values: the shorter value is padded
+	 * with spaces. Null sorts after all values.
+	 */
+	static int compareChars(String a, String b) {
+		if (a == null || b == null) return a == null ? (b == null ? 0 : 1) : -1;
+		int length = Math.max(a.length(), b.length());
+		for (int i = 0; i < length; i++) {
+			char ca = i < a.length() ? a.charAt(i) : ' ';
+			char cb = i < b.length() ? b.charAt(i) : ' ';
+			if (ca != cb) return ca - cb;
+		}
+		return 0;
+	}
+
+	private static void concatenate(File partDir, Iterable<String> codes, File deltaFile) throws IOException {
+		OutputStream out = new FileOutputStream(deltaFile);
+		try {
+			byte[] buffer = new byte[65536];
+			for (String code : codes) {
+				InputStream in = new FileInputStream(new File(partDir, code + ".tsv"));
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+				} finally {
+					in.close();
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private void report(File oldFile, File newFile, Map<String, Counts> result, long millis) {
+		long added = 0, removed = 0, unchanged = 0;
+		log.info("Links " + oldFile.getName() + " -> " + newFile.getName()
+				+ " (" + (millis / 1000) + " s, " + threads + " threads)");
+		log.info(String.format("  %-8s %12s %12s %12s", "code", "added", "removed", "unchanged"));
+		for (Map.Entry<String, Counts> entry : result.entrySet()) {
+			Counts counts = entry.getValue();
+			added += counts.added;
+			removed += counts.removed;
+			unchanged += counts.unchanged;
+			log.info(String.format("  %-8s %12d %12d %12d", entry.getKey(), counts.added, counts.removed,
+					counts.unchanged));
+			for (String line : counts.addedSample) log.info("      + " + line);
+			for (String line : counts.removedSample) log.info("      - " + line);
+		}
+		log.info(String.format("  %-8s %12d %12d %12d", "total", added, removed, unchanged));
+		if (deltaFile != null) log.info("Differences written to " + deltaFile);
+	}
+
+	/**
+	 * The number of links added, removed and unchanged for one data source.
+	 */
+	public static class Counts {
+
+		public long added;
+		public long removed;
+		public long unchanged;
+		final List<String> addedSample = new ArrayList<String>();
+		final List<String> removedSample = new ArrayList<String>();
+	}
+
+	/**
+	 * The links of one data source in sorted order, without duplicate rows.
+	 */
+	private static class Rows {
+
+		private final PreparedStatement ps;
+		private final ResultSet rs;
+		String[] row;
+
+		Rows(Connection con, String code) throws SQLException {
+			ps = con.prepareStatement(LINKS);
+			ps.setString(1, code);
+			rs = ps.executeQuery();
+			next();
+		}
+
+		void next() throws SQLException {
+			String[] previous = row;
+			while (rs.next()) {
+				row = new String[] { rs.getString(1), rs.getString(2), rs.getString(3) };
+				if (previous == null || compare(previous, row) != 0) return;
+			}
+			row = null;
+			rs.close();
+			ps.close();
+		}
+	}
+}
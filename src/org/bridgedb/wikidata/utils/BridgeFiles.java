@@ -0,0 +1,160 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Helpers for finished .bridge files, which are zip archives holding a Derby
+ * database in the <code>database</code> folder.
+ */
+public class BridgeFiles {
+
+	private static final Logger log = LoggerFactory.getLogger(BridgeFiles.class);
+
+	public static final String DATABASE = "database";
+
+	/**
+	 * Opens a finished .bridge file read-only, in place.
+	 */
+	public static Connection openReadOnly(File bridgeFile) throws SQLException {
+		return DriverManager.getConnection("jdbc:derby:jar:(" + bridgeFile.getAbsolutePath() + ")" + DATABASE);
+	}
+
+	/**
+	 * Opens the database in a folder created with {@link #unzip(File, File)}.
+	 */
+	public static Connection open(File workDir) throws SQLException {
+		return DriverManager.getConnection(url(workDir));
+	}
+
+	/**
+	 * Shuts down the database in the folder, so its files can be zipped.
+	 */
+	public static void shutdown(File workDir) {
+		try {
+			DriverManager.getConnection(url(workDir) + ";shutdown=true");
+		} catch (SQLException e) {
+			// Derby reports a successful shutdown with SQLState 08006
+			if (!"08006".equals(e.getSQLState())) {
+				log.warn("Could not shut down " + workDir + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private static String url(File workDir) {
+		return "jdbc:derby:" + new File(workDir, DATABASE).getAbsolutePath();
+	}
+
+	public static void unzip(File bridgeFile, File workDir) throws IOException {
+		ZipInputStream in = new ZipInputStream(new BufferedInputStream(new FileInputStream(bridgeFile)));
+		try {
+			ZipEntry entry;
+			byte[] buffer = new byte[65536];
+			String root = workDir.getCanonicalPath() + File.separator;
+			while ((entry = in.getNextEntry()) != null) {
+				File target = new File(workDir, entry.getName());
+				if (!target.getCanonicalPath().startsWith(root)) throw new IOException("Bad entry " + entry.getName());
+				if (entry.isDirectory()) {
+					target.mkdirs();
+					continue;
+				}
+				target.getParentFile().mkdirs();
+				OutputStream out = new BufferedOutputStream(new FileOutputStream(target));
+				try {
+					int read;
+					while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+				} finally {
+					out.close();
+				}
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Zips the <code>database</code> folder of workDir into a .bridge file.
+	 * With <code>stored</code> the entries are not compressed, which makes
+	 * the file bigger but faster to open.
+	 */
+	public static void zip(File workDir, File bridgeFile, boolean stored) throws IOException {
+		File tmp = new File(bridgeFile.getPath() + ".part");
+		ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+		try {
+			if (stored) out.setMethod(ZipOutputStream.STORED);
+			addToZip(out, new File(workDir, DATABASE), DATABASE + "/", stored);
+		} finally {
+			out.close();
+		}
+		if (bridgeFile.exists() && !bridgeFile.delete()) throw new IOException("Could not replace " + bridgeFile);
+		if (!tmp.renameTo(bridgeFile)) throw new IOException("Could not write " + bridgeFile);
+	}
+
+	private static void addToZip(ZipOutputStream out, File dir, String prefix, boolean stored) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		ZipEntry dirEntry = new ZipEntry(prefix);
+		if (stored) {
+			dirEntry.setSize(0);
+			dirEntry.setCrc(0);
+		}
+		out.putNextEntry(dirEntry);
+		out.closeEntry();
+		byte[] buffer = new byte[65536];
+		for (File file : files) {
+			if (file.isDirectory()) {
+				addToZip(out, file, prefix + file.getName() + "/", stored);
+				continue;
+			}
+			ZipEntry entry = new ZipEntry(prefix + file.getName());
+			if (stored) {
+				entry.setSize(file.length());
+				entry.setCrc(crc(file));
+			}
+			out.putNextEntry(entry);
+			InputStream in = new FileInputStream(file);
+			try {
+				int read;
+				while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+			} finally {
+				in.close();
+			}
+			out.closeEntry();
+		}
+	}
+
+	private static long crc(File file) throws IOException {
+		java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) crc.update(buffer, 0, read);
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+
+	public static void deleteRecursive(File file) {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) deleteRecursive(child);
+		}
+		file.delete();
+	}
+}
@@ -0,0 +1,238 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.bridgedb.IDMapperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Post-build stage for a finished .bridge file. The database is unpacked,
+ * all tables are compressed and their index statistics are refreshed, and
+ * it is packed again as a read-only jar archive. With <code>stored</code>
+ * the archive entries are not deflated, so Derby can read pages directly
+ * instead of inflating the entry up to the page, at the cost of a larger
+ * file. File size, open time and lookup time are reported before and after.
+ * <p>
+ * Enabled for a build with <code>optimize=true</code>, and
+ * <code>optimize.stored=true</code> for stored entries.
+ *
+ * Usage: BridgeOptimizer [--stored] [--lookups N] file.bridge
+ */
+public class BridgeOptimizer {
+
+	private static final Logger log = LoggerFactory.getLogger(BridgeOptimizer.class);
+
+	public static final int DEFAULT_LOOKUPS = 1000;
+
+	/** Lookups stop after this time, archives with deflated entries can be very slow. */
+	private static final long MEASURE_MILLIS = 30000;
+
+	/** The query SimpleGdbImpl3 uses to map an identifier. */
+	private static final String MAP_ID = "SELECT dest.idRight, dest.codeRight FROM link AS src JOIN link AS dest"
+			+ " ON src.idLeft = dest.idLeft and src.codeLeft = dest.codeLeft WHERE src.idRight = ? AND src.codeRight = ?";
+
+	private final boolean stored;
+	private final int lookups;
+
+	public BridgeOptimizer(boolean stored, int lookups) {
+		this.stored = stored;
+		this.lookups = lookups;
+	}
+
+	public static void main(String[] args) throws IOException, IDMapperException {
+		boolean stored = false;
+		int lookups = DEFAULT_LOOKUPS;
+		File file = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--stored")) stored = true;
+			else if (args[i].equals("--lookups")) lookups = Integer.parseInt(args[++i]);
+			else file = new File(args[i]);
+		}
+		if (file == null) {
+			System.out.println("Usage: BridgeOptimizer [--stored] [--lookups N] file.bridge");
+			return;
+		}
+		new BridgeOptimizer(stored, lookups).optimize(file);
+	}
+
+	/**
+	 * Optimizes the finished database when <code>optimize</code> is set.
+	 */
+	public static void optimize(File bridgeFile, Properties props) throws IOException, IDMapperException {
+		if (!Boolean.parseBoolean(props.getProperty("optimize", "false").trim())) return;
+		new BridgeOptimizer(Boolean.parseBoolean(props.getProperty("optimize.stored", "false").trim()),
+				Utils.getIntProperty(props, "optimize.lookups", DEFAULT_LOOKUPS)).optimize(bridgeFile);
+	}
+
+	public void optimize(File bridgeFile) throws IOException, IDMapperException {
+		File workDir = new File(bridgeFile.getPath() + ".optimize");
+		BridgeFiles.deleteRecursive(workDir);
+		try {
+			workDir.mkdirs();
+			BridgeFiles.unzip(bridgeFile, workDir);
+			List<String[]> sample = sample(workDir);
+			BridgeFiles.shutdown(workDir);
+			Measurement before = measure(bridgeFile, sample);
+
+			long start = System.currentTimeMillis();
+			Connection con = BridgeFiles.open(workDir);
+			try {
+				for (String[] table : userTables(con)) {
+					call(con, "CALL SYSCS_UTIL.SYSCS_COMPRESS_TABLE(?, ?, 1)", table[0], table[1]);
+					call(con, "CALL SYSCS_UTIL.SYSCS_UPDATE_STATISTICS(?, ?, NULL)", table[0], table[1]);
+				}
+			} finally {
+				con.close();
+			}
+			BridgeFiles.shutdown(workDir);
+			BridgeFiles.zip(workDir, bridgeFile, stored);
+			long millis = System.currentTimeMillis() - start;
+
+			Measurement after = measure(bridgeFile, sample);
+			log.info("Optimized " + bridgeFile.getName() + " in " + (millis / 1000) + " s"
+					+ (stored ? " (stored)" : ""));
+			log.info("  before: " + before);
+			log.info("  after:  " + after);
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not optimize " + bridgeFile, e);
+		} finally {
+			BridgeFiles.deleteRecursive(workDir);
+		}
+	}
+
+	private static List<String[]> userTables(Connection con) throws SQLException {
+		List<String[]> tables = new ArrayList<String[]>();
+		Statement st = con.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SELECT s.SCHEMANAME, t.TABLENAME FROM SYS.SYSTABLES t"
+					+ " JOIN SYS.SYSSCHEMAS s ON t.SCHEMAID = s.SCHEMAID WHERE t.TABLETYPE = 'T'");
+			while (rs.next()) tables.add(new String[] { rs.getString(1), rs.getString(2) });
+			rs.close();
+		} finally {
+			st.close();
+		}
+		return tables;
+	}
+
+	private static void call(Connection con, String sql, String schema, String table) throws SQLException {
+		PreparedStatement ps = con.prepareStatement(sql);
+		try {
+			ps.setString(1, schema);
+			ps.setString(2, table);
+			ps.execute();
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Picks identifiers spread over the link table to look up.
+	 */
+	private List<String[]> sample(File workDir) throws SQLException {
+		List<String[]> sample = new ArrayList<String[]>();
+		Connection con = BridgeFiles.open(workDir);
+		try {
+			Statement st = con.createStatement();
+			ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM link");
+			rs.next();
+			long links = rs.getLong(1);
+			rs.close();
+			long step = Math.max(1, links / Math.max(1, lookups));
+			rs = st.executeQuery("SELECT idRight, codeRight FROM link");
+			long row = 0;
+			while (rs.next() && sample.size() < lookups) {
+				if (row++ % step == 0) sample.add(new String[] { rs.getString(1), rs.getString(2) });
+			}
+			rs.close();
+			st.close();
+		} finally {
+			con.close();
+		}
+		return sample;
+	}
+
+	/**
+	 * Opens the archive, which is not booted, and times the first lookup
+	 * (cold) and the other sample lookups.
+	 */
+	private static Measurement measure(File bridgeFile, List<String[]> sample) throws SQLException {
+		Measurement m = new Measurement();
+		m.bytes = bridgeFile.length();
+		long begin = System.currentTimeMillis();
+		long start = System.nanoTime();
+		Connection con = BridgeFiles.openReadOnly(bridgeFile);
+		m.openMillis = (System.nanoTime() - start) / 1e6;
+		try {
+			PreparedStatement ps = con.prepareStatement(MAP_ID);
+			ps.setQueryTimeout((int) (MEASURE_MILLIS / 1000));
+			try {
+				for (int i = 0; i < sample.size(); i++) {
+					ps.setString(1, sample.get(i)[0]);
+					ps.setString(2, sample.get(i)[1]);
+					try {
+						ResultSet rs = ps.executeQuery();
+						while (rs.next()) m.results++;
+						rs.close();
+					} catch (SQLException e) {
+						if (!"XCL52".equals(e.getSQLState())) throw e;
+						if (i == 0) m.openMillis = (System.nanoTime() - start) / 1e6;
+						m.timedOut = true;
+						break;
+					}
+					if (i == 0) {
+						m.openMillis = (System.nanoTime() - start) / 1e6;
+						start = System.nanoTime();
+					} else {
+						m.lookups++;
+					}
+					if (System.currentTimeMillis() - begin > MEASURE_MILLIS) {
+						m.timedOut = i + 1 < sample.size();
+						break;
+					}
+				}
+			} finally {
+				ps.close();
+			}
+			if (m.lookups > 0) m.lookupMicros = (System.nanoTime() - start) / 1e3 / m.lookups;
+		} finally {
+			con.close();
+			shutdownReadOnly(bridgeFile);
+		}
+		return m;
+	}
+
+	private static void shutdownReadOnly(File bridgeFile) {
+		try {
+			DriverManager.getConnection("jdbc:derby:jar:(" + bridgeFile.getAbsolutePath() + ")"
+					+ BridgeFiles.DATABASE + ";shutdown=true");
+		} catch (SQLException e) {
+			// expected, Derby reports a shutdown as an exception
+		}
+	}
+
+	private static class Measurement {
+
+		long bytes;
+		double openMillis;
+		double lookupMicros;
+		int lookups;
+		long results;
+		boolean timedOut;
+
+		public String toString() {
+			return String.format("%,d bytes, open + first lookup %.1f ms, %.1f us per lookup (%d lookups, %d results)%s",
+					bytes, openMillis, lookupMicros, lookups, results, timedOut ? ", stopped after time limit" : "");
+		}
+	}
+}
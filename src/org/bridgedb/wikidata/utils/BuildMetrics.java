@@ -0,0 +1,385 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Metrics of one build: rows fetched, links written and commits, the
+ * latency of commits and queries, and the highest heap use seen. Progress
+ * is logged at most once per <code>metrics.progress.ms</code> (default
+ * 10 s), and {@link #finish(File)} writes the metrics next to the database
+ * as JSON (<code>name.metrics.json</code>) and in the Prometheus text format
+ * (<code>name.prom</code>). With <code>pipeline=true</code> the time every
+ * {@link Stage} of the {@link Pipeline} was busy, waiting for input or
+ * blocked on the next stage is reported as well.
+ * <p>
+ * A build registers its metrics with {@link #start(Properties)}, which
+ * gives it a job id of its own in <code>build.id</code>, and the classes it
+ * uses find them with {@link #of(Properties)} by that id, so builds running
+ * at the same time are counted separately, also when they write to the same
+ * <code>output.file</code>.
+ */
+public class BuildMetrics {
+
+	public static final long DEFAULT_PROGRESS_INTERVAL = 10000;
+
+	private static final Logger log = LoggerFactory.getLogger(BuildMetrics.class);
+	private static final ConcurrentHashMap<String, BuildMetrics> BUILDS = new ConcurrentHashMap<String, BuildMetrics>();
+	private static final AtomicLong JOBS = new AtomicLong();
+	private static final ObjectMapper JSON = new ObjectMapper();
+
+	/** Upper bounds of the latency buckets, in seconds. */
+	private static final double[] BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300 };
+
+	private final String build;
+	private String id;
+	private final long progressInterval;
+	private final long start = System.currentTimeMillis();
+	private final AtomicLong lastProgress = new AtomicLong(start);
+
+	private final AtomicLong rowsFetched = new AtomicLong();
+	private final AtomicLong linksWritten = new AtomicLong();
+	private final AtomicLong commits = new AtomicLong();
+	private final AtomicLong heapHighWater = new AtomicLong();
+	private final Histogram commitLatency = new Histogram();
+	private final Histogram queryLatency = new Histogram();
+	private final Map<String, Stage> stages = new LinkedHashMap<String, Stage>();
+
+	public BuildMetrics(String build, long progressInterval) {
+		this.build = build;
+		this.progressInterval = progressInterval;
+	}
+
+	/**
+	 * Registers new metrics for the build described by the properties, under
+	 * a new job id that is set as <code>build.id</code>.
+	 */
+	public static BuildMetrics start(Properties props) {
+		BuildMetrics metrics = new BuildMetrics(props.getProperty("output.file", "build").trim(),
+				Utils.getIntProperty(props, "metrics.progress.ms", (int) DEFAULT_PROGRESS_INTERVAL));
+		metrics.id = metrics.build + "#" + JOBS.incrementAndGet();
+		props.setProperty("build.id", metrics.id);
+		BUILDS.put(metrics.id, metrics);
+		return metrics;
+	}
+
+	/**
+	 * Returns the metrics of the running build with the <code>build.id</code>
+	 * of the properties, or metrics that are not registered when there is
+	 * none.
+	 */
+	public static BuildMetrics of(Properties props) {
+		String id = props.getProperty("build.id");
+		BuildMetrics metrics = id == null ? null : BUILDS.get(id);
+		if (metrics != null) return metrics;
+		return new BuildMetrics(props.getProperty("output.file", "build").trim(), DEFAULT_PROGRESS_INTERVAL);
+	}
+
+	public void rowFetched() {
+		rowsFetched(1);
+	}
+
+	public void rowsFetched(long rows) {
+		rowsFetched.addAndGet(rows);
+		progress();
+	}
+
+	public void linksWritten(long links) {
+		linksWritten.addAndGet(links);
+		progress();
+	}
+
+	public void committed(long nanos) {
+		commits.incrementAndGet();
+		commitLatency.record(nanos);
+		sampleHeap();
+	}
+
+	/**
+	 * Records the time from sending a query until its first row arrived.
+	 */
+	public void queried(long nanos) {
+		queryLatency.record(nanos);
+	}
+
+	/**
+	 * Returns the stage with the given name, creating it the first time.
+	 */
+	public Stage stage(String name) {
+		synchronized (stages) {
+			Stage stage = stages.get(name);
+			if (stage == null) {
+				stage = new Stage();
+				stages.put(name, stage);
+			}
+			return stage;
+		}
+	}
+
+	public long getRowsFetched() {
+		return rowsFetched.get();
+	}
+
+	public long getLinksWritten() {
+		return linksWritten.get();
+	}
+
+	public void sampleHeap() {
+		long used = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+		long max;
+		while (used > (max = heapHighWater.get()) && !heapHighWater.compareAndSet(max, used));
+	}
+
+	private void progress() {
+		long now = System.currentTimeMillis();
+		long last = lastProgress.get();
+		if (now - last < progressInterval || !lastProgress.compareAndSet(last, now)) return;
+		sampleHeap();
+		long seconds = Math.max(1, (now - start) / 1000);
+		log.info("{}: {} rows fetched ({} rows/s), {} links written ({} links/s), {} commits, heap {} MB", build,
+				rowsFetched.get(), rowsFetched.get() / seconds, linksWritten.get(), linksWritten.get() / seconds,
+				commits.get(), heapHighWater.get() >> 20);
+	}
+
+	/**
+	 * Unregisters the metrics, so that {@link #of(Properties)} no longer
+	 * finds them; builds call this when they end, also when they fail.
+	 */
+	public void end() {
+		if (id != null) BUILDS.remove(id, this);
+	}
+
+	/**
+	 * Logs a summary and writes the metrics files next to the database.
+	 */
+	public void finish(File outputFile) throws IOException {
+		end();
+		sampleHeap();
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		log.info("{}: {} rows fetched, {} links written, {} commits in {} s, commit p95 {} s, query p95 {} s,"
+				+ " heap high-water {} MB", build, rowsFetched.get(), linksWritten.get(), commits.get(),
+				format(seconds), format(commitLatency.quantile(0.95)), format(queryLatency.quantile(0.95)),
+				heapHighWater.get() >> 20);
+		for (Map.Entry<String, Stage> stage : stages().entrySet()) {
+			Stage times = stage.getValue();
+			double run = Math.max(1, times.runNanos()) / 100.0;
+			log.info("{}: stage {} ran {} s, busy {}%, waiting for input {}%, blocked on output {}%", build,
+					stage.getKey(), format(times.runNanos() / 1e9), Math.round(times.busyNanos() / run),
+					Math.round(times.waiting.get() / run), Math.round(times.blocked.get() / run));
+		}
+
+		String base = outputFile.getPath();
+		if (base.endsWith(".bridge")) base = base.substring(0, base.length() - ".bridge".length());
+		write(new File(base + ".metrics.json"), json(seconds));
+		write(new File(base + ".prom"), prometheus(seconds));
+	}
+
+	String json(double seconds) throws IOException {
+		Map<String, Object> json = new LinkedHashMap<String, Object>();
+		json.put("build", build);
+		if (id != null) json.put("id", id);
+		json.put("durationSeconds", round(seconds));
+		json.put("rowsFetched", rowsFetched.get());
+		json.put("linksWritten", linksWritten.get());
+		json.put("commits", commits.get());
+		json.put("heapHighWaterBytes", heapHighWater.get());
+		json.put("commitLatencySeconds", commitLatency.json());
+		json.put("queryLatencySeconds", queryLatency.json());
+		Map<String, Stage> stages = stages();
+		if (!stages.isEmpty()) {
+			Map<String, Object> stageSeconds = new LinkedHashMap<String, Object>();
+			for (Map.Entry<String, Stage> stage : stages.entrySet()) stageSeconds.put(stage.getKey(), stage.getValue().json());
+			json.put("stageSeconds", stageSeconds);
+		}
+		return JSON.writerWithDefaultPrettyPrinter().writeValueAsString(json) + "\n";
+	}
+
+	String prometheus(double seconds) {
+		String label = "{build=\"" + build.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+		StringBuilder prom = new StringBuilder();
+		gauge(prom, "bridgedb_build_duration_seconds", "Duration of the build.", label, format(seconds));
+		counter(prom, "bridgedb_build_rows_fetched_total", "Rows read from query results and input files.", label,
+				rowsFetched.get());
+		counter(prom, "bridgedb_build_links_written_total", "Links written to the database.", label,
+				linksWritten.get());
+		counter(prom, "bridgedb_build_commits_total", "Database commits.", label, commits.get());
+		gauge(prom, "bridgedb_build_heap_high_water_bytes", "Highest heap use seen during the build.", label,
+				String.valueOf(heapHighWater.get()));
+		commitLatency.prometheus(prom, "bridgedb_build_commit_seconds", "Time to commit the database.", label);
+		queryLatency.prometheus(prom, "bridgedb_build_query_seconds", "Time from sending a query to its first row.",
+				label);
+		Map<String, Stage> stages = stages();
+		if (!stages.isEmpty()) {
+			String name = "bridgedb_build_stage_seconds";
+			prom.append("# HELP ").append(name).append(" Time a pipeline stage was busy, waiting for input or blocked.\n");
+			prom.append("# TYPE ").append(name).append(" gauge\n");
+			for (Map.Entry<String, Stage> stage : stages.entrySet()) {
+				Stage times = stage.getValue();
+				String stageLabel = label + ",stage=\"" + stage.getKey() + "\",state=\"";
+				prom.append(name).append(stageLabel).append("busy\"} ").append(format(times.busyNanos() / 1e9)).append('\n');
+				prom.append(name).append(stageLabel).append("waiting\"} ").append(format(times.waiting.get() / 1e9)).append('\n');
+				prom.append(name).append(stageLabel).append("blocked\"} ").append(format(times.blocked.get() / 1e9)).append('\n');
+			}
+		}
+		return prom.toString();
+	}
+
+	private static void counter(StringBuilder prom, String name, String help, String label, long value) {
+		prom.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		prom.append("# TYPE ").append(name).append(" counter\n");
+		prom.append(name).append(label).append("} ").append(value).append('\n');
+	}
+
+	private static void gauge(StringBuilder prom, String name, String help, String label, String value) {
+		prom.append("# HELP ").append(name).append(' ').append(help).append('\n');
+		prom.append("# TYPE ").append(name).append(" gauge\n");
+		prom.append(name).append(label).append("} ").append(value).append('\n');
+	}
+
+	private static void write(File file, String content) throws IOException {
+		Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8);
+		try {
+			out.write(content);
+		} finally {
+			out.close();
+		}
+	}
+
+	private Map<String, Stage> stages() {
+		synchronized (stages) {
+			return new LinkedHashMap<String, Stage>(stages);
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.3f", value);
+	}
+
+	/**
+	 * The value rounded to milliseconds, for the JSON file.
+	 */
+	private static double round(double value) {
+		return Math.round(value * 1000) / 1000.0;
+	}
+
+	/**
+	 * Latencies counted in fixed buckets, with their sum and maximum.
+	 */
+	private static class Histogram {
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS.length + 1);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong sumNanos = new AtomicLong();
+		private final AtomicLong maxNanos = new AtomicLong();
+
+		void record(long nanos) {
+			double seconds = nanos / 1e9;
+			int bucket = 0;
+			while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) bucket++;
+			counts.incrementAndGet(bucket);
+			count.incrementAndGet();
+			sumNanos.addAndGet(nanos);
+			long max;
+			while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos));
+		}
+
+		/**
+		 * Returns the upper bound of the bucket holding the quantile, or the
+		 * maximum when that is lower.
+		 */
+		double quantile(double q) {
+			long total = count.get();
+			if (total == 0) return 0;
+			double max = maxNanos.get() / 1e9;
+			long seen = 0;
+			for (int i = 0; i < BUCKETS.length; i++) {
+				seen += counts.get(i);
+				if (seen >= Math.ceil(q * total)) return Math.min(BUCKETS[i], max);
+			}
+			return max;
+		}
+
+		Map<String, Object> json() {
+			Map<String, Object> json = new LinkedHashMap<String, Object>();
+			json.put("count", count.get());
+			json.put("sum", round(sumNanos.get() / 1e9));
+			json.put("max", round(maxNanos.get() / 1e9));
+			json.put("p50", round(quantile(0.5)));
+			json.put("p95", round(quantile(0.95)));
+			json.put("p99", round(quantile(0.99)));
+			return json;
+		}
+
+		void prometheus(StringBuilder prom, String name, String help, String label) {
+			prom.append("# HELP ").append(name).append(' ').append(help).append('\n');
+			prom.append("# TYPE ").append(name).append(" histogram\n");
+			long cumulative = 0;
+			for (int i = 0; i <= BUCKETS.length; i++) {
+				cumulative += counts.get(i);
+				String le = i < BUCKETS.length ? String.valueOf(BUCKETS[i]) : "+Inf";
+				prom.append(name).append("_bucket").append(label).append(",le=\"").append(le).append("\"} ")
+						.append(cumulative).append('\n');
+			}
+			prom.append(name).append("_sum").append(label).append("} ").append(format(sumNanos.get() / 1e9)).append('\n');
+			prom.append(name).append("_count").append(label).append("} ").append(count.get()).append('\n');
+		}
+	}
+
+	/**
+	 * The time a stage of the build ran, and how much of it was spent waiting
+	 * for input from the stage before and blocked on a full queue to the next.
+	 * The rest of the time the stage was busy.
+	 */
+	public static class Stage {
+
+		private final AtomicLong run = new AtomicLong();
+		private final AtomicLong waiting = new AtomicLong();
+		private final AtomicLong blocked = new AtomicLong();
+
+		public void ran(long nanos) {
+			run.addAndGet(nanos);
+		}
+
+		public void waited(long nanos) {
+			waiting.addAndGet(nanos);
+		}
+
+		public void blocked(long nanos) {
+			blocked.addAndGet(nanos);
+		}
+
+		long runNanos() {
+			return run.get();
+		}
+
+		long busyNanos() {
+			return Math.max(0, run.get() - waiting.get() - blocked.get());
+		}
+
+		Map<String, Object> json() {
+			Map<String, Object> json = new LinkedHashMap<String, Object>();
+			json.put("run", round(run.get() / 1e9));
+			json.put("busy", round(busyNanos() / 1e9));
+			json.put("waiting", round(waiting.get() / 1e9));
+			json.put("blocked", round(blocked.get() / 1e9));
+			return json;
+		}
+	}
+}
@@ -0,0 +1,208 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.rdb.construct.GdbConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes mappings with Derby's bulk import instead of one insert per row.
+ * The tables and info values are created by the {@link GdbConstruct}, so the
+ * schema is the same as for {@link GdbSink}. The rows are collected in
+ * {@link SortedRuns}, written as one sorted CSV file per table and loaded with
+ * <code>SYSCS_UTIL.SYSCS_IMPORT_DATA</code>; the indexes are created afterwards
+ * by <code>finalize()</code>.
+ * <p>
+ * As the import stops at the first row it cannot store, rows with a value
+ * longer than its column are left out before, and logged, like the inserts
+ * of a full build skip them.
+ * <p>
+ * DataDerby builds the database in a folder at the output path until it is
+ * finalized, and the import uses a second connection to that folder. The
+ * tables and info values are committed on the connection of the
+ * {@link GdbConstruct} first, as the import would otherwise wait for its
+ * locks until it times out.
+ */
+public class BulkSink implements MappingSink {
+
+	private static final Logger log = LoggerFactory.getLogger(BulkSink.class);
+
+	private final GdbConstruct newDb;
+	private final File outputFile;
+	private final File workDir;
+	private final SortedRuns genes;
+	private final SortedRuns links;
+	private final SortedRuns attributes;
+
+	public BulkSink(GdbConstruct newDb, File outputFile, int runSize) {
+		this.newDb = newDb;
+		this.outputFile = outputFile;
+		this.workDir = new File(outputFile.getPath() + ".bulk");
+		genes = new SortedRuns(workDir, "datanode", runSize);
+		links = new SortedRuns(workDir, "link", runSize);
+		attributes = new SortedRuns(workDir, "attribute", runSize);
+	}
+
+	public void setInfo(String key, String value) throws IDMapperException {
+		newDb.setInfo(key, value);
+	}
+
+	public void addGene(Xref xref) throws IDMapperException {
+		add(genes, SortedRuns.key(xref.getId(), code(xref)));
+	}
+
+	public void addAttribute(Xref xref, String name, String value) throws IDMapperException {
+		add(attributes, SortedRuns.key(xref.getId(), code(xref), name, value));
+	}
+
+	public void addLink(Xref left, Xref right) throws IDMapperException {
+		add(links, SortedRuns.key(left.getId(), code(left), right.getId(), code(right)));
+	}
+
+	/**
+	 * Nothing is written to the database before {@link #finish()}.
+	 */
+	public void commit() {
+	}
+
+	public void finish() throws IDMapperException {
+		long start = System.currentTimeMillis();
+		newDb.commit();
+		try {
+			Connection con = DriverManager.getConnection("jdbc:derby:" + outputFile.getAbsolutePath());
+			try {
+				con.setAutoCommit(false);
+				long rows = load(con, genes, "DATANODE", "ID,CODE", 2);
+				rows += load(con, links, "LINK", "IDLEFT,CODELEFT,IDRIGHT,CODERIGHT", 4);
+				rows += load(con, attributes, "ATTRIBUTE", "ID,CODE,ATTRNAME,ATTRVALUE", 4);
+				con.commit();
+				log.info("Bulk loaded " + rows + " rows in "
+						+ ((System.currentTimeMillis() - start) / 1000) + " s");
+			} finally {
+				con.close();
+			}
+		} catch (SQLException e) {
+			throw new IDMapperException("Bulk load into " + outputFile + " failed", e);
+		} catch (IOException e) {
+			throw new IDMapperException("Bulk load into " + outputFile + " failed", e);
+		} finally {
+			genes.close();
+			links.close();
+			attributes.close();
+			BridgeFiles.deleteRecursive(workDir);
+		}
+		newDb.finalize();
+	}
+
+	private static void add(SortedRuns runs, String key) throws IDMapperException {
+		try {
+			runs.add(key);
+		} catch (IOException e) {
+			throw new IDMapperException("Could not spill rows to disk", e);
+		}
+	}
+
+	/**
+	 * Writes the sorted keys as CSV and imports them into the table.
+	 */
+	private long load(Connection con, SortedRuns runs, String table, String columns, int columnCount)
+			throws IOException, SQLException {
+		workDir.mkdirs();
+		File csv = new File(workDir, table.toLowerCase() + ".csv");
+		int[] sizes = columnSizes(con, table, columns.split(","));
+		long rows = 0;
+		long skipped = 0;
+		SortedRuns.Reader reader = runs.read();
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(csv), StandardCharsets.UTF_8), 1 << 16);
+		try {
+			String key;
+			while ((key = reader.next()) != null) {
+				String[] values = SortedRuns.split(key, columnCount);
+				if (!fits(values, sizes)) {
+					if (skipped++ < 10) {
+						log.warn("Skipping " + table + " row with a value too long for its column: "
+								+ key.replace(SortedRuns.SEPARATOR, '|'));
+					}
+					continue;
+				}
+				for (int i = 0; i < columnCount; i++) {
+					if (i > 0) out.write(',');
+					writeField(out, values[i]);
+				}
+				out.write('\n');
+				rows++;
+			}
+		} finally {
+			out.close();
+			reader.close();
+		}
+		if (skipped > 0) log.warn("Skipped " + skipped + " " + table + " rows with a value too long for its column");
+		if (rows > 0) {
+			PreparedStatement ps = con.prepareStatement(
+					"CALL SYSCS_UTIL.SYSCS_IMPORT_DATA(NULL, ?, ?, NULL, ?, NULL, NULL, 'UTF-8', 1)");
+			try {
+				ps.setString(1, table);
+				ps.setString(2, columns);
+				ps.setString(3, csv.getAbsolutePath());
+				ps.execute();
+			} finally {
+				ps.close();
+			}
+		}
+		csv.delete();
+		return rows;
+	}
+
+	/**
+	 * The maximum length of each of the columns, 0 when it has none.
+	 */
+	private static int[] columnSizes(Connection con, String table, String[] columns) throws SQLException {
+		int[] sizes = new int[columns.length];
+		ResultSet rs = con.getMetaData().getColumns(null, null, table, null);
+		try {
+			while (rs.next()) {
+				for (int i = 0; i < columns.length; i++) {
+					if (columns[i].equalsIgnoreCase(rs.getString("COLUMN_NAME"))) sizes[i] = rs.getInt("COLUMN_SIZE");
+				}
+			}
+		} finally {
+			rs.close();
+		}
+		return sizes;
+	}
+
+	private static boolean fits(String[] values, int[] sizes) {
+		for (int i = 0; i < values.length; i++) {
+			if (sizes[i] > 0 && values[i].length() > sizes[i]) return false;
+		}
+		return true;
+	}
+
+	private static void writeField(Writer out, String value) throws IOException {
+		out.write('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"') out.write('"');
+			out.write(c);
+		}
+		out.write('"');
+	}
+
+	private static String code(Xref xref) {
+		return xref.getDataSource().getSystemCode();
+	}
+}
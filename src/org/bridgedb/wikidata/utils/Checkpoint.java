@@ -0,0 +1,213 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Properties;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Records how far the input of a build has been committed to the database,
+ * in a sidecar file next to the .bridge file (<code>name.bridge.checkpoint</code>),
+ * so a build that died can continue from there with <code>--resume</code>.
+ * The position is given by the builder: a line number of the input file, or
+ * the slices of a partitioned query that are done.
+ * <p>
+ * Every checkpoint is written as pending before the commit and confirmed
+ * after it, with the number of links the database has by then. When the build
+ * died in between, the number of links in the partial database tells whether
+ * the commit happened.
+ * <p>
+ * Enabled with <code>checkpoint=true</code>; <code>resume=true</code> (or
+ * <code>--resume</code>) continues the partial database of an earlier run.
+ * Only <code>build.mode=full</code> writes a database that can be continued,
+ * so other modes are rejected. A checkpoint without a committed position is
+ * not resumed: the build starts again.
+ */
+public class Checkpoint {
+
+	private static final Logger log = LoggerFactory.getLogger(Checkpoint.class);
+
+	private final File file;
+	private final File database;
+	private final boolean resuming;
+	private String position;
+	private long links;
+
+	private Checkpoint(File outputFile, boolean resuming) {
+		this.file = sidecar(outputFile);
+		this.database = outputFile.getAbsoluteFile();
+		this.resuming = resuming;
+	}
+
+	/**
+	 * Returns the checkpoint of the build, or null when checkpoints are not
+	 * enabled. When the build does not resume, an old checkpoint is removed.
+	 *
+	 * @throws IllegalArgumentException when the build mode is not <code>full</code>
+	 */
+	public static Checkpoint fromProperties(File outputFile, Properties props) {
+		if (!isEnabled(props)) return null;
+		boolean resuming = canResume(outputFile, props);
+		if (!resuming) sidecar(outputFile).delete();
+		return new Checkpoint(outputFile, resuming);
+	}
+
+	/**
+	 * True when the build is asked to resume and a partial database and its
+	 * checkpoint with a committed position exist.
+	 */
+	public static boolean canResume(File outputFile, Properties props) {
+		if (!isEnabled(props) || !isResumeRequested(props)
+				|| !sidecar(outputFile).isFile() || !outputFile.isDirectory()) return false;
+		try {
+			Properties saved = Utils.loadProperties(sidecar(outputFile).getPath());
+			return saved.getProperty("position") != null || saved.getProperty("pending.position") != null;
+		} catch (IOException e) {
+			log.warn("Could not read checkpoint " + sidecar(outputFile) + ", building again", e);
+			return false;
+		}
+	}
+
+	static boolean isResumeRequested(Properties props) {
+		return Boolean.parseBoolean(props.getProperty("resume", "false").trim());
+	}
+
+	private static boolean isEnabled(Properties props) {
+		if (!Boolean.parseBoolean(props.getProperty("checkpoint", "false").trim())) return false;
+		String mode = props.getProperty("build.mode", "full").trim();
+		if (!mode.matches("full|")) {
+			throw new IllegalArgumentException("checkpoint can only be used with build.mode=full, not " + mode);
+		}
+		return true;
+	}
+
+	static File sidecar(File outputFile) {
+		return new File(outputFile.getPath() + ".checkpoint");
+	}
+
+	public boolean isResuming() {
+		return resuming;
+	}
+
+	/**
+	 * The input position committed last, or null to start from the beginning.
+	 */
+	public String getPosition() {
+		return position;
+	}
+
+	public long getLinks() {
+		return links;
+	}
+
+	/**
+	 * Reads the checkpoint of the partial database and adds the Xrefs that are
+	 * already in it to the first set, and those with a link to themselves,
+	 * the main Xrefs, to the second.
+	 */
+	void restore(XrefSet addedXrefs, XrefSet writtenMains) throws IDMapperException {
+		try {
+			Properties saved = Utils.loadProperties(file.getPath());
+			Connection con = DriverManager.getConnection("jdbc:derby:" + database.getPath());
+			try {
+				Statement st = con.createStatement();
+				ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM link");
+				rs.next();
+				long inDatabase = rs.getLong(1);
+				rs.close();
+				long savedLinks = Long.parseLong(saved.getProperty("links", "0"));
+				if (saved.getProperty("pending.position") != null && savedLinks != inDatabase
+						&& inDatabase == Long.parseLong(saved.getProperty("pending.links"))) {
+					position = saved.getProperty("pending.position");
+					links = inDatabase;
+				} else if (inDatabase == savedLinks) {
+					position = saved.getProperty("position");
+					links = inDatabase;
+				} else {
+					throw new IDMapperException("The partial database " + database + " has " + inDatabase
+							+ " links, which does not match its checkpoint; build it again without resume");
+				}
+				rs = st.executeQuery("SELECT id, code FROM datanode");
+				while (rs.next()) {
+					addedXrefs.add(new Xref(rs.getString(1), DataSource.getExistingBySystemCode(rs.getString(2))));
+				}
+				rs.close();
+				rs = st.executeQuery("SELECT idLeft, codeLeft FROM link WHERE idLeft = idRight AND codeLeft = codeRight");
+				while (rs.next()) {
+					writtenMains.add(new Xref(rs.getString(1), DataSource.getExistingBySystemCode(rs.getString(2))));
+				}
+				rs.close();
+				st.close();
+			} finally {
+				con.close();
+			}
+			save(position, links, null, 0);
+			log.info("Resuming " + database.getName() + " after " + (position == null ? "the start" : position)
+					+ " with " + links + " links and " + addedXrefs.size() + " identifiers");
+		} catch (IOException e) {
+			throw new IDMapperException("Could not read checkpoint " + file, e);
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not read the partial database " + database, e);
+		}
+	}
+
+	/**
+	 * Records the position before the database is committed.
+	 */
+	void pending(String pendingPosition, long pendingLinks) throws IDMapperException {
+		save(position, links, pendingPosition, pendingLinks);
+	}
+
+	/**
+	 * Confirms the pending position after the commit.
+	 */
+	void committed(String committedPosition, long committedLinks) throws IDMapperException {
+		position = committedPosition;
+		links = committedLinks;
+		save(position, links, null, 0);
+	}
+
+	/**
+	 * Removes the checkpoint once the database is finished.
+	 */
+	public void delete() {
+		file.delete();
+	}
+
+	private void save(String savedPosition, long savedLinks, String pendingPosition, long pendingLinks)
+			throws IDMapperException {
+		Properties props = new Properties();
+		if (savedPosition != null) props.setProperty("position", savedPosition);
+		props.setProperty("links", String.valueOf(savedLinks));
+		if (pendingPosition != null) {
+			props.setProperty("pending.position", pendingPosition);
+			props.setProperty("pending.links", String.valueOf(pendingLinks));
+		}
+		File tmp = new File(file.getPath() + ".part");
+		try {
+			FileOutputStream out = new FileOutputStream(tmp);
+			try {
+				props.store(out, null);
+				out.getFD().sync();
+			} finally {
+				out.close();
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			throw new IDMapperException("Could not write checkpoint " + file, e);
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package org.bridgedb.wikidata.utils;
+
+import java.util.Properties;
+
+import org.bridgedb.IDMapperException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides when the links written to a {@link MappingSink} are committed:
+ * after every N links or every T milliseconds, whichever comes first.
+ * Configured with the <code>commit.links</code> and <code>commit.interval.ms</code>
+ * properties. Written links and commit latency are counted in the
+ * {@link BuildMetrics} of the build.
+ */
+public class CommitPolicy {
+
+	private static final Logger log = LoggerFactory.getLogger(CommitPolicy.class);
+
+	public static final int DEFAULT_LINKS = 50000;
+	public static final long DEFAULT_INTERVAL = 10000;
+
+	private final MappingSink newDb;
+	private final int maxLinks;
+	private final long maxInterval;
+	private final BuildMetrics metrics;
+
+	private final long start = System.currentTimeMillis();
+	private long lastCommit = start;
+	private int pendingLinks = 0;
+	private long totalLinks = 0;
+	private int commits = 0;
+	private boolean deferred = false;
+
+	public CommitPolicy(MappingSink newDb, int maxLinks, long maxInterval) {
+		this(newDb, maxLinks, maxInterval, new BuildMetrics("build", BuildMetrics.DEFAULT_PROGRESS_INTERVAL));
+	}
+
+	public CommitPolicy(MappingSink newDb, int maxLinks, long maxInterval, BuildMetrics metrics) {
+		this.newDb = newDb;
+		this.maxLinks = Math.max(1, maxLinks);
+		this.maxInterval = maxInterval;
+		this.metrics = metrics;
+	}
+
+	public static CommitPolicy fromProperties(MappingSink newDb, Properties props) {
+		return new CommitPolicy(newDb,
+				Utils.getIntProperty(props, "commit.links", DEFAULT_LINKS),
+				Utils.getIntProperty(props, "commit.interval.ms", (int) DEFAULT_INTERVAL),
+				BuildMetrics.of(props));
+	}
+
+	/**
+	 * Reports links that have been written since the last call, and commits
+	 * if either limit has been reached.
+	 */
+	public void linksWritten(int links) throws IDMapperException {
+		pendingLinks += links;
+		totalLinks += links;
+		metrics.linksWritten(links);
+		if (!deferred && isDue()) commit();
+	}
+
+	/**
+	 * True when either limit has been reached.
+	 */
+	public boolean isDue() {
+		return isDue(0);
+	}
+
+	/**
+	 * True when either limit has been reached, counting also the links that
+	 * are waiting to be written.
+	 */
+	public boolean isDue(long waitingLinks) {
+		return pendingLinks + waitingLinks >= maxLinks || System.currentTimeMillis() - lastCommit >= maxInterval;
+	}
+
+	/**
+	 * Leaves committing to the caller, which commits at its checkpoints when
+	 * {@link #isDue()}.
+	 */
+	void deferToCheckpoints() {
+		deferred = true;
+	}
+
+	/**
+	 * Commits again whenever either limit has been reached.
+	 */
+	void stopDeferring() {
+		deferred = false;
+	}
+
+	public void commit() throws IDMapperException {
+		long start = System.nanoTime();
+		newDb.commit();
+		metrics.committed(System.nanoTime() - start);
+		commits++;
+		pendingLinks = 0;
+		lastCommit = System.currentTimeMillis();
+	}
+
+	/**
+	 * Commits the remaining links and reports the write throughput.
+	 * Must be called before <code>finish()</code> on the database.
+	 */
+	public void finish() throws IDMapperException {
+		commit();
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		log.info("Wrote " + totalLinks + " links in " + commits + " commits, "
+				+ (millis / 1000) + " s (" + (totalLinks * 1000 / millis) + " links/s)");
+	}
+
+	public long getTotalLinks() {
+		return totalLinks;
+	}
+}
@@ -0,0 +1,336 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Updates a copy of the previous release instead of building the database
+ * from scratch. The mappings of the new build are collected, compared with
+ * the datanode, link and attribute tables of the previous release, and only
+ * the rows that were added or removed are written. The info values set on
+ * this sink replace the ones of the previous release.
+ */
+public class DeltaBuild implements MappingSink {
+
+	private static final Logger log = LoggerFactory.getLogger(DeltaBuild.class);
+
+	private static final int BATCH = 10000;
+
+	private final File workDir;
+	private final File outputFile;
+	private final File runDir;
+	private final int runSize;
+	private final SortedRuns genes;
+	private final SortedRuns links;
+	private final SortedRuns attributes;
+	private final Map<String, String> info = new LinkedHashMap<String, String>();
+
+	/**
+	 * @param previous the .bridge file of the previous release
+	 * @param outputFile where the updated .bridge file is written
+	 * @param runSize number of rows per table kept in memory before they are
+	 *            sorted and spilled to disk
+	 */
+	public DeltaBuild(File previous, File outputFile, int runSize) throws IOException {
+		this.outputFile = outputFile;
+		this.runSize = runSize;
+		this.workDir = new File(outputFile.getPath() + ".delta");
+		this.runDir = new File(outputFile.getPath() + ".delta-runs");
+		BridgeFiles.deleteRecursive(workDir);
+		BridgeFiles.deleteRecursive(runDir);
+		workDir.mkdirs();
+		BridgeFiles.unzip(previous, workDir);
+		genes = new SortedRuns(runDir, "datanode", runSize);
+		links = new SortedRuns(runDir, "link", runSize);
+		attributes = new SortedRuns(runDir, "attribute", runSize);
+	}
+
+	public void setInfo(String key, String value) {
+		info.put(key.toUpperCase(), value);
+	}
+
+	public void addGene(Xref xref) throws IDMapperException {
+		add(genes, SortedRuns.key(xref.getId(), code(xref)));
+	}
+
+	public void addAttribute(Xref xref, String name, String value) throws IDMapperException {
+		add(attributes, SortedRuns.key(xref.getId(), code(xref), name, value));
+	}
+
+	public void addLink(Xref left, Xref right) throws IDMapperException {
+		add(links, SortedRuns.key(left.getId(), code(left), right.getId(), code(right)));
+	}
+
+	private static void add(SortedRuns runs, String key) throws IDMapperException {
+		try {
+			runs.add(key);
+		} catch (IOException e) {
+			throw new IDMapperException("Could not spill rows to disk", e);
+		}
+	}
+
+	/**
+	 * Nothing is written before {@link #finish()}.
+	 */
+	public void commit() {
+	}
+
+	public void finish() throws IDMapperException {
+		long start = System.currentTimeMillis();
+		try {
+			Connection con = BridgeFiles.open(workDir);
+			try {
+				con.setAutoCommit(false);
+				int[] geneChanges = apply(con, genes, "datanode", "id", "code");
+				int[] linkChanges = apply(con, links, "link", "idLeft", "codeLeft", "idRight", "codeRight");
+				int[] attributeChanges = apply(con, attributes, "attribute", "id", "code", "attrname", "attrvalue");
+				updateInfo(con);
+				con.commit();
+				if (geneChanges[1] + linkChanges[1] + attributeChanges[1] > 0) {
+					compress(con, "datanode");
+					compress(con, "link");
+					compress(con, "attribute");
+					con.commit();
+				}
+				log.info("Delta build: datanodes +" + geneChanges[0] + "/-" + geneChanges[1]
+						+ ", links +" + linkChanges[0] + "/-" + linkChanges[1]
+						+ ", attributes +" + attributeChanges[0] + "/-" + attributeChanges[1]
+						+ " in " + ((System.currentTimeMillis() - start) / 1000) + " s");
+			} catch (SQLException e) {
+				con.rollback();
+				throw e;
+			} finally {
+				con.close();
+			}
+			BridgeFiles.shutdown(workDir);
+			BridgeFiles.zip(workDir, outputFile, false);
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not update " + outputFile, e);
+		} catch (IOException e) {
+			throw new IDMapperException("Could not write " + outputFile, e);
+		} finally {
+			genes.close();
+			links.close();
+			attributes.close();
+			BridgeFiles.deleteRecursive(workDir);
+			BridgeFiles.deleteRecursive(runDir);
+		}
+	}
+
+	/**
+	 * Deletes the rows of the table that are not in the new keys and inserts
+	 * the new keys that are not in the table. Both sides are sorted in runs on
+	 * disk and compared as they are merged. Returns the number of inserted and
+	 * deleted keys.
+	 */
+	private int[] apply(Connection con, SortedRuns newKeys, String table, String... columns)
+			throws SQLException, IOException {
+		SortedRuns oldKeys = new SortedRuns(runDir, table + "-old", runSize);
+		try {
+			Statement select = con.createStatement();
+			try {
+				ResultSet rs = select.executeQuery("SELECT " + join(columns, ", ") + " FROM " + table);
+				String[] values = new String[columns.length];
+				while (rs.next()) {
+					for (int i = 0; i < columns.length; i++) values[i] = rs.getString(i + 1);
+					oldKeys.add(SortedRuns.key(values));
+				}
+				rs.close();
+			} finally {
+				select.close();
+			}
+
+			Changes changes = new Changes(con, table, columns);
+			SortedRuns.Reader oldReader = oldKeys.read();
+			SortedRuns.Reader newReader = newKeys.read();
+			try {
+				String o = oldReader.next();
+				String n = newReader.next();
+				while (o != null || n != null) {
+					int cmp = o == null ? 1 : n == null ? -1 : o.compareTo(n);
+					if (cmp < 0) {
+						changes.delete(o);
+						o = oldReader.next();
+					} else if (cmp > 0) {
+						changes.insert(n);
+						n = newReader.next();
+					} else {
+						o = oldReader.next();
+						n = newReader.next();
+					}
+				}
+				changes.flush();
+			} finally {
+				oldReader.close();
+				newReader.close();
+				changes.close();
+			}
+			return new int[] { changes.inserted, changes.deleted };
+		} finally {
+			oldKeys.close();
+			newKeys.close();
+		}
+	}
+
+	/**
+	 * Writes the inserted and deleted keys of one table in batches. Empty
+	 * values are written as NULL; as <code>col = ?</code> never matches NULL,
+	 * deletes use one statement per combination of empty columns, with
+	 * <code>IS NULL</code> for those.
+	 */
+	private static class Changes {
+
+		private final Connection con;
+		private final String table;
+		private final String[] columns;
+		private final PreparedStatement insert;
+		private final Map<Integer, PreparedStatement> deletes = new HashMap<Integer, PreparedStatement>();
+		private final Map<PreparedStatement, Integer> pending = new HashMap<PreparedStatement, Integer>();
+		int inserted = 0;
+		int deleted = 0;
+
+		Changes(Connection con, String table, String[] columns) throws SQLException {
+			this.con = con;
+			this.table = table;
+			this.columns = columns;
+			String[] markers = new String[columns.length];
+			for (int i = 0; i < columns.length; i++) markers[i] = "?";
+			insert = con.prepareStatement("INSERT INTO " + table + " (" + join(columns, ", ") + ") VALUES ("
+					+ join(markers, ", ") + ")");
+		}
+
+		void insert(String key) throws SQLException {
+			String[] values = SortedRuns.split(key, columns.length);
+			for (int i = 0; i < values.length; i++) {
+				if (values[i].isEmpty()) insert.setNull(i + 1, Types.VARCHAR);
+				else insert.setString(i + 1, values[i]);
+			}
+			add(insert);
+			inserted++;
+		}
+
+		void delete(String key) throws SQLException {
+			String[] values = SortedRuns.split(key, columns.length);
+			int empty = 0;
+			for (int i = 0; i < values.length; i++) {
+				if (values[i].isEmpty()) empty |= 1 << i;
+			}
+			PreparedStatement ps = deletes.get(empty);
+			if (ps == null) {
+				String[] conditions = new String[columns.length];
+				for (int i = 0; i < columns.length; i++) {
+					conditions[i] = (empty & 1 << i) != 0
+							? "(" + columns[i] + " IS NULL OR " + columns[i] + " = '')"
+							: columns[i] + " = ?";
+				}
+				ps = con.prepareStatement("DELETE FROM " + table + " WHERE " + join(conditions, " AND "));
+				deletes.put(empty, ps);
+			}
+			int parameter = 1;
+			for (int i = 0; i < values.length; i++) {
+				if ((empty & 1 << i) == 0) ps.setString(parameter++, values[i]);
+			}
+			add(ps);
+			deleted++;
+		}
+
+		private void add(PreparedStatement ps) throws SQLException {
+			ps.addBatch();
+			Integer count = pending.get(ps);
+			int n = count == null ? 1 : count + 1;
+			if (n == BATCH) {
+				ps.executeBatch();
+				n = 0;
+			}
+			pending.put(ps, n);
+		}
+
+		/**
+		 * Executes what is left of the batches, the deletes first.
+		 */
+		void flush() throws SQLException {
+			for (PreparedStatement ps : deletes.values()) execute(ps);
+			execute(insert);
+		}
+
+		private void execute(PreparedStatement ps) throws SQLException {
+			Integer count = pending.get(ps);
+			if (count != null && count > 0) ps.executeBatch();
+			pending.put(ps, 0);
+		}
+
+		void close() throws SQLException {
+			for (PreparedStatement ps : deletes.values()) ps.close();
+			insert.close();
+		}
+	}
+
+	/**
+	 * The info table has a single row with one column per key; keys the
+	 * previous release did not have are added as new columns.
+	 */
+	private void updateInfo(Connection con) throws SQLException {
+		Set<String> existing = new HashSet<String>();
+		Statement st = con.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SELECT * FROM info");
+			ResultSetMetaData meta = rs.getMetaData();
+			for (int i = 1; i <= meta.getColumnCount(); i++) existing.add(meta.getColumnName(i).toUpperCase());
+			rs.close();
+			for (String key : info.keySet()) {
+				if (!existing.contains(key)) st.executeUpdate("ALTER TABLE info ADD COLUMN " + key + " VARCHAR(50)");
+			}
+		} finally {
+			st.close();
+		}
+		for (Map.Entry<String, String> entry : info.entrySet()) {
+			PreparedStatement ps = con.prepareStatement("UPDATE info SET " + entry.getKey() + " = ?");
+			try {
+				ps.setString(1, entry.getValue());
+				ps.executeUpdate();
+			} finally {
+				ps.close();
+			}
+		}
+	}
+
+	private static void compress(Connection con, String table) throws SQLException {
+		PreparedStatement ps = con.prepareStatement("CALL SYSCS_UTIL.SYSCS_COMPRESS_TABLE(CURRENT SCHEMA, ?, 1)");
+		try {
+			ps.setString(1, table.toUpperCase());
+			ps.execute();
+		} finally {
+			ps.close();
+		}
+	}
+
+	private static String code(Xref xref) {
+		return xref.getDataSource().getSystemCode();
+	}
+
+	private static String join(String[] values, String separator) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(separator);
+			sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+}
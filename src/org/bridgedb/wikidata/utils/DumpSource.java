@@ -0,0 +1,482 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.bridgedb.IDMapperException;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.ValueFactory;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.impl.MapBindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the rows of a build from a local Wikidata dump instead of the query
+ * service: the truthy N-Triples dump (<code>latest-truthy.nt</code>) or the
+ * JSON dump (<code>latest-all.json</code>), plain, gzip or bzip2 compressed.
+ * Every item that has the required properties gives the same rows as the
+ * query would: the combinations of the values of the column properties,
+ * with the Q-id as <code>wikidata</code> and unbound columns for properties
+ * the item does not have. The rows go to the {@link RowHandler} of the
+ * builder on the calling thread.
+ * <p>
+ * One thread decompresses and reads lines, and cuts them into batches
+ * between items; the batches are parsed on <code>dump.threads</code> threads
+ * and handed over in file order. Decompression itself is not split over
+ * cores in the JVM; <code>dump.decompress.command</code> runs an external
+ * decompressor that is, such as <code>lbzip2 -dc</code> or
+ * <code>pigz -dc</code>, with the file as its last argument.
+ * <p>
+ * Enabled with <code>source=dump</code>. <code>dump.file</code> is the dump,
+ * <code>dump.format</code> is <code>nt</code> or <code>json</code> (default:
+ * from the file name), <code>dump.columns</code> maps variables to
+ * properties (<code>ensembl=P594,taxon=P703</code>), where <code>label</code>
+ * stands for the labels of the item in all languages, and
+ * <code>dump.require</code> lists the properties an item must have, with
+ * alternatives separated by <code>|</code> (<code>P7718|P3937</code>; default:
+ * the property of the first column). A requirement can also name the item
+ * a property must point to (<code>P31=Q47461491</code>). In the N-Triples
+ * dump the statements of an item must be on consecutive lines, as in the
+ * dumps Wikidata publishes.
+ *
+ * Usage: DumpSource file.props [dump] prints the rows as TSV.
+ */
+public class DumpSource {
+
+	private static final Logger log = LoggerFactory.getLogger(DumpSource.class);
+
+	public static final int DEFAULT_BATCH_LINES = 20000;
+
+	private static final String ENTITY = "http://www.wikidata.org/entity/";
+	private static final String DIRECT = "http://www.wikidata.org/prop/direct/";
+	private static final String RDFS_LABEL = "http://www.w3.org/2000/01/rdf-schema#label";
+	private static final String LABEL = "label";
+	private static final String ITEM = "<" + ENTITY + "Q";
+	private static final ObjectMapper JSON = new ObjectMapper();
+	private static final List<BindingSet> END = new ArrayList<BindingSet>();
+
+	private final File file;
+	private final boolean json;
+	private final Map<String, String> columns;
+	private final List<Set<String>> required;
+	private final Set<String> properties = new LinkedHashSet<String>();
+	private final String[] needles;
+	private final int threads;
+	private final int batchLines;
+	private final String command;
+	private final ValueFactory vf = SimpleValueFactory.getInstance();
+
+	/**
+	 * @param columns variable and property pairs, like <code>ensembl=P594,taxon=P703</code>
+	 * @param require the properties an item must have, like <code>P7718|P3937,P31=Q47461491</code>
+	 */
+	public DumpSource(File file, boolean json, String columns, String require, int threads, int batchLines,
+			String command) {
+		this.file = file;
+		this.json = json;
+		this.columns = new LinkedHashMap<String, String>();
+		for (String column : columns.split(",")) {
+			if (column.trim().equals("")) continue;
+			String[] pair = column.split("=");
+			if (pair.length != 2) throw new IllegalArgumentException("dump.columns needs variable=property: " + column);
+			this.columns.put(pair[0].trim(), pair[1].trim());
+			properties.add(pair[1].trim());
+		}
+		if (this.columns.isEmpty()) throw new IllegalArgumentException("dump.columns is not set");
+		if (require == null || require.trim().equals("")) require = this.columns.values().iterator().next();
+		this.required = new ArrayList<Set<String>>();
+		for (String group : require.split(",")) {
+			Set<String> any = new LinkedHashSet<String>();
+			for (String alternative : group.split("\\|")) {
+				any.add(alternative.trim());
+				properties.add(alternative.split("=")[0].trim());
+			}
+			required.add(any);
+		}
+		// a JSON line that mentions none of the first requirement is skipped
+		List<String> needles = new ArrayList<String>();
+		for (String alternative : required.get(0)) {
+			int value = alternative.indexOf('=');
+			if (value >= 0) needles.add("\"" + alternative.substring(value + 1).trim() + "\"");
+			else if (alternative.equals(LABEL)) needles.add("\"labels\"");
+			else needles.add("\"" + alternative + "\"");
+		}
+		this.needles = needles.toArray(new String[needles.size()]);
+		this.threads = Math.max(1, threads);
+		this.batchLines = Math.max(1, batchLines);
+		this.command = command;
+	}
+
+	public static boolean isEnabled(Properties props) {
+		return props.getProperty("source", "query").trim().equals("dump");
+	}
+
+	public static DumpSource fromProperties(Properties props) {
+		String path = props.getProperty("dump.file");
+		if (path == null) throw new IllegalArgumentException("dump.file is not set");
+		File file = new File(path.trim());
+		String format = props.getProperty("dump.format", file.getName().contains(".json") ? "json" : "nt").trim();
+		String command = props.getProperty("dump.decompress.command", "").trim();
+		return new DumpSource(file, format.equals("json"), props.getProperty("dump.columns", ""),
+				props.getProperty("dump.require"),
+				Utils.getIntProperty(props, "dump.threads", Runtime.getRuntime().availableProcessors()),
+				Utils.getIntProperty(props, "dump.batch.lines", DEFAULT_BATCH_LINES),
+				command.equals("") ? null : command);
+	}
+
+	public static void main(String[] args) throws IOException, IDMapperException {
+		if (args.length < 1) {
+			System.out.println("Usage: DumpSource file.props [dump]");
+			return;
+		}
+		Properties props = Utils.loadProperties(args[0]);
+		if (args.length > 1) props.setProperty("dump.file", args[1]);
+		final DumpSource source = fromProperties(props);
+		System.out.println(source.header());
+		source.fetch(new RowHandler() {
+			public void handle(BindingSet bs) {
+				System.out.println(source.tsv(bs));
+			}
+		}, new BuildMetrics("dump", BuildMetrics.DEFAULT_PROGRESS_INTERVAL));
+	}
+
+	/**
+	 * The names of the columns of the rows, as the header of a TSV file.
+	 */
+	public String header() {
+		StringBuilder line = new StringBuilder("wikidata");
+		for (String variable : columns.keySet()) line.append('\t').append(variable);
+		return line.toString();
+	}
+
+	/**
+	 * A row as a line of a TSV file, with empty fields for unbound columns.
+	 */
+	public String tsv(BindingSet bs) {
+		StringBuilder line = new StringBuilder(bs.getValue("wikidata").stringValue());
+		for (String variable : columns.keySet()) {
+			line.append('\t');
+			if (bs.getValue(variable) != null) line.append(bs.getValue(variable).stringValue());
+		}
+		return line.toString();
+	}
+
+	/**
+	 * Reads the dump and hands the rows to the handler, counting them in the
+	 * metrics.
+	 */
+	public void fetch(RowHandler handler, BuildMetrics metrics) throws IOException, IDMapperException {
+		long start = System.currentTimeMillis();
+		final ExecutorService parsers = Executors.newFixedThreadPool(threads);
+		final ExecutorService reading = Executors.newSingleThreadExecutor();
+		final BlockingQueue<Future<List<BindingSet>>> batches
+				= new ArrayBlockingQueue<Future<List<BindingSet>>>(threads * 2);
+		Future<Long> reader = reading.submit(new Callable<Long>() {
+			public Long call() throws IOException, InterruptedException {
+				try {
+					return read(parsers, batches);
+				} finally {
+					batches.put(CompletableFuture.completedFuture(END));
+				}
+			}
+		});
+		long rows = 0;
+		try {
+			while (true) {
+				List<BindingSet> batch = batches.take().get();
+				if (batch == END) break;
+				for (BindingSet bs : batch) {
+					metrics.rowFetched();
+					handler.handle(bs);
+				}
+				rows += batch.size();
+			}
+			long lines = reader.get();
+			log.info("Read " + lines + " lines of " + file.getName() + " into " + rows + " rows in "
+					+ ((System.currentTimeMillis() - start) / 1000) + " s");
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDMapperException("Interrupted while reading " + file, e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IDMapperException("Could not read " + file, e.getCause());
+		} finally {
+			reader.cancel(true);
+			reading.shutdownNow();
+			parsers.shutdownNow();
+		}
+	}
+
+	/**
+	 * Reads the lines and submits them in batches that end between items.
+	 * Returns the number of lines read.
+	 */
+	private long read(ExecutorService parsers, BlockingQueue<Future<List<BindingSet>>> batches)
+			throws IOException, InterruptedException {
+		Process process = null;
+		InputStream in;
+		if (command != null) {
+			List<String> args = new ArrayList<String>(Arrays.asList(command.split("\\s+")));
+			args.add(file.getPath());
+			process = new ProcessBuilder(args).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+			in = process.getInputStream();
+		} else {
+			in = open(file);
+		}
+		long lines = 0;
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 1 << 20);
+			List<String> batch = new ArrayList<String>(batchLines + 64);
+			String last = null;
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				if (batch.size() >= batchLines && (json || !line.startsWith(last))) {
+					batches.put(parsers.submit(parse(batch)));
+					batch = new ArrayList<String>(batchLines + 64);
+				}
+				batch.add(line);
+				// the subject of the last line, once the batch may end
+				if (!json && batch.size() >= batchLines) last = subject(line);
+			}
+			if (!batch.isEmpty()) batches.put(parsers.submit(parse(batch)));
+			if (process != null && process.waitFor() != 0) {
+				throw new IOException("'" + command + "' failed with exit code " + process.exitValue());
+			}
+		} finally {
+			in.close();
+			if (process != null) process.destroy();
+		}
+		return lines;
+	}
+
+	private static InputStream open(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) return new GZIPInputStream(in, 1 << 16);
+		if (file.getName().endsWith(".bz2")) return new BZip2CompressorInputStream(new BufferedInputStream(in, 1 << 16), true);
+		return in;
+	}
+
+	/**
+	 * Returns the subject of a triple up to and including its closing bracket.
+	 */
+	private static String subject(String line) {
+		return line.substring(0, line.indexOf('>') + 1);
+	}
+
+	private Callable<List<BindingSet>> parse(final List<String> lines) {
+		return new Callable<List<BindingSet>>() {
+			public List<BindingSet> call() throws IOException {
+				List<BindingSet> rows = new ArrayList<BindingSet>();
+				if (json) {
+					for (String line : lines) parseJson(line, rows);
+				} else {
+					parseTriples(lines, rows);
+				}
+				return rows;
+			}
+		};
+	}
+
+	/**
+	 * Parses N-Triples lines, collecting the values of the properties of
+	 * one item until the subject changes.
+	 */
+	void parseTriples(List<String> lines, List<BindingSet> rows) {
+		String item = null;
+		Map<String, List<Value>> values = new HashMap<String, List<Value>>();
+		for (String line : lines) {
+			if (!line.startsWith(ITEM)) continue;
+			int subjectEnd = line.indexOf('>');
+			String subject = line.substring(ENTITY.length() + 1, subjectEnd);
+			if (!subject.equals(item)) {
+				if (item != null) emit(item, values, rows);
+				item = subject;
+				values.clear();
+			}
+			int predicate = line.indexOf('<', subjectEnd);
+			if (predicate < 0) continue;
+			if (line.startsWith(RDFS_LABEL, predicate + 1)) {
+				if (!properties.contains(LABEL)) continue;
+				Value label = parseObject(line, line.indexOf('>', predicate) + 1);
+				// the query takes STR() of the label
+				if (label != null) add(values, LABEL, vf.createLiteral(label.stringValue()));
+				continue;
+			}
+			if (!line.startsWith(DIRECT, predicate + 1)) continue;
+			int predicateEnd = line.indexOf('>', predicate);
+			String property = line.substring(predicate + 1 + DIRECT.length(), predicateEnd);
+			if (!properties.contains(property)) continue;
+			Value value = parseObject(line, predicateEnd + 1);
+			if (value != null) add(values, property, value);
+		}
+		if (item != null) emit(item, values, rows);
+	}
+
+	private Value parseObject(String line, int from) {
+		int i = from;
+		while (i < line.length() && line.charAt(i) == ' ') i++;
+		if (i >= line.length()) return null;
+		if (line.charAt(i) == '<') return vf.createIRI(line.substring(i + 1, line.indexOf('>', i)));
+		if (line.charAt(i) != '"') return null;
+		StringBuilder label = new StringBuilder();
+		for (i++; i < line.length() && line.charAt(i) != '"'; i++) {
+			char c = line.charAt(i);
+			if (c != '\\') {
+				label.append(c);
+				continue;
+			}
+			c = line.charAt(++i);
+			switch (c) {
+			case 't': label.append('\t'); break;
+			case 'b': label.append('\b'); break;
+			case 'n': label.append('\n'); break;
+			case 'r': label.append('\r'); break;
+			case 'f': label.append('\f'); break;
+			case 'u':
+				label.append((char) Integer.parseInt(line.substring(i + 1, i + 5), 16));
+				i += 4;
+				break;
+			case 'U':
+				label.appendCodePoint(Integer.parseInt(line.substring(i + 1, i + 9), 16));
+				i += 8;
+				break;
+			default: label.append(c);
+			}
+		}
+		i++;
+		if (i < line.length() && line.charAt(i) == '@') {
+			int end = line.indexOf(' ', i);
+			return vf.createLiteral(label.toString(), line.substring(i + 1, end < 0 ? line.length() : end));
+		}
+		return vf.createLiteral(label.toString());
+	}
+
+	/**
+	 * Parses one line of the JSON dump, an entity followed by a comma. Lines
+	 * that do not mention any of the properties are not parsed.
+	 */
+	void parseJson(String line, List<BindingSet> rows) throws IOException {
+		boolean mentioned = false;
+		for (String needle : needles) {
+			if (line.contains(needle)) {
+				mentioned = true;
+				break;
+			}
+		}
+		if (!mentioned) return;
+		String entity = line.trim();
+		if (entity.endsWith(",")) entity = entity.substring(0, entity.length() - 1);
+		JsonNode node = JSON.readTree(entity);
+		if (!"item".equals(node.path("type").asText())) return;
+		JsonNode claims = node.path("claims");
+		Map<String, List<Value>> values = new HashMap<String, List<Value>>();
+		if (properties.contains(LABEL)) {
+			for (JsonNode label : node.path("labels")) add(values, LABEL, vf.createLiteral(label.path("value").asText()));
+		}
+		for (String property : properties) {
+			JsonNode statements = claims.path(property);
+			boolean preferred = false;
+			for (JsonNode statement : statements) preferred |= "preferred".equals(statement.path("rank").asText());
+			for (JsonNode statement : statements) {
+				String rank = statement.path("rank").asText();
+				// the truthy statements: the preferred ones, or else the normal ones
+				if (!rank.equals(preferred ? "preferred" : "normal")) continue;
+				JsonNode snak = statement.path("mainsnak");
+				if (!"value".equals(snak.path("snaktype").asText())) continue;
+				JsonNode datavalue = snak.path("datavalue");
+				Value value;
+				if ("wikibase-entityid".equals(datavalue.path("type").asText())) {
+					value = vf.createIRI(ENTITY + datavalue.path("value").path("id").asText());
+				} else if ("url".equals(snak.path("datatype").asText())) {
+					value = vf.createIRI(datavalue.path("value").asText());
+				} else {
+					value = vf.createLiteral(datavalue.path("value").asText());
+				}
+				add(values, property, value);
+			}
+		}
+		emit(node.path("id").asText(), values, rows);
+	}
+
+	private static void add(Map<String, List<Value>> values, String property, Value value) {
+		List<Value> list = values.get(property);
+		if (list == null) {
+			list = new ArrayList<Value>(2);
+			values.put(property, list);
+		}
+		if (!list.contains(value)) list.add(value);
+	}
+
+	/**
+	 * True when the item has the property, or with <code>P31=Q47461491</code>
+	 * when the property points to that item.
+	 */
+	private boolean has(Map<String, List<Value>> values, String requirement) {
+		int value = requirement.indexOf('=');
+		if (value < 0) return values.containsKey(requirement);
+		List<Value> list = values.get(requirement.substring(0, value).trim());
+		return list != null && list.contains(vf.createIRI(ENTITY + requirement.substring(value + 1).trim()));
+	}
+
+	/**
+	 * Adds the rows of one item when it has the required properties: every
+	 * combination of the values of the columns.
+	 */
+	private void emit(String item, Map<String, List<Value>> values, List<BindingSet> rows) {
+		for (Set<String> any : required) {
+			boolean found = false;
+			for (String alternative : any) found |= has(values, alternative);
+			if (!found) return;
+		}
+		String[] variables = columns.keySet().toArray(new String[columns.size()]);
+		List<List<Value>> columnValues = new ArrayList<List<Value>>();
+		for (String variable : variables) columnValues.add(values.get(columns.get(variable)));
+		int[] index = new int[variables.length];
+		Value wikidata = vf.createLiteral(item);
+		while (true) {
+			MapBindingSet bs = new MapBindingSet(variables.length + 1);
+			bs.addBinding("wikidata", wikidata);
+			for (int i = 0; i < variables.length; i++) {
+				if (columnValues.get(i) != null) bs.addBinding(variables[i], columnValues.get(i).get(index[i]));
+			}
+			rows.add(bs);
+			int i = variables.length - 1;
+			while (i >= 0 && (columnValues.get(i) == null || ++index[i] == columnValues.get(i).size())) {
+				index[i] = 0;
+				i--;
+			}
+			if (i < 0) return;
+		}
+	}
+}
@@ -0,0 +1,41 @@
+package org.bridgedb.wikidata.utils;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.rdb.construct.GdbConstruct;
+
+/**
+ * Writes mappings row by row with a {@link GdbConstruct}.
+ */
+public class GdbSink implements MappingSink {
+
+	private final GdbConstruct newDb;
+
+	public GdbSink(GdbConstruct newDb) {
+		this.newDb = newDb;
+	}
+
+	public void setInfo(String key, String value) throws IDMapperException {
+		newDb.setInfo(key, value);
+	}
+
+	public void addGene(Xref xref) throws IDMapperException {
+		newDb.addGene(xref);
+	}
+
+	public void addAttribute(Xref xref, String name, String value) throws IDMapperException {
+		newDb.addAttribute(xref, name, value);
+	}
+
+	public void addLink(Xref left, Xref right) throws IDMapperException {
+		newDb.addLink(left, right);
+	}
+
+	public void commit() throws IDMapperException {
+		newDb.commit();
+	}
+
+	public void finish() throws IDMapperException {
+		newDb.finalize();
+	}
+}
@@ -0,0 +1,212 @@
+package org.bridgedb.wikidata.utils;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapper;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+
+/**
+ * Answers lookups from an index of a finished database where every Xref has
+ * a number, and the links are stored twice as adjacency lists: from each
+ * main Xref to its Xrefs, and back. Subclasses give access to the index;
+ * the lookups are the same for all of them.
+ * <p>
+ * {@link #indexOf(String, String)} and {@link #map(int, int[])} allocate
+ * nothing, for callers that keep their own buffers; the {@link IDMapper}
+ * methods answer the same as the Derby database the index was made from.
+ */
+public abstract class IndexedIDMapper implements IDMapper {
+
+	/** The number of each data source by system code. */
+	protected final Map<String, Integer> sourceIndex = new HashMap<String, Integer>();
+
+	private final String name;
+
+	private final ThreadLocal<int[]> buffers = new ThreadLocal<int[]>() {
+		protected int[] initialValue() {
+			return new int[64];
+		}
+	};
+
+	private volatile boolean connected = true;
+
+	/**
+	 * @param name what the index was read from, for errors
+	 */
+	protected IndexedIDMapper(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * The number of Xrefs in the index.
+	 */
+	public abstract int size();
+
+	/**
+	 * Returns the number of the Xref, or -1 when it is not in the index.
+	 */
+	public abstract int indexOf(String id, String code);
+
+	/**
+	 * True when the Xref was added as an identifier, as opposed to only
+	 * appearing in a link.
+	 */
+	public abstract boolean exists(int node);
+
+	public abstract String getId(int node);
+
+	/**
+	 * Returns the number of the data source of the Xref.
+	 */
+	public abstract int getSource(int node);
+
+	public abstract Xref getXref(int node);
+
+	/**
+	 * The Xref of the number, whose data source number is known already.
+	 */
+	protected abstract Xref getXref(int node, int source);
+
+	/** The start of the Xrefs of a main Xref in {@link #forward(int)}; node + 1 gives the end. */
+	protected abstract int forwardOffset(int node);
+
+	protected abstract int forward(int index);
+
+	/** The start of the main Xrefs of an Xref in {@link #reverse(int)}; node + 1 gives the end. */
+	protected abstract int reverseOffset(int node);
+
+	protected abstract int reverse(int index);
+
+	/**
+	 * Writes the numbers of the Xrefs the Xref maps to, itself included, into
+	 * the buffer and returns how many there are. When that is more than the
+	 * buffer holds, the buffer is filled as far as it goes and the call
+	 * should be repeated with a buffer of at least the returned size.
+	 */
+	public int map(int node, int[] out) {
+		int n = 0;
+		int from = reverseOffset(node);
+		int to = reverseOffset(node + 1);
+		boolean merge = to - from > 1;
+		for (int r = from; r < to; r++) {
+			int main = reverse(r);
+			int end = forwardOffset(main + 1);
+			for (int f = forwardOffset(main); f < end; f++) {
+				int target = forward(f);
+				if (merge && contains(out, Math.min(n, out.length), target)) continue;
+				if (n < out.length) out[n] = target;
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static boolean contains(int[] values, int length, int value) {
+		for (int i = 0; i < length; i++) {
+			if (values[i] == value) return true;
+		}
+		return false;
+	}
+
+	private int indexOf(Xref xref) {
+		if (xref.getDataSource() == null) return -1;
+		return indexOf(xref.getId(), xref.getDataSource().getSystemCode());
+	}
+
+	/**
+	 * The data sources to keep per source number, or null to keep all.
+	 */
+	private boolean[] targets(DataSource... tgtDataSources) {
+		if (tgtDataSources.length == 0) return null;
+		boolean[] keep = new boolean[sourceIndex.size()];
+		for (DataSource ds : tgtDataSources) {
+			Integer source = ds == null ? null : sourceIndex.get(ds.getSystemCode());
+			if (source != null) keep[source] = true;
+		}
+		return keep;
+	}
+
+	private Set<Xref> mapID(Xref ref, boolean[] keep) {
+		int node = indexOf(ref);
+		if (node < 0) return new HashSet<Xref>();
+		int[] targets = buffers.get();
+		int n = map(node, targets);
+		if (n > targets.length) {
+			targets = new int[Integer.highestOneBit(n) << 1];
+			buffers.set(targets);
+			n = map(node, targets);
+		}
+		Set<Xref> result = new HashSet<Xref>(n * 2);
+		for (int i = 0; i < n; i++) {
+			int source = getSource(targets[i]);
+			if (keep == null || keep[source]) result.add(getXref(targets[i], source));
+		}
+		return result;
+	}
+
+	private void checkConnected() throws IDMapperException {
+		if (!connected) throw new IDMapperException(name + " is closed");
+	}
+
+	@Override
+	public Set<Xref> mapID(Xref ref, DataSource... tgtDataSources) throws IDMapperException {
+		checkConnected();
+		return mapID(ref, targets(tgtDataSources));
+	}
+
+	/**
+	 * Maps each Xref, with the target data sources resolved once for the
+	 * whole collection; Xrefs without mappings are left out of the result.
+	 */
+	@Override
+	public Map<Xref, Set<Xref>> mapID(Collection<Xref> srcXrefs, DataSource... tgtDataSources)
+			throws IDMapperException {
+		checkConnected();
+		boolean[] keep = targets(tgtDataSources);
+		Map<Xref, Set<Xref>> result = new HashMap<Xref, Set<Xref>>(srcXrefs.size() * 2);
+		for (Xref ref : srcXrefs) {
+			Set<Xref> mapped = mapID(ref, keep);
+			if (!mapped.isEmpty()) result.put(ref, mapped);
+		}
+		return result;
+	}
+
+	@Override
+	public boolean xrefExists(Xref xref) throws IDMapperException {
+		checkConnected();
+		int node = indexOf(xref);
+		return node >= 0 && exists(node);
+	}
+
+	/**
+	 * Finds identifiers containing the text, ignoring case, by a scan of all
+	 * identifiers.
+	 */
+	@Override
+	public Set<Xref> freeSearch(String text, int limit) throws IDMapperException {
+		checkConnected();
+		Set<Xref> result = new HashSet<Xref>();
+		String lower = text.toLowerCase();
+		int size = size();
+		for (int node = 0; node < size && result.size() < limit; node++) {
+			if (exists(node) && getId(node).toLowerCase().contains(lower)) result.add(getXref(node));
+		}
+		return result;
+	}
+
+	@Override
+	public void close() throws IDMapperException {
+		connected = false;
+	}
+
+	@Override
+	public boolean isConnected() {
+		return connected;
+	}
+}
@@ -0,0 +1,463 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Post-build stage that exports a finished .bridge file to a memory-mapped
+ * mapping file (<code>name.bmap</code>) for {@link MappedIDMapper}. The
+ * database is unpacked and read sorted by Derby, so the export does not hold
+ * the identifiers in memory. Afterwards, Xrefs spread over the link table
+ * are looked up in both, and the export fails when any answer differs from
+ * the one the database gives.
+ * <p>
+ * Enabled for a build with <code>export.mapped=true</code>;
+ * <code>export.mapped.verify</code> sets the number of Xrefs compared
+ * (default 1000, 0 to skip).
+ *
+ * Usage: MappedExport [--verify N] file.bridge [file.bmap]
+ */
+public class MappedExport {
+
+	private static final Logger log = LoggerFactory.getLogger(MappedExport.class);
+
+	public static final int DEFAULT_VERIFY = 1000;
+
+	/** The queries SimpleGdbImpl3 uses to map an identifier. */
+	private static final String MAP_ID = "SELECT dest.idRight, dest.codeRight FROM link AS src JOIN link AS dest"
+			+ " ON src.idLeft = dest.idLeft and src.codeLeft = dest.codeLeft WHERE src.idRight = ? AND src.codeRight = ?";
+	private static final String MAP_ID_WITH_CODE = MAP_ID + " AND dest.codeRight = ?";
+	private static final String EXISTS = "SELECT id FROM datanode WHERE id = ? AND code = ?";
+
+	private static final String XREFS = "SELECT id, code, 1 FROM datanode"
+			+ " UNION SELECT idLeft, codeLeft, 0 FROM link UNION SELECT idRight, codeRight, 0 FROM link"
+			+ " ORDER BY 2, 1, 3";
+	private static final String FORWARD = "SELECT idLeft, codeLeft, idRight, codeRight FROM link"
+			+ " ORDER BY codeLeft, idLeft, codeRight, idRight";
+	private static final String REVERSE = "SELECT idRight, codeRight, idLeft, codeLeft FROM link"
+			+ " ORDER BY codeRight, idRight, codeLeft, idLeft";
+
+	private final int verify;
+
+	public MappedExport(int verify) {
+		this.verify = verify;
+	}
+
+	public static void main(String[] args) throws IOException, IDMapperException {
+		int verify = DEFAULT_VERIFY;
+		List<File> files = new ArrayList<File>();
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--verify")) verify = Integer.parseInt(args[++i]);
+			else files.add(new File(args[i]));
+		}
+		if (files.isEmpty()) {
+			System.out.println("Usage: MappedExport [--verify N] file.bridge [file.bmap]");
+			return;
+		}
+		new MappedExport(verify).export(files.get(0), files.size() > 1 ? files.get(1) : mappedFile(files.get(0)));
+	}
+
+	/**
+	 * Exports the finished database when <code>export.mapped</code> is set.
+	 */
+	public static void export(File bridgeFile, Properties props) throws IOException, IDMapperException {
+		if (!Boolean.parseBoolean(props.getProperty("export.mapped", "false").trim())) return;
+		new MappedExport(Utils.getIntProperty(props, "export.mapped.verify", DEFAULT_VERIFY))
+				.export(bridgeFile, mappedFile(bridgeFile));
+	}
+
+	/**
+	 * The mapping file next to the .bridge file.
+	 */
+	public static File mappedFile(File bridgeFile) {
+		String base = bridgeFile.getPath();
+		if (base.endsWith(".bridge")) base = base.substring(0, base.length() - ".bridge".length());
+		return new File(base + ".bmap");
+	}
+
+	public void export(File bridgeFile, File mappedFile) throws IOException, IDMapperException {
+		long start = System.currentTimeMillis();
+		File workDir = new File(bridgeFile.getPath() + ".export");
+		File tmp = new File(mappedFile.getPath() + ".part");
+		BridgeFiles.deleteRecursive(workDir);
+		try {
+			workDir.mkdirs();
+			BridgeFiles.unzip(bridgeFile, workDir);
+			Connection con = BridgeFiles.open(workDir);
+			try {
+				Sections sections = new Sections(workDir);
+				writeXrefs(con, sections);
+				File xrefFile = new File(workDir, "xrefs.bmap");
+				sections.write(xrefFile);
+
+				// the links are numbered by looking up their Xrefs in the file so far
+				MappedIDMapper xrefs = new MappedIDMapper(xrefFile);
+				int links = writeLinks(con, FORWARD, xrefs, sections, MappedIDMapper.FORWARD_OFFSETS,
+						MappedIDMapper.FORWARD);
+				writeLinks(con, REVERSE, xrefs, sections, MappedIDMapper.REVERSE_OFFSETS, MappedIDMapper.REVERSE);
+				xrefs.close();
+				sections.links = links;
+				sections.write(tmp);
+				log.info("Exported " + bridgeFile.getName() + " to " + mappedFile.getName() + " in "
+						+ (System.currentTimeMillis() - start) / 1000 + " s (" + sections.nodes + " identifiers, "
+						+ links + " links, " + tmp.length() + " bytes)");
+
+				if (verify > 0) verify(con, new MappedIDMapper(tmp), verify);
+				Files.move(tmp.toPath(), mappedFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				con.close();
+			}
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not export " + bridgeFile, e);
+		} finally {
+			BridgeFiles.shutdown(workDir);
+			BridgeFiles.deleteRecursive(workDir);
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Numbers the Xrefs of the datanode and link tables in the order of
+	 * system code and identifier, and writes the data sources, the
+	 * identifiers and which Xrefs are in the datanode table.
+	 */
+	private static void writeXrefs(Connection con, Sections sections) throws SQLException, IOException,
+			IDMapperException {
+		DataOutputStream sources = sections.open(MappedIDMapper.SOURCES);
+		DataOutputStream offsets = sections.open(MappedIDMapper.ID_OFFSETS);
+		DataOutputStream ids = sections.open(MappedIDMapper.IDS);
+		DataOutputStream exists = sections.open(MappedIDMapper.EXISTS);
+		Statement st = con.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(XREFS);
+			String lastId = null;
+			String lastCode = null;
+			int node = -1;
+			long bits = 0;
+			long idBytes = 0;
+			List<String> codes = new ArrayList<String>();
+			List<Integer> firsts = new ArrayList<Integer>();
+			while (rs.next()) {
+				String id = rs.getString(1);
+				String code = rs.getString(2);
+				boolean inDatanode = rs.getInt(3) == 1;
+				if (id.equals(lastId) && code.equals(lastCode)) {
+					// the same Xref from the datanode table, which sorts last
+					if (inDatanode) bits |= 1L << (node & 63);
+					continue;
+				}
+				int c = lastCode == null ? 1 : code.compareTo(lastCode);
+				if (c < 0 || c == 0 && id.compareTo(lastId) < 0) {
+					throw new IDMapperException("The database does not sort " + code + ":" + id + " after "
+							+ lastCode + ":" + lastId);
+				}
+				if (c > 0) {
+					codes.add(code);
+					firsts.add(node + 1);
+				}
+				if (node >= 0 && (node & 63) == 63) {
+					exists.writeLong(bits);
+					bits = 0;
+				}
+				node++;
+				if (node == Integer.MAX_VALUE - 1) throw new IDMapperException("Too many identifiers to export");
+				if (inDatanode) bits |= 1L << (node & 63);
+				offsets.writeInt((int) idBytes);
+				byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+				ids.write(bytes);
+				idBytes += bytes.length;
+				if (idBytes > Integer.MAX_VALUE) throw new IDMapperException("Identifiers too long to export");
+				lastId = id;
+				lastCode = code;
+			}
+			rs.close();
+			if (node >= 0) exists.writeLong(bits);
+			offsets.writeInt((int) idBytes);
+			sections.nodes = node + 1;
+
+			Set<String> mapped = new HashSet<String>();
+			rs = st.executeQuery("SELECT DISTINCT codeRight FROM link");
+			while (rs.next()) mapped.add(rs.getString(1));
+			rs.close();
+			for (int i = 0; i < codes.size(); i++) {
+				byte[] code = codes.get(i).getBytes(StandardCharsets.UTF_8);
+				sources.writeShort(code.length);
+				sources.write(code);
+				sources.writeInt(firsts.get(i));
+				sources.writeByte(mapped.contains(codes.get(i)) ? 1 : 0);
+			}
+			sections.sources = codes.size();
+
+			DataOutputStream info = sections.open(MappedIDMapper.INFO);
+			Properties props = new Properties();
+			rs = st.executeQuery("SELECT * FROM info");
+			if (rs.next()) {
+				for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+					String value = rs.getString(i);
+					if (value != null) props.setProperty(rs.getMetaData().getColumnName(i), value);
+				}
+			}
+			rs.close();
+			props.store(info, null);
+		} finally {
+			st.close();
+			sections.closeAll();
+		}
+	}
+
+	/**
+	 * Writes the links in the order of the query as adjacency lists: an offset
+	 * per Xref into the list of Xref numbers it links to. Returns the number
+	 * of links.
+	 */
+	private static int writeLinks(Connection con, String query, MappedIDMapper xrefs, Sections sections,
+			int offsetSection, int linkSection) throws SQLException, IOException, IDMapperException {
+		DataOutputStream offsets = sections.open(offsetSection);
+		DataOutputStream targets = sections.open(linkSection);
+		Statement st = con.createStatement();
+		try {
+			ResultSet rs = st.executeQuery(query);
+			String lastId = null;
+			String lastCode = null;
+			int from = -1;
+			int lastTo = -1;
+			int next = 0;
+			int links = 0;
+			while (rs.next()) {
+				String id = rs.getString(1);
+				String code = rs.getString(2);
+				if (!id.equals(lastId) || !code.equals(lastCode)) {
+					from = lookup(xrefs, id, code);
+					lastTo = -1;
+					lastId = id;
+					lastCode = code;
+				}
+				int to = lookup(xrefs, rs.getString(3), rs.getString(4));
+				// the link table may hold a link more than once
+				if (to == lastTo) continue;
+				while (next <= from) {
+					offsets.writeInt(links);
+					next++;
+				}
+				targets.writeInt(to);
+				lastTo = to;
+				if (++links == Integer.MAX_VALUE / 4) throw new IDMapperException("Too many links to export");
+			}
+			rs.close();
+			while (next <= sections.nodes) {
+				offsets.writeInt(links);
+				next++;
+			}
+			return links;
+		} finally {
+			st.close();
+			sections.closeAll();
+		}
+	}
+
+	private static int lookup(MappedIDMapper xrefs, String id, String code) throws IDMapperException {
+		int node = xrefs.indexOf(id, code);
+		if (node < 0) throw new IDMapperException("Linked Xref " + code + ":" + id + " was not exported");
+		return node;
+	}
+
+	/**
+	 * Looks up Xrefs spread over the link table in the database and the
+	 * mapping file, and fails on the first answer that differs. Also reports
+	 * the time per lookup of both.
+	 */
+	private static void verify(Connection con, MappedIDMapper mapper, int lookups) throws SQLException,
+			IDMapperException {
+		List<Xref> sample = new ArrayList<Xref>();
+		Statement st = con.createStatement();
+		try {
+			ResultSet rs = st.executeQuery("SELECT COUNT(*) FROM link");
+			rs.next();
+			long links = rs.getLong(1);
+			rs.close();
+			long step = Math.max(1, links / Math.max(1, lookups));
+			rs = st.executeQuery("SELECT idRight, codeRight FROM link");
+			long row = 0;
+			while (rs.next() && sample.size() < lookups) {
+				if (row++ % step == 0) {
+					sample.add(new Xref(rs.getString(1), DataSource.getExistingBySystemCode(rs.getString(2))));
+				}
+			}
+			rs.close();
+		} finally {
+			st.close();
+		}
+		if (!sample.isEmpty()) {
+			Xref first = sample.get(0);
+			sample.add(new Xref(first.getId() + "-unknown", first.getDataSource()));
+		}
+
+		PreparedStatement mapId = con.prepareStatement(MAP_ID);
+		PreparedStatement mapIdWithCode = con.prepareStatement(MAP_ID_WITH_CODE);
+		PreparedStatement exists = con.prepareStatement(EXISTS);
+		long derbyNanos = 0;
+		long mappedNanos = 0;
+		try {
+			for (Xref xref : sample) {
+				long start = System.nanoTime();
+				Set<Xref> expected = query(mapId, xref, null);
+				derbyNanos += System.nanoTime() - start;
+				start = System.nanoTime();
+				Set<Xref> actual = mapper.mapID(xref);
+				mappedNanos += System.nanoTime() - start;
+				compare(xref, expected, actual, "");
+
+				for (Xref target : expected) {
+					DataSource ds = target.getDataSource();
+					compare(xref, query(mapIdWithCode, xref, ds), mapper.mapID(xref, ds), " to " + ds.getSystemCode());
+					break;
+				}
+
+				exists.setString(1, xref.getId());
+				exists.setString(2, xref.getDataSource().getSystemCode());
+				ResultSet rs = exists.executeQuery();
+				boolean inDatabase = rs.next();
+				rs.close();
+				if (inDatabase != mapper.xrefExists(xref)) {
+					throw new IDMapperException("The mapping file differs from the database on whether " + xref
+							+ " exists");
+				}
+			}
+		} finally {
+			mapId.close();
+			mapIdWithCode.close();
+			exists.close();
+		}
+
+		Map<Xref, Set<Xref>> batch = mapper.mapID(sample);
+		for (Xref xref : sample) {
+			Set<Xref> single = mapper.mapID(xref);
+			Set<Xref> fromBatch = batch.get(xref);
+			if (fromBatch == null ? !single.isEmpty() : !fromBatch.equals(single)) {
+				throw new IDMapperException("Batch and single lookups of " + xref + " differ");
+			}
+		}
+		mapper.close();
+		log.info(String.format("Verified %d lookups against the database: %.1f us per lookup in Derby,"
+				+ " %.1f us in the mapping file", sample.size(), derbyNanos / 1e3 / Math.max(1, sample.size()),
+				mappedNanos / 1e3 / Math.max(1, sample.size())));
+	}
+
+	private static Set<Xref> query(PreparedStatement ps, Xref xref, DataSource target) throws SQLException {
+		ps.setString(1, xref.getId());
+		ps.setString(2, xref.getDataSource().getSystemCode());
+		if (target != null) ps.setString(3, target.getSystemCode());
+		Set<Xref> result = new HashSet<Xref>();
+		ResultSet rs = ps.executeQuery();
+		while (rs.next()) result.add(new Xref(rs.getString(1), DataSource.getExistingBySystemCode(rs.getString(2))));
+		rs.close();
+		return result;
+	}
+
+	private static void compare(Xref xref, Set<Xref> expected, Set<Xref> actual, String targets)
+			throws IDMapperException {
+		if (!expected.equals(actual)) {
+			throw new IDMapperException("The mapping file maps " + xref + targets + " to " + actual
+					+ " instead of " + expected);
+		}
+	}
+
+	/**
+	 * The sections of the mapping file, each written to a file of its own
+	 * and copied after the header.
+	 */
+	private static class Sections {
+
+		private final File dir;
+		private final List<DataOutputStream> open = new ArrayList<DataOutputStream>();
+		int nodes;
+		int links;
+		int sources;
+
+		Sections(File dir) {
+			this.dir = dir;
+		}
+
+		File file(int section) {
+			return new File(dir, "section-" + section);
+		}
+
+		DataOutputStream open(int section) throws IOException {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+					new FileOutputStream(file(section)), 65536));
+			open.add(out);
+			return out;
+		}
+
+		void closeAll() throws IOException {
+			for (OutputStream out : open) out.close();
+			open.clear();
+		}
+
+		/**
+		 * Writes the header and the sections written so far; sections that
+		 * were not written are empty.
+		 */
+		void write(File target) throws IOException {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(bytes);
+			header.write(MappedIDMapper.MAGIC);
+			header.writeInt(nodes);
+			header.writeInt(links);
+			header.writeInt(sources);
+			long offset = MappedIDMapper.HEADER;
+			for (int i = 0; i < MappedIDMapper.SECTIONS; i++) {
+				long length = file(i).length();
+				header.writeLong(offset);
+				header.writeLong(length);
+				offset += length;
+			}
+			OutputStream out = new BufferedOutputStream(new FileOutputStream(target), 65536);
+			try {
+				out.write(bytes.toByteArray());
+				byte[] buffer = new byte[65536];
+				for (int i = 0; i < MappedIDMapper.SECTIONS; i++) {
+					if (!file(i).isFile()) continue;
+					InputStream in = new BufferedInputStream(new FileInputStream(file(i)));
+					try {
+						int read;
+						while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+					} finally {
+						in.close();
+					}
+				}
+			} finally {
+				out.close();
+			}
+		}
+	}
+}
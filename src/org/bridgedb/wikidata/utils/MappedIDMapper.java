@@ -0,0 +1,267 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.bridgedb.AbstractIDMapperCapabilities;
+import org.bridgedb.BridgeDb;
+import org.bridgedb.DataSource;
+import org.bridgedb.Driver;
+import org.bridgedb.IDMapper;
+import org.bridgedb.IDMapperCapabilities;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+
+/**
+ * Answers lookups from a mapping file written by {@link MappedExport}, which
+ * is memory-mapped instead of read through JDBC. The Xrefs are numbered in
+ * the order of system code and identifier, and an Xref is found by binary
+ * search over the identifiers of its data source, compared in place to the
+ * mapped bytes. The lookups themselves are those of {@link IndexedIDMapper}.
+ * <p>
+ * The mapper is safe to share between threads, and registers itself with
+ * {@link BridgeDb} as <code>idmapper-bmap:path/to/file.bmap</code>.
+ */
+public class MappedIDMapper extends IndexedIDMapper {
+
+	static final byte[] MAGIC = { 'B', 'D', 'B', 'M', 'A', 'P', 0, 1 };
+
+	static final int INFO = 0;
+	static final int SOURCES = 1;
+	static final int ID_OFFSETS = 2;
+	static final int IDS = 3;
+	static final int EXISTS = 4;
+	static final int FORWARD_OFFSETS = 5;
+	static final int FORWARD = 6;
+	static final int REVERSE_OFFSETS = 7;
+	static final int REVERSE = 8;
+	static final int SECTIONS = 9;
+
+	/** Magic, counts of Xrefs, links and data sources, and offset and length of each section. */
+	static final int HEADER = MAGIC.length + 12 + SECTIONS * 16;
+
+	static {
+		BridgeDb.register("idmapper-bmap", new Driver() {
+			public IDMapper connect(String location) throws IDMapperException {
+				return new MappedIDMapper(new File(location));
+			}
+		});
+	}
+
+	private final File file;
+	private final int nodes;
+	private final int links;
+	private final String[] codes;
+	private final DataSource[] dataSources;
+	private final int[] first;
+	private final Map<String, String> info = new HashMap<String, String>();
+	private final IDMapperCapabilities capabilities;
+
+	private final IntBuffer idOffsets;
+	private final ByteBuffer ids;
+	private final LongBuffer exists;
+	private final IntBuffer forwardOffsets;
+	private final IntBuffer forward;
+	private final IntBuffer reverseOffsets;
+	private final IntBuffer reverse;
+
+	public MappedIDMapper(File file) throws IDMapperException {
+		super(file.getPath());
+		this.file = file;
+		try {
+			RandomAccessFile in = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = in.getChannel();
+				ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(HEADER, channel.size()));
+				byte[] magic = new byte[MAGIC.length];
+				if (header.limit() < HEADER) throw new IDMapperException("Not a mapping file: " + file);
+				header.get(magic);
+				if (!Arrays.equals(magic, MAGIC)) throw new IDMapperException("Not a mapping file: " + file);
+				nodes = header.getInt();
+				links = header.getInt();
+				int sourceCount = header.getInt();
+				ByteBuffer[] sections = new ByteBuffer[SECTIONS];
+				for (int i = 0; i < SECTIONS; i++) {
+					long offset = header.getLong();
+					long length = header.getLong();
+					if (offset + length > channel.size()) throw new IDMapperException("Truncated mapping file: " + file);
+					sections[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+				}
+				idOffsets = sections[ID_OFFSETS].asIntBuffer();
+				ids = sections[IDS];
+				exists = sections[EXISTS].asLongBuffer();
+				forwardOffsets = sections[FORWARD_OFFSETS].asIntBuffer();
+				forward = sections[FORWARD].asIntBuffer();
+				reverseOffsets = sections[REVERSE_OFFSETS].asIntBuffer();
+				reverse = sections[REVERSE].asIntBuffer();
+
+				byte[] infoBytes = new byte[sections[INFO].remaining()];
+				sections[INFO].get(infoBytes);
+				Properties props = new Properties();
+				props.load(new ByteArrayInputStream(infoBytes));
+				for (String key : props.stringPropertyNames()) info.put(key, props.getProperty(key));
+
+				codes = new String[sourceCount];
+				dataSources = new DataSource[sourceCount];
+				first = new int[sourceCount + 1];
+				Set<DataSource> mapped = new LinkedHashSet<DataSource>();
+				ByteBuffer sources = sections[SOURCES];
+				for (int i = 0; i < sourceCount; i++) {
+					byte[] code = new byte[sources.getShort()];
+					sources.get(code);
+					codes[i] = new String(code, StandardCharsets.UTF_8);
+					first[i] = sources.getInt();
+					dataSources[i] = dataSource(codes[i]);
+					sourceIndex.put(codes[i], i);
+					if (sources.get() != 0) mapped.add(dataSources[i]);
+				}
+				first[sourceCount] = nodes;
+				capabilities = new AbstractIDMapperCapabilities(mapped, true, info) {
+				};
+			} finally {
+				// the mapped buffers stay valid after the channel is closed
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IDMapperException("Could not open " + file, e);
+		}
+	}
+
+	private static DataSource dataSource(String code) {
+		if (DataSource.systemCodeExists(code)) return DataSource.getExistingBySystemCode(code);
+		return DataSource.register(code, code).asDataSource();
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * The number of Xrefs in the file.
+	 */
+	@Override
+	public int size() {
+		return nodes;
+	}
+
+	public int getLinkCount() {
+		return links;
+	}
+
+	@Override
+	public int indexOf(String id, String code) {
+		Integer source = sourceIndex.get(code);
+		if (source == null || id == null) return -1;
+		int low = first[source];
+		int high = first[source + 1] - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int c = compare(mid, id);
+			if (c < 0) low = mid + 1;
+			else if (c > 0) high = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	@Override
+	protected int forwardOffset(int node) {
+		return forwardOffsets.get(node);
+	}
+
+	@Override
+	protected int forward(int index) {
+		return forward.get(index);
+	}
+
+	@Override
+	protected int reverseOffset(int node) {
+		return reverseOffsets.get(node);
+	}
+
+	@Override
+	protected int reverse(int index) {
+		return reverse.get(index);
+	}
+
+	@Override
+	public boolean exists(int node) {
+		return (exists.get(node >>> 6) >>> (node & 63) & 1) != 0;
+	}
+
+	@Override
+	public String getId(int node) {
+		int start = idOffsets.get(node);
+		byte[] bytes = new byte[idOffsets.get(node + 1) - start];
+		for (int i = 0; i < bytes.length; i++) bytes[i] = ids.get(start + i);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	@Override
+	public int getSource(int node) {
+		int source = Arrays.binarySearch(first, node);
+		return source >= 0 ? source : -source - 2;
+	}
+
+	@Override
+	public Xref getXref(int node) {
+		return getXref(node, getSource(node));
+	}
+
+	@Override
+	protected Xref getXref(int node, int source) {
+		return new Xref(getId(node), dataSources[source]);
+	}
+
+	/**
+	 * Compares the identifier of the Xref to the string the way
+	 * {@link String#compareTo(String)} does, decoding the UTF-8 bytes in
+	 * place.
+	 */
+	private int compare(int node, String id) {
+		int pos = idOffsets.get(node);
+		int end = idOffsets.get(node + 1);
+		int i = 0;
+		int length = id.length();
+		while (pos < end) {
+			if (i == length) return 1;
+			int b = ids.get(pos++);
+			char c;
+			if (b >= 0) {
+				c = (char) b;
+			} else if ((b & 0xE0) == 0xC0) {
+				c = (char) ((b & 0x1F) << 6 | ids.get(pos++) & 0x3F);
+			} else if ((b & 0xF0) == 0xE0) {
+				c = (char) ((b & 0x0F) << 12 | (ids.get(pos++) & 0x3F) << 6 | ids.get(pos++) & 0x3F);
+			} else {
+				int codePoint = (b & 0x07) << 18 | (ids.get(pos++) & 0x3F) << 12 | (ids.get(pos++) & 0x3F) << 6
+						| ids.get(pos++) & 0x3F;
+				char high = Character.highSurrogate(codePoint);
+				if (high != id.charAt(i)) return high - id.charAt(i);
+				if (++i == length) return 1;
+				c = Character.lowSurrogate(codePoint);
+			}
+			char d = id.charAt(i++);
+			if (c != d) return c - d;
+		}
+		return i == length ? 0 : -1;
+	}
+
+	@Override
+	public IDMapperCapabilities getCapabilities() {
+		return capabilities;
+	}
+}
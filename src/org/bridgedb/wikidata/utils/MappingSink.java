@@ -0,0 +1,27 @@
+package org.bridgedb.wikidata.utils;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+
+/**
+ * The database a build writes its mappings to. {@link GdbSink} writes a new
+ * Derby database with GdbConstruct; other implementations write the same
+ * mappings in a different way.
+ */
+public interface MappingSink {
+
+	void setInfo(String key, String value) throws IDMapperException;
+
+	void addGene(Xref xref) throws IDMapperException;
+
+	void addAttribute(Xref xref, String name, String value) throws IDMapperException;
+
+	void addLink(Xref left, Xref right) throws IDMapperException;
+
+	void commit() throws IDMapperException;
+
+	/**
+	 * Writes the database file. No mappings can be added afterwards.
+	 */
+	void finish() throws IDMapperException;
+}
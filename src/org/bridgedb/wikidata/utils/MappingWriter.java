@@ -0,0 +1,410 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands Xref mappings to a {@link MappingSink} while they are being read.
+ * Mappings are grouped per main Xref in a window of the configured number of
+ * main Xrefs, and full windows are added to {@link SortedRuns}, which are
+ * spilled to disk beyond a heap budget (<code>group.heap.mb</code>). The runs
+ * are merged when the writer is closed, so every main Xref is written once
+ * with all of its links and attributes, however far apart its rows were, and
+ * every identifier is added once without keeping all of them in memory. When
+ * the database is committed is left to a {@link CommitPolicy}.
+ * <p>
+ * With a {@link Checkpoint} the runs are merged and written at every
+ * checkpoint instead, and the identifiers written so far are kept in an
+ * {@link XrefSet}, so that they are added once over all checkpoints. These
+ * sets grow with the number of distinct Xrefs of the build and fail it when
+ * they would take more than <code>checkpoint.xrefs.mb</code> each. The rows
+ * of a main Xref must then not be split over two checkpoints: positions in the
+ * input are only recorded before the rows of a new main Xref, so input sorted
+ * by the main variable, or a query partitioned by it, is written correctly,
+ * and a main Xref that comes back after it was written fails the build.
+ * <p>
+ * With <code>pipeline=true</code> the mappings are grouped and written on a
+ * thread of their own, see {@link Pipeline}: the calls of the builder are
+ * queued in order and {@link #close()} waits until they are done.
+ */
+public class MappingWriter {
+
+	private static final Logger log = LoggerFactory.getLogger(MappingWriter.class);
+
+	public static final int DEFAULT_WINDOW = 10000;
+	public static final int DEFAULT_GROUP_HEAP_MB = 64;
+
+	// kinds of keys in the sorted runs, in the order they are written
+	private static final String GENE = "0";
+	private static final String ATTRIBUTE = "1";
+	private static final String LINK = "2";
+	private static final String XREF = "3";
+
+	private final MappingSink newDb;
+	private final int windowSize;
+	private final CommitPolicy commitPolicy;
+	private final Map<Xref, Set<Xref>> window = new LinkedHashMap<Xref, Set<Xref>>();
+	private long bufferedLinks = 0;
+	private Xref lastMain;
+	// only with a checkpoint: the Xrefs in the database, and the main Xrefs among them
+	private XrefSet addedXrefs;
+	private XrefSet writtenMains;
+	private Checkpoint checkpoint;
+	private String position;
+	private String reachedPosition;
+	private long resumedLinks = 0;
+	private SortedRuns groups;
+	private File groupDir;
+	private final Map<String, DataSource> dataSources = new HashMap<String, DataSource>();
+	private Pipeline.Grouping grouping;
+	private long xrefSetBytes = Long.MAX_VALUE;
+
+	/**
+	 * Groups the mappings in the temporary folder, within a heap budget of
+	 * {@link #DEFAULT_GROUP_HEAP_MB}.
+	 */
+	public MappingWriter(MappingSink newDb, int windowSize, CommitPolicy commitPolicy) {
+		this.newDb = newDb;
+		this.windowSize = Math.max(1, windowSize);
+		this.commitPolicy = commitPolicy;
+		groupOnDisk(new File(System.getProperty("java.io.tmpdir"), "wd2bdb-group-" + UUID.randomUUID()),
+				DEFAULT_GROUP_HEAP_MB * 1024L * 1024L);
+	}
+
+	public static MappingWriter fromProperties(MappingSink newDb, Properties props) {
+		MappingWriter writer = new MappingWriter(newDb,
+				Utils.getIntProperty(props, "ingest.window", DEFAULT_WINDOW),
+				CommitPolicy.fromProperties(newDb, props));
+		int heapMb = Math.max(1, Utils.getIntProperty(props, "group.heap.mb", DEFAULT_GROUP_HEAP_MB));
+		File dir = new File(props.getProperty("group.dir", System.getProperty("java.io.tmpdir")));
+		writer.groupOnDisk(new File(dir, "wd2bdb-group-" + UUID.randomUUID()), heapMb * 1024L * 1024L);
+		int xrefsMb = Utils.getIntProperty(props, "checkpoint.xrefs.mb", 0);
+		writer.setXrefSetLimit(xrefsMb > 0 ? xrefsMb * 1024L * 1024L : Runtime.getRuntime().maxMemory() / 4);
+		if (Pipeline.isEnabled(props)) {
+			writer.grouping = new Pipeline.Grouping(writer,
+					Utils.getIntProperty(props, "pipeline.queue", Pipeline.DEFAULT_QUEUE), BuildMetrics.of(props));
+		}
+		return writer;
+	}
+
+	/**
+	 * Keeps the sorted runs of at most about <code>heapBytes</code> in memory
+	 * and spills the rest to files in <code>dir</code>. Must be called before
+	 * the first mapping is added.
+	 */
+	public void groupOnDisk(File dir, long heapBytes) {
+		groupDir = dir;
+		groups = new SortedRuns(dir, "group", Integer.MAX_VALUE, heapBytes);
+	}
+
+	/**
+	 * Sets how many bytes each set of Xrefs written at checkpoints may take,
+	 * see {@link XrefSet}. Must be called before
+	 * {@link #setCheckpoint(Checkpoint)}.
+	 */
+	public void setXrefSetLimit(long bytes) {
+		xrefSetBytes = bytes;
+	}
+
+	/**
+	 * Commits only at input positions that are recorded in the checkpoint.
+	 * When the build resumes, the Xrefs that are already in the database are
+	 * not added again, and the builder continues after
+	 * {@link Checkpoint#getPosition()}.
+	 */
+	public void setCheckpoint(Checkpoint checkpoint) throws IDMapperException {
+		this.checkpoint = checkpoint;
+		addedXrefs = new XrefSet(xrefSetBytes);
+		writtenMains = new XrefSet(xrefSetBytes);
+		commitPolicy.deferToCheckpoints();
+		if (checkpoint.isResuming()) {
+			checkpoint.restore(addedXrefs, writtenMains);
+			position = checkpoint.getPosition();
+			resumedLinks = checkpoint.getLinks();
+		}
+	}
+
+	/**
+	 * Tells the writer that the input has no positions before its end, such
+	 * as a query that is not partitioned. Commits are then no longer held
+	 * back for checkpoints, so the transaction stays bounded, and a build
+	 * that dies before the end starts again when resumed.
+	 */
+	public void withoutPositions() {
+		if (checkpoint != null) commitPolicy.stopDeferring();
+	}
+
+	/**
+	 * Tells the writer that all input up to the position has been added. With
+	 * a checkpoint, the position is recorded before the next main Xref when a
+	 * commit is due.
+	 */
+	public void reached(String position) throws IDMapperException {
+		if (grouping != null) {
+			grouping.add(Pipeline.Grouping.REACHED, null, null, null, position);
+			return;
+		}
+		reach(position);
+	}
+
+	private void reach(String position) {
+		this.position = position;
+		reachedPosition = position;
+	}
+
+	/**
+	 * Writes and commits all input up to the position and records it in the
+	 * checkpoint, if there is one.
+	 */
+	public void checkpoint(String position) throws IDMapperException {
+		if (grouping != null) {
+			grouping.add(Pipeline.Grouping.CHECKPOINT, null, null, null, position);
+			grouping.send();
+			return;
+		}
+		record(position);
+	}
+
+	private void record(String position) throws IDMapperException {
+		this.position = position;
+		reachedPosition = null;
+		if (checkpoint == null) return;
+		spill();
+		writeGroups();
+		long links = resumedLinks + commitPolicy.getTotalLinks();
+		checkpoint.pending(position, links);
+		commitPolicy.commit();
+		checkpoint.committed(position, links);
+	}
+
+	/**
+	 * The last input position reported to the writer, after resuming the one
+	 * of the checkpoint. With the pipeline, it is only up to date before the
+	 * first rows and after {@link #close()}.
+	 */
+	public String getPosition() {
+		return position;
+	}
+
+	/**
+	 * The links written so far, including those of the run that was resumed.
+	 */
+	public long getTotalLinks() {
+		return resumedLinks + commitPolicy.getTotalLinks();
+	}
+
+	/**
+	 * Registers a main Xref, also when it has no mappings.
+	 */
+	public void add(Xref mainXref) throws IDMapperException {
+		if (grouping != null) grouping.add(Pipeline.Grouping.MAIN, mainXref, null, null, null);
+		else window(mainXref);
+	}
+
+	public void add(Xref mainXref, Xref rightXref) throws IDMapperException {
+		if (grouping != null) grouping.add(Pipeline.Grouping.LINK, mainXref, rightXref, null, null);
+		else link(mainXref, rightXref);
+	}
+
+	/**
+	 * Sets an attribute that is stored when the main Xref is added to the
+	 * database. All values of an attribute are stored.
+	 */
+	public void addAttribute(Xref mainXref, String name, String value) throws IDMapperException {
+		if (grouping != null) grouping.add(Pipeline.Grouping.ATTRIBUTE, mainXref, null, name, value);
+		else attribute(mainXref, name, value);
+	}
+
+	/**
+	 * Carries out a call of the builder that was queued for the grouping
+	 * stage of the pipeline.
+	 */
+	void apply(byte op, Xref left, Xref right, String name, String value) throws IDMapperException {
+		switch (op) {
+		case Pipeline.Grouping.MAIN:
+			window(left);
+			break;
+		case Pipeline.Grouping.LINK:
+			link(left, right);
+			break;
+		case Pipeline.Grouping.ATTRIBUTE:
+			attribute(left, name, value);
+			break;
+		case Pipeline.Grouping.REACHED:
+			reach(value);
+			break;
+		case Pipeline.Grouping.CHECKPOINT:
+			record(value);
+			break;
+		default:
+			spill();
+		}
+	}
+
+	/**
+	 * The right Xrefs of a main Xref in the window.
+	 */
+	private Set<Xref> window(Xref mainXref) throws IDMapperException {
+		if (!mainXref.equals(lastMain)) {
+			// between the rows of two main Xrefs, so that none is split over two checkpoints
+			if (checkpoint != null && reachedPosition != null && commitPolicy.isDue(bufferedLinks)) {
+				record(reachedPosition);
+			}
+			lastMain = mainXref;
+		}
+		Set<Xref> rightXrefs = window.get(mainXref);
+		if (rightXrefs == null) {
+			if (window.size() >= windowSize) spill();
+			rightXrefs = new HashSet<Xref>();
+			window.put(mainXref, rightXrefs);
+		}
+		return rightXrefs;
+	}
+
+	private void link(Xref mainXref, Xref rightXref) throws IDMapperException {
+		Set<Xref> rightXrefs = window(mainXref);
+		if (rightXref != null && !rightXref.equals(mainXref) && rightXrefs.add(rightXref)) bufferedLinks++;
+	}
+
+	private void attribute(Xref mainXref, String name, String value) throws IDMapperException {
+		window(mainXref);
+		add(SortedRuns.key(mainXref.getId(), code(mainXref), ATTRIBUTE, name, value));
+	}
+
+	/**
+	 * Adds the mappings in the current window to the sorted runs.
+	 */
+	public void flush() throws IDMapperException {
+		if (grouping != null) grouping.add(Pipeline.Grouping.FLUSH, null, null, null, null);
+		else spill();
+	}
+
+	/**
+	 * Adds the window to the sorted runs, as keys that start with the Xref
+	 * they belong to, so the keys of an Xref are next to each other when
+	 * merged: the main Xrefs with their links, and the right Xrefs, so that
+	 * each of them is added to the database once.
+	 */
+	private void spill() throws IDMapperException {
+		for (Map.Entry<Xref, Set<Xref>> entry : window.entrySet()) {
+			Xref mainXref = entry.getKey();
+			String id = mainXref.getId();
+			String code = code(mainXref);
+			add(SortedRuns.key(id, code, GENE));
+			for (Xref rightXref : entry.getValue()) {
+				String rightCode = code(rightXref);
+				add(SortedRuns.key(id, code, LINK, rightXref.getId(), rightCode));
+				add(SortedRuns.key(rightXref.getId(), rightCode, XREF));
+			}
+		}
+		window.clear();
+	}
+
+	private void add(String key) throws IDMapperException {
+		try {
+			groups.add(key);
+		} catch (IOException e) {
+			throw new IDMapperException("Could not spill mappings to disk", e);
+		}
+	}
+
+	/**
+	 * Merges the sorted runs and writes every Xref once, and every main Xref
+	 * with all of its attributes and links.
+	 */
+	private void writeGroups() throws IDMapperException {
+		long start = System.currentTimeMillis();
+		int runs = groups.getRunCount();
+		long mains = 0;
+		try {
+			SortedRuns.Reader reader = groups.read();
+			try {
+				String group = null;
+				Xref xref = null;
+				int links = 0;
+				String key;
+				while ((key = reader.next()) != null) {
+					int codeEnd = key.indexOf(SortedRuns.SEPARATOR, key.indexOf(SortedRuns.SEPARATOR) + 1);
+					if (group == null || group.length() != codeEnd + 1 || !key.startsWith(group)) {
+						if (xref != null) commitPolicy.linksWritten(links);
+						group = key.substring(0, codeEnd + 1);
+						String[] values = SortedRuns.split(key.substring(0, codeEnd), 2);
+						xref = xref(values[0], values[1]);
+						links = 0;
+						if (addedXrefs == null || addedXrefs.add(xref)) newDb.addGene(xref);
+					}
+					if (key.startsWith(GENE, codeEnd + 1)) {
+						if (writtenMains != null && !writtenMains.add(xref)) {
+							throw new IDMapperException(xref + " has rows after a checkpoint it was written at; with"
+									+ " checkpoint=true the input must be sorted by the main Xref, or partitioned by it");
+						}
+						newDb.addLink(xref, xref);
+						links++;
+						mains++;
+					} else if (key.startsWith(ATTRIBUTE, codeEnd + 1)) {
+						String[] values = SortedRuns.split(key.substring(codeEnd + 3), 2);
+						newDb.addAttribute(xref, values[0], values[1]);
+					} else if (key.startsWith(LINK, codeEnd + 1)) {
+						String[] values = SortedRuns.split(key.substring(codeEnd + 3), 2);
+						newDb.addLink(xref, xref(values[0], values[1]));
+						links++;
+					}
+				}
+				if (xref != null) commitPolicy.linksWritten(links);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw new IDMapperException("Could not merge mappings from disk", e);
+		} finally {
+			groups.close();
+			bufferedLinks = 0;
+		}
+		log.debug("Grouped " + mains + " main Xrefs from " + runs + " runs on disk in "
+				+ (System.currentTimeMillis() - start) + " ms");
+	}
+
+	private Xref xref(String id, String code) {
+		DataSource ds = dataSources.get(code);
+		if (ds == null) {
+			ds = DataSource.getExistingBySystemCode(code);
+			dataSources.put(code, ds);
+		}
+		return new Xref(id, ds);
+	}
+
+	private static String code(Xref xref) {
+		return xref.getDataSource().getSystemCode();
+	}
+
+	/**
+	 * Writes the remaining mappings and commits. Must be called before
+	 * <code>finish()</code> on the database.
+	 */
+	public void close() throws IDMapperException {
+		if (grouping != null) grouping.close();
+		try {
+			spill();
+			writeGroups();
+		} finally {
+			BridgeFiles.deleteRecursive(groupDir);
+		}
+		long links = resumedLinks + commitPolicy.getTotalLinks();
+		if (checkpoint != null) checkpoint.pending(position, links);
+		commitPolicy.finish();
+		if (checkpoint != null) checkpoint.committed(position, links);
+	}
+}
@@ -0,0 +1,330 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bridgedb.AbstractIDMapperCapabilities;
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperCapabilities;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Answers lookups from an in-memory index of a finished .bridge file, which
+ * is read once by {@link #load(File)}. Every Xref is stored once and gets a
+ * number; an open-addressing table of hashes and numbers per data source
+ * finds it, comparing identifiers only when the hashes are equal, and
+ * the links are kept as int arrays of numbers. The lookups are those of
+ * {@link IndexedIDMapper}; they return the stored Xref objects, so a lookup
+ * only allocates the set it returns.
+ * <p>
+ * The index does not change after loading and is safe to share between
+ * threads.
+ */
+public class MemoryIDMapper extends IndexedIDMapper {
+
+	private static final Logger log = LoggerFactory.getLogger(MemoryIDMapper.class);
+
+	private final DataSource[] dataSources;
+	private final int[][] tables;
+	private final Xref[] xrefs;
+	private final int[] sources;
+	private final long[] exists;
+	private final int[] forwardOffsets;
+	private final int[] forward;
+	private final int[] reverseOffsets;
+	private final int[] reverse;
+	private final IDMapperCapabilities capabilities;
+	private final long loadMillis;
+
+	private MemoryIDMapper(String name, Loader loader, int[][] tables, IDMapperCapabilities capabilities,
+			long loadMillis) {
+		super(name);
+		this.dataSources = loader.dataSources.toArray(new DataSource[loader.dataSources.size()]);
+		sourceIndex.putAll(loader.sourceIndex);
+		this.tables = tables;
+		this.xrefs = Arrays.copyOf(loader.xrefs, loader.nodes);
+		this.sources = Arrays.copyOf(loader.sources, loader.nodes);
+		this.exists = loader.exists;
+		int[][] csr = csr(loader.nodes, loader.lefts, loader.rights, loader.links);
+		this.forwardOffsets = csr[0];
+		this.forward = csr[1];
+		csr = csr(loader.nodes, loader.rights, loader.lefts, loader.links);
+		this.reverseOffsets = csr[0];
+		this.reverse = csr[1];
+		this.capabilities = capabilities;
+		this.loadMillis = loadMillis;
+	}
+
+	/**
+	 * Reads the datanode, link and info tables of the .bridge file into
+	 * memory. The file is unpacked to a temporary folder first, because Derby
+	 * reads deflated archives very slowly when scanning.
+	 */
+	public static MemoryIDMapper load(File bridgeFile) throws IDMapperException {
+		long start = System.currentTimeMillis();
+		File workDir = null;
+		try {
+			workDir = Files.createTempDirectory("load-").toFile();
+			BridgeFiles.unzip(bridgeFile, workDir);
+			Loader loader = new Loader();
+			Map<String, String> info = new HashMap<String, String>();
+			Set<String> mapped = new HashSet<String>();
+			Connection con = BridgeFiles.open(workDir);
+			try {
+				Statement st = con.createStatement();
+				ResultSet rs = st.executeQuery("SELECT idLeft, codeLeft, idRight, codeRight FROM link");
+				while (rs.next()) {
+					loader.link(loader.intern(rs.getString(1), rs.getString(2)),
+							loader.intern(rs.getString(3), rs.getString(4)));
+					mapped.add(rs.getString(4));
+				}
+				rs.close();
+				rs = st.executeQuery("SELECT id, code FROM datanode");
+				while (rs.next()) loader.exists(loader.intern(rs.getString(1), rs.getString(2)));
+				rs.close();
+				rs = st.executeQuery("SELECT * FROM info");
+				if (rs.next()) {
+					for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+						String value = rs.getString(i);
+						if (value != null) info.put(rs.getMetaData().getColumnName(i), value);
+					}
+				}
+				rs.close();
+				st.close();
+			} finally {
+				con.close();
+			}
+
+			Set<DataSource> supported = new LinkedHashSet<DataSource>();
+			for (DataSource ds : loader.dataSources) {
+				if (mapped.contains(ds.getSystemCode())) supported.add(ds);
+			}
+			MemoryIDMapper mapper = new MemoryIDMapper(bridgeFile.getName(), loader, loader.tables(),
+					new AbstractIDMapperCapabilities(supported, true, info) {
+					}, System.currentTimeMillis() - start);
+			log.info(String.format("Loaded %s in %.1f s: %d identifiers, %d links, about %d MB",
+					bridgeFile.getName(), mapper.loadMillis / 1000.0, mapper.size(), mapper.forward.length,
+					mapper.memoryUsage() >> 20));
+			return mapper;
+		} catch (IOException e) {
+			throw new IDMapperException("Could not load " + bridgeFile, e);
+		} catch (SQLException e) {
+			throw new IDMapperException("Could not load " + bridgeFile, e);
+		} finally {
+			if (workDir != null) {
+				BridgeFiles.shutdown(workDir);
+				BridgeFiles.deleteRecursive(workDir);
+			}
+		}
+	}
+
+	/**
+	 * Builds adjacency lists from the pairs: an offset per Xref into the list
+	 * of Xrefs it links to.
+	 */
+	private static int[][] csr(int nodes, int[] from, int[] to, int links) {
+		int[] offsets = new int[nodes + 1];
+		for (int i = 0; i < links; i++) offsets[from[i] + 1]++;
+		for (int i = 0; i < nodes; i++) offsets[i + 1] += offsets[i];
+		int[] next = Arrays.copyOf(offsets, nodes);
+		int[] targets = new int[links];
+		for (int i = 0; i < links; i++) targets[next[from[i]]++] = to[i];
+		return new int[][] { offsets, targets };
+	}
+
+	private static int hash(String id) {
+		int h = id.hashCode() * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	@Override
+	public int size() {
+		return xrefs.length;
+	}
+
+	public long getLoadMillis() {
+		return loadMillis;
+	}
+
+	/**
+	 * Approximate number of bytes used by the index, with the identifiers.
+	 */
+	public long memoryUsage() {
+		long bytes = 16L * (xrefs.length + exists.length / 2 + forward.length / 4 + reverse.length / 4);
+		for (int[] table : tables) bytes += 4L * table.length;
+		bytes += 4L * (sources.length + forwardOffsets.length + reverseOffsets.length);
+		for (Xref xref : xrefs) {
+			// the Xref, the String and its characters
+			bytes += 24 + 40 + xref.getId().length();
+		}
+		return bytes;
+	}
+
+	@Override
+	public int indexOf(String id, String code) {
+		Integer source = sourceIndex.get(code);
+		if (source == null || id == null) return -1;
+		int[] table = tables[source];
+		int hash = hash(id);
+		int mask = table.length - 2;
+		for (int slot = (hash << 1) & mask;; slot = (slot + 2) & mask) {
+			int node = table[slot + 1] - 1;
+			if (node < 0) return -1;
+			if (table[slot] == hash && xrefs[node].getId().equals(id)) return node;
+		}
+	}
+
+	@Override
+	protected int forwardOffset(int node) {
+		return forwardOffsets[node];
+	}
+
+	@Override
+	protected int forward(int index) {
+		return forward[index];
+	}
+
+	@Override
+	protected int reverseOffset(int node) {
+		return reverseOffsets[node];
+	}
+
+	@Override
+	protected int reverse(int index) {
+		return reverse[index];
+	}
+
+	@Override
+	public boolean exists(int node) {
+		return (exists[node >>> 6] >>> (node & 63) & 1) != 0;
+	}
+
+	@Override
+	public String getId(int node) {
+		return xrefs[node].getId();
+	}
+
+	@Override
+	public int getSource(int node) {
+		return sources[node];
+	}
+
+	@Override
+	public Xref getXref(int node) {
+		return xrefs[node];
+	}
+
+	@Override
+	protected Xref getXref(int node, int source) {
+		return xrefs[node];
+	}
+
+	@Override
+	public IDMapperCapabilities getCapabilities() {
+		return capabilities;
+	}
+
+	/**
+	 * Collects the Xrefs and links while the tables are read.
+	 */
+	private static class Loader {
+
+		final List<String> codes = new ArrayList<String>();
+		final List<DataSource> dataSources = new ArrayList<DataSource>();
+		final Map<String, Integer> sourceIndex = new HashMap<String, Integer>();
+		final List<int[]> tables = new ArrayList<int[]>();
+		final List<Integer> counts = new ArrayList<Integer>();
+		Xref[] xrefs = new Xref[1024];
+		int[] sources = new int[1024];
+		long[] exists = new long[16];
+		int nodes = 0;
+		int[] lefts = new int[1024];
+		int[] rights = new int[1024];
+		int links = 0;
+
+		int intern(String id, String code) {
+			Integer source = sourceIndex.get(code);
+			if (source == null) {
+				source = codes.size();
+				codes.add(code);
+				dataSources.add(DataSource.systemCodeExists(code) ? DataSource.getExistingBySystemCode(code)
+						: DataSource.register(code, code).asDataSource());
+				sourceIndex.put(code, source);
+				tables.add(new int[128]);
+				counts.add(0);
+			}
+			int[] table = tables.get(source);
+			int hash = hash(id);
+			int mask = table.length - 2;
+			int slot = (hash << 1) & mask;
+			for (;; slot = (slot + 2) & mask) {
+				int node = table[slot + 1] - 1;
+				if (node < 0) break;
+				if (table[slot] == hash && xrefs[node].getId().equals(id)) return node;
+			}
+			if (nodes == xrefs.length) {
+				xrefs = Arrays.copyOf(xrefs, nodes * 2);
+				sources = Arrays.copyOf(sources, nodes * 2);
+			}
+			xrefs[nodes] = new Xref(id, dataSources.get(source));
+			sources[nodes] = source;
+			table[slot] = hash;
+			table[slot + 1] = nodes + 1;
+			int count = counts.get(source) + 1;
+			counts.set(source, count);
+			// keep the table at most half full
+			if (count * 4 > table.length) tables.set(source, grow(table));
+			return nodes++;
+		}
+
+		private int[] grow(int[] table) {
+			int[] bigger = new int[table.length * 2];
+			int mask = bigger.length - 2;
+			for (int i = 0; i < table.length; i += 2) {
+				if (table[i + 1] == 0) continue;
+				int slot = (table[i] << 1) & mask;
+				while (bigger[slot + 1] != 0) slot = (slot + 2) & mask;
+				bigger[slot] = table[i];
+				bigger[slot + 1] = table[i + 1];
+			}
+			return bigger;
+		}
+
+		void link(int left, int right) {
+			if (links == lefts.length) {
+				lefts = Arrays.copyOf(lefts, links * 2);
+				rights = Arrays.copyOf(rights, links * 2);
+			}
+			lefts[links] = left;
+			rights[links] = right;
+			links++;
+		}
+
+		void exists(int node) {
+			if (node >>> 6 >= exists.length) exists = Arrays.copyOf(exists, Math.max(exists.length * 2, (node >>> 6) + 1));
+			exists[node >>> 6] |= 1L << (node & 63);
+		}
+
+		int[][] tables() {
+			// the bitset covers every Xref, also those only seen in links
+			exists = Arrays.copyOf(exists, (nodes >>> 6) + 1);
+			return tables.toArray(new int[tables.size()][]);
+		}
+	}
+}
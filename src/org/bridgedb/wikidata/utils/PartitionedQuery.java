@@ -0,0 +1,493 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.bridgedb.IDMapperException;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.AbstractTupleQueryResultHandler;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.TupleQueryResultHandlerException;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.QueryResultParseException;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Fetches a query in independent slices, running a limited number of slices
+ * in parallel. With <code>partition.values</code> the slices bind
+ * <code>partition.variable</code> to a few of the listed values with
+ * <code>VALUES</code>, joined with <code>partition.pattern</code>, a triple
+ * pattern the store can start from, such as
+ * <code>?gene wdt:P703 ?taxon .</code>; a last slice has the rows with none
+ * of the values. This way the store only reads the items of a slice. Without
+ * values, the slices are Q-id ranges of the variable, which are filtered row
+ * by row: the store still reads all items for every slice, so this only
+ * spreads a query that fits in the timeout over several connections.
+ * <p>
+ * Every slice is read completely before its rows are handed to the
+ * {@link RowHandler}, so a slice that fails is retried on its own and no rows
+ * of a failed attempt reach the database. Rows are handed over on the calling
+ * thread. Slices are read in batches, and the batches of all slices that are
+ * read or waiting to be handed over hold at most
+ * <code>partition.buffer.rows</code> rows in memory; beyond that the rest of
+ * a slice is spilled to a file in the binary results format and read back
+ * when it is handed over. With a {@link MappingWriter} the slices that have
+ * been handed over are recorded as its checkpoint position, a comma-separated
+ * list of slice numbers, and slices in that list are skipped. A slice that
+ * times out is fetched in two halves of its values or Q-id range instead,
+ * which are split again when they time out too, up to
+ * <code>partition.splits</code> times.
+ *
+ * Configured with <code>partition.variable</code>, <code>partition.values</code>,
+ * <code>partition.pattern</code>, <code>partition.count</code>,
+ * <code>partition.max.qid</code>, <code>partition.concurrency</code>,
+ * <code>partition.retries</code>, <code>partition.splits</code>,
+ * <code>partition.buffer.rows</code> and <code>partition.spill.dir</code>.
+ */
+public class PartitionedQuery {
+
+	private static final Logger log = LoggerFactory.getLogger(PartitionedQuery.class);
+
+	public static final int DEFAULT_MAX_QID = 150000000;
+	public static final int DEFAULT_CONCURRENCY = 4;
+	public static final int DEFAULT_RETRIES = 3;
+	public static final int DEFAULT_SPLITS = 4;
+	public static final int DEFAULT_BUFFER_ROWS = 200000;
+
+	private final String query;
+	private final String variable;
+	private final int count;
+	private final long maxQid;
+	private final int concurrency;
+	private final int retries;
+	private List<String> values;
+	private String pattern;
+	private int splits = DEFAULT_SPLITS;
+	private Semaphore buffer = new Semaphore(DEFAULT_BUFFER_ROWS);
+	private File spillDir;
+	private QueryCache cache;
+
+	public PartitionedQuery(String query, String variable, int count, long maxQid, int concurrency, int retries) {
+		this.query = query;
+		this.variable = variable;
+		this.count = Math.max(1, count);
+		this.maxQid = maxQid;
+		this.concurrency = Math.max(1, concurrency);
+		this.retries = retries;
+	}
+
+	public static PartitionedQuery fromProperties(String query, Properties props) {
+		return fromProperties(query, props, Utils.getIntProperty(props, "partition.count", 1));
+	}
+
+	/**
+	 * Like {@link #fromProperties(String, Properties)}, with the given number
+	 * of slices.
+	 */
+	public static PartitionedQuery fromProperties(String query, Properties props, int count) {
+		PartitionedQuery partitioned = new PartitionedQuery(query,
+				props.getProperty("partition.variable"),
+				count,
+				Utils.getIntProperty(props, "partition.max.qid", DEFAULT_MAX_QID),
+				Utils.getIntProperty(props, "partition.concurrency", DEFAULT_CONCURRENCY),
+				Utils.getIntProperty(props, "partition.retries", DEFAULT_RETRIES));
+		partitioned.setValues(values(props), props.getProperty("partition.pattern"));
+		partitioned.setSplits(Utils.getIntProperty(props, "partition.splits", DEFAULT_SPLITS));
+		String spillDir = props.getProperty("partition.spill.dir", "").trim();
+		partitioned.setBuffer(Utils.getIntProperty(props, "partition.buffer.rows", DEFAULT_BUFFER_ROWS),
+				spillDir.equals("") ? null : new File(spillDir));
+		partitioned.setCache(QueryCache.fromProperties(props));
+		return partitioned;
+	}
+
+	/**
+	 * The values of <code>partition.values</code>, separated by commas or
+	 * spaces; empty when it is not set.
+	 */
+	static List<String> values(Properties props) {
+		List<String> values = new ArrayList<String>();
+		for (String value : props.getProperty("partition.values", "").split("[,\\s]+")) {
+			if (!value.equals("")) values.add(value);
+		}
+		return values;
+	}
+
+	/**
+	 * Slices the query by these values of the variable instead of by Q-id
+	 * range, in groups of about the same number of values and a last slice for
+	 * the rest; the pattern, which may be null, is added to the slices with
+	 * values.
+	 */
+	public void setValues(List<String> values, String pattern) {
+		this.values = values == null || values.isEmpty() ? null : values;
+		this.pattern = pattern == null || pattern.trim().equals("") ? null : pattern.trim();
+	}
+
+	/**
+	 * Answers the slices from this cache, see {@link QueryCache}. May be null.
+	 */
+	public void setCache(QueryCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * Sets how many times a slice that times out is halved; 0 to retry it
+	 * as it is.
+	 */
+	public void setSplits(int splits) {
+		this.splits = Math.max(0, splits);
+	}
+
+	/**
+	 * Sets how many rows of the slices are held in memory at most, and where
+	 * the rest is spilled to; null for the temporary folder.
+	 */
+	public void setBuffer(int rows, File spillDir) {
+		this.buffer = new Semaphore(Math.max(0, rows));
+		this.spillDir = spillDir;
+	}
+
+	/**
+	 * Returns the query restricted to the items with a Q-id in [from, to), or
+	 * with values the values from index <code>from</code> to <code>to</code>,
+	 * -1 being the rest. The last slice has no upper bound, so new items are
+	 * never missed. The restriction is added before the last closing brace.
+	 */
+	public String slice(long from, long to) {
+		String restriction;
+		if (values != null && from < 0) {
+			restriction = "  FILTER(!BOUND(?" + variable + ") || ?" + variable + " NOT IN (" + join(values, 0, values.size(), ", ")
+					+ "))\n";
+		} else if (values != null) {
+			restriction = "  VALUES ?" + variable + " { " + join(values, (int) from, (int) to, " ") + " }\n"
+					+ (pattern == null ? "" : "  " + pattern + "\n");
+		} else {
+			String qid = "xsd:integer(STRAFTER(STR(?" + variable + "), \"/entity/Q\"))";
+			restriction = "  FILTER(" + qid + " >= " + from + (to > 0 ? " && " + qid + " < " + to : "") + ")\n";
+		}
+		int end = query.lastIndexOf('}');
+		return query.substring(0, end) + restriction + query.substring(end);
+	}
+
+	private static String join(List<String> values, int from, int to, String separator) {
+		StringBuilder joined = new StringBuilder();
+		for (int i = from; i < to; i++) {
+			if (i > from) joined.append(separator);
+			joined.append(values.get(i));
+		}
+		return joined.toString();
+	}
+
+	public List<String> slices() {
+		List<String> slices = new ArrayList<String>();
+		for (long[] range : ranges()) slices.add(slice(range[0], range[1]));
+		return slices;
+	}
+
+	/**
+	 * The Q-id ranges [from, to) of the slices; the last one has no upper
+	 * bound, -1. With values, the ranges of their indexes and {-1, -1} for the
+	 * rest.
+	 */
+	private List<long[]> ranges() {
+		List<long[]> ranges = new ArrayList<long[]>();
+		if (values != null) {
+			int groups = Math.min(count, values.size());
+			for (int i = 0; i < groups; i++) {
+				ranges.add(new long[] { (long) i * values.size() / groups, (long) (i + 1) * values.size() / groups });
+			}
+			ranges.add(new long[] { -1, -1 });
+			return ranges;
+		}
+		long size = (maxQid + count - 1) / count;
+		for (int i = 0; i < count; i++) {
+			long to = (i == count - 1) ? -1 : (i + 1) * size;
+			ranges.add(new long[] { i * size, to });
+		}
+		return ranges;
+	}
+
+	public void fetch(RowHandler handler) throws IDMapperException {
+		fetch(handler, new BuildMetrics("build", BuildMetrics.DEFAULT_PROGRESS_INTERVAL), null);
+	}
+
+	/**
+	 * Fetches the slices, counting rows and the latency of every slice query
+	 * in the metrics. The writer may be null.
+	 */
+	public void fetch(RowHandler handler, final BuildMetrics metrics, MappingWriter writer) throws IDMapperException {
+		if (variable == null) throw new IDMapperException("partition.variable is not set");
+		ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+		CompletionService<Slice> done = new ExecutorCompletionService<Slice>(pool);
+		Map<Future<Slice>, Integer> numbers = new HashMap<Future<Slice>, Integer>();
+		final AtomicBoolean abandoned = new AtomicBoolean(false);
+		Set<Integer> handled = new TreeSet<Integer>();
+		if (writer != null && writer.getPosition() != null) {
+			for (String number : writer.getPosition().split(",")) {
+				if (!number.trim().equals("")) handled.add(Integer.valueOf(number.trim()));
+			}
+		}
+		try {
+			final List<long[]> ranges = ranges();
+			for (int i = 0; i < ranges.size(); i++) {
+				final long[] range = ranges.get(i);
+				final int number = i + 1;
+				if (handled.contains(number)) continue;
+				numbers.put(done.submit(new Callable<Slice>() {
+					public Slice call() throws Exception {
+						Slice slice = fetchSlice(range[0], range[1], number, ranges.size(), metrics);
+						// a query that does not stop when interrupted may finish after the fetch failed
+						if (abandoned.get()) slice.discard();
+						return slice;
+					}
+				}), number);
+			}
+			for (int i = 0; i < numbers.size(); i++) {
+				Future<Slice> future = done.take();
+				Slice slice = future.get();
+				try {
+					slice.handTo(handler);
+				} finally {
+					slice.discard();
+				}
+				handled.add(numbers.get(future));
+				if (writer != null) writer.checkpoint(join(handled));
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDMapperException("Interrupted while fetching slices", e);
+		} catch (ExecutionException e) {
+			throw new IDMapperException("Slice failed after " + (retries + 1) + " attempts", e.getCause());
+		} finally {
+			abandoned.set(true);
+			pool.shutdownNow();
+			// slices that were read but not handed over
+			for (Future<Slice> future : numbers.keySet()) {
+				if (!future.isDone() || future.isCancelled()) continue;
+				try {
+					future.get().discard();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					// nothing was kept of it
+				}
+			}
+		}
+	}
+
+	private static String join(Set<Integer> numbers) {
+		StringBuilder joined = new StringBuilder();
+		for (Integer number : numbers) {
+			if (joined.length() > 0) joined.append(',');
+			joined.append(number);
+		}
+		return joined.toString();
+	}
+
+	private Slice fetchSlice(long from, long to, int number, int slices, BuildMetrics metrics) throws Exception {
+		for (int attempt = 0; ; attempt++) {
+			try {
+				Slice slice = fetchRange(from, to, splits, metrics);
+				log.info("Slice " + number + "/" + slices + ": " + slice.rows + " rows"
+						+ (slice.spilled > 0 ? ", " + slice.spilled + " spilled to disk" : ""));
+				return slice;
+			} catch (RuntimeException e) {
+				if (attempt >= retries) throw e;
+				log.warn("Slice " + number + "/" + slices + " failed, retrying: " + e.getMessage());
+				Thread.sleep(SparqlClient.backoff(attempt));
+			}
+		}
+	}
+
+	/**
+	 * Reads the rows of the items in [from, to), or of both halves of that
+	 * range when the query times out.
+	 *
+	 * @param depth how many more times the range may be halved
+	 */
+	private Slice fetchRange(long from, long to, int depth, BuildMetrics metrics) throws IOException {
+		Slice slice = new Slice();
+		long start = System.nanoTime();
+		try (TupleQueryResult result = Utils.evaluate(slice(from, to), cache)) {
+			if (result.hasNext()) metrics.queried(System.nanoTime() - start);
+			List<String> names = result.getBindingNames();
+			while (result.hasNext()) slice.add(result.next(), names);
+			slice.finish(names);
+		} catch (RuntimeException | IOException e) {
+			slice.discard();
+			// the open-ended last slice is split at partition.max.qid, the rest of the values cannot be split
+			long end = values != null ? to : to > 0 ? to : maxQid;
+			if (depth <= 0 || end - from < 2 || !SparqlClient.isTimeout(e)) throw e;
+			long middle = from + (end - from) / 2;
+			if (values != null) {
+				log.warn(join(values, (int) from, (int) to, " ") + " timed out, fetching them in halves");
+			} else {
+				log.warn("Q-ids " + from + (to > 0 ? " to " + to : " and up") + " timed out, fetching them in halves");
+			}
+			slice = fetchRange(from, middle, depth - 1, metrics);
+			try {
+				slice.append(fetchRange(middle, to, depth - 1, metrics));
+			} catch (RuntimeException | IOException f) {
+				slice.discard();
+				throw f;
+			}
+			return slice;
+		}
+		metrics.rowsFetched(slice.rows);
+		return slice;
+	}
+
+	/**
+	 * The rows of a slice in the order they were read: batches in memory
+	 * while the buffer has room, and once it had not, the rest of the slice
+	 * in a spill file.
+	 */
+	private class Slice {
+
+		// a batch of rows, or the spill file
+		private final List<Object> chunks = new ArrayList<Object>();
+		private final List<File> files = new ArrayList<File>();
+		private List<BindingSet> batch = new ArrayList<BindingSet>(Pipeline.BATCH);
+		private OutputStream out;
+		private TupleQueryResultWriter spill;
+		private int held = 0;
+		long rows = 0;
+		long spilled = 0;
+
+		void add(BindingSet bs, List<String> names) throws IOException {
+			batch.add(bs);
+			rows++;
+			if (batch.size() == Pipeline.BATCH) store(names);
+		}
+
+		private void store(List<String> names) throws IOException {
+			if (batch.isEmpty()) return;
+			if (spill == null && buffer.tryAcquire(batch.size())) {
+				held += batch.size();
+				chunks.add(batch);
+				batch = new ArrayList<BindingSet>(Pipeline.BATCH);
+				return;
+			}
+			if (spill == null) {
+				File file = File.createTempFile("slice-", ".brt", spillDir);
+				files.add(file);
+				chunks.add(file);
+				out = new BufferedOutputStream(new FileOutputStream(file), 65536);
+				spill = QueryResultIO.createTupleWriter(TupleQueryResultFormat.BINARY, out);
+				spill.startQueryResult(names);
+			}
+			for (BindingSet bs : batch) spill.handleSolution(bs);
+			spilled += batch.size();
+			batch.clear();
+		}
+
+		/**
+		 * Stores the last batch once the slice was read to the end.
+		 */
+		void finish(List<String> names) throws IOException {
+			store(names);
+			if (out == null) return;
+			spill.endQueryResult();
+			out.close();
+			out = null;
+		}
+
+		void append(Slice other) {
+			chunks.addAll(other.chunks);
+			files.addAll(other.files);
+			held += other.held;
+			rows += other.rows;
+			spilled += other.spilled;
+			other.chunks.clear();
+			other.files.clear();
+			other.held = 0;
+		}
+
+		@SuppressWarnings("unchecked")
+		void handTo(final RowHandler handler) throws IDMapperException {
+			for (Object chunk : chunks) {
+				if (chunk instanceof File) {
+					read((File) chunk, handler);
+					continue;
+				}
+				List<BindingSet> batchRows = (List<BindingSet>) chunk;
+				for (BindingSet bs : batchRows) handler.handle(bs);
+				buffer.release(batchRows.size());
+				held -= batchRows.size();
+			}
+			chunks.clear();
+		}
+
+		private void read(File file, final RowHandler handler) throws IDMapperException {
+			try {
+				InputStream in = new BufferedInputStream(new FileInputStream(file), 65536);
+				try {
+					QueryResultIO.parseTuple(in, TupleQueryResultFormat.BINARY, new AbstractTupleQueryResultHandler() {
+						@Override
+						public void handleSolution(BindingSet bs) throws TupleQueryResultHandlerException {
+							try {
+								handler.handle(bs);
+							} catch (IDMapperException e) {
+								throw new TupleQueryResultHandlerException(e);
+							}
+						}
+					}, SimpleValueFactory.getInstance());
+				} finally {
+					in.close();
+				}
+			} catch (TupleQueryResultHandlerException e) {
+				if (e.getCause() instanceof IDMapperException) throw (IDMapperException) e.getCause();
+				throw new IDMapperException("Could not read spilled slice " + file, e);
+			} catch (QueryResultParseException e) {
+				throw new IDMapperException("Could not read spilled slice " + file, e);
+			} catch (IOException e) {
+				throw new IDMapperException("Could not read spilled slice " + file, e);
+			}
+		}
+
+		/**
+		 * Gives back the room in the buffer and removes the spill files.
+		 */
+		synchronized void discard() {
+			buffer.release(held);
+			held = 0;
+			chunks.clear();
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					// the file is removed anyway
+				}
+				out = null;
+			}
+			for (File file : files) file.delete();
+			files.clear();
+		}
+	}
+}
@@ -0,0 +1,562 @@
+package org.bridgedb.wikidata.utils;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+
+/**
+ * Runs the ingestion of a build as stages on threads of their own, connected
+ * by bounded queues of batches, when <code>pipeline=true</code>:
+ * <ul>
+ * <li><code>fetch</code> reads a query result from the endpoint, see
+ * {@link #fetch(TupleQueryResult, RowHandler, BuildMetrics, long)}, or
+ * <code>read</code> reads the rows of a TSV file, see
+ * {@link #readTsv(TsvReader, long, RowMapping.TsvRows, MappingWriter, BuildMetrics)};</li>
+ * <li><code>rows</code>, the thread of the build, turns rows into Xrefs;</li>
+ * <li><code>group</code> groups them per main Xref in the
+ * {@link MappingWriter}, see {@link Grouping};</li>
+ * <li><code>writer</code> is the only thread that writes to the database,
+ * see {@link #writer(MappingSink, Properties)}.</li>
+ * </ul>
+ * A stage that gets ahead blocks on the full queue to the next one, and an
+ * error in a stage is thrown in the build thread the next time it hands over
+ * or takes a batch. Calls to the writer are carried out in the order of the
+ * build, and commits wait until the writer has written and committed
+ * everything before them, so checkpoints stay correct. The time each stage
+ * was busy, waiting and blocked is reported in the {@link BuildMetrics}.
+ * <p>
+ * Sliced queries and dumps are already read by threads of their own, so
+ * those start at the <code>rows</code> stage. On Java 21 and later the
+ * stages run on virtual threads, which are looked up by reflection as the
+ * build targets Java 8; before that they are daemon platform threads.
+ */
+public class Pipeline {
+
+	public static final int DEFAULT_QUEUE = 16;
+
+	static final int BATCH = 1000;
+
+	private static final Method OF_VIRTUAL;
+	private static final Method NAME;
+	private static final Method UNSTARTED;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		try {
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+		} catch (Exception e) {
+			// before Java 21
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		NAME = name;
+		UNSTARTED = unstarted;
+	}
+
+	public static boolean isEnabled(Properties props) {
+		return Boolean.parseBoolean(props.getProperty("pipeline", "false").trim());
+	}
+
+	/**
+	 * Returns an unstarted thread for a stage: a virtual thread where the
+	 * runtime has them, otherwise a daemon thread, so that a build that fails
+	 * does not wait for its stages.
+	 */
+	static Thread newThread(Runnable task, String name) {
+		if (OF_VIRTUAL != null) {
+			try {
+				return (Thread) UNSTARTED.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), name), task);
+			} catch (Exception e) {
+				// a preview of virtual threads that is not enabled
+			}
+		}
+		Thread thread = new Thread(task, name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Wraps the database of a build in the writer stage, or returns it
+	 * unchanged when the pipeline is not enabled.
+	 */
+	public static MappingSink writer(MappingSink newDb, Properties props) {
+		if (!isEnabled(props)) return newDb;
+		return new PipelinedSink(newDb, Utils.getIntProperty(props, "pipeline.queue", DEFAULT_QUEUE),
+				BuildMetrics.of(props));
+	}
+
+	/**
+	 * Hands the rows of a query result to the handler, reading the result on
+	 * a thread of its own, and closes the result. The time the build thread
+	 * runs is counted by the grouping stage of its writer.
+	 *
+	 * @param start when the query was sent, to record the latency of the first row
+	 */
+	static void fetch(final TupleQueryResult result, RowHandler handler, final BuildMetrics metrics, final long start)
+			throws IDMapperException {
+		final BuildMetrics.Stage fetch = metrics.stage("fetch");
+		BuildMetrics.Stage rows = metrics.stage("rows");
+		final Handoff<List<BindingSet>> queue = new Handoff<List<BindingSet>>(DEFAULT_QUEUE);
+		Thread reader = newThread(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				try {
+					List<BindingSet> batch = new ArrayList<BindingSet>(BATCH);
+					boolean first = true;
+					while (result.hasNext()) {
+						if (first) {
+							metrics.queried(System.nanoTime() - start);
+							first = false;
+						}
+						batch.add(result.next());
+						if (batch.size() == BATCH) {
+							metrics.rowsFetched(batch.size());
+							queue.put(batch, fetch);
+							batch = new ArrayList<BindingSet>(BATCH);
+						}
+					}
+					metrics.rowsFetched(batch.size());
+					if (!batch.isEmpty()) queue.put(batch, fetch);
+					queue.end(fetch);
+				} catch (Throwable e) {
+					queue.fail(e);
+				} finally {
+					try {
+						result.close();
+					} catch (RuntimeException e) {
+						// the result was read or has failed already
+					}
+					fetch.ran(System.nanoTime() - begin);
+				}
+			}
+		}, "fetch-" + Thread.currentThread().getName());
+		reader.start();
+		boolean done = false;
+		try {
+			List<BindingSet> batch;
+			while ((batch = queue.take(rows)) != null) {
+				for (BindingSet bs : batch) handler.handle(bs);
+			}
+			done = true;
+		} finally {
+			if (!done) stop(queue, reader);
+		}
+		join(reader, "Interrupted while closing the query result");
+	}
+
+	/**
+	 * Reads the rows of a TSV file on a thread of its own, after the first
+	 * <code>skip</code> rows, and adds them to the writer on the thread of the
+	 * build, reporting the line of each row as its position.
+	 */
+	static void readTsv(final TsvReader file, final long skip, final RowMapping.TsvRows rows, MappingWriter writer,
+			final BuildMetrics metrics) throws IDMapperException {
+		final BuildMetrics.Stage read = metrics.stage("read");
+		BuildMetrics.Stage build = metrics.stage("rows");
+		final Handoff<List<String[]>> queue = new Handoff<List<String[]>>(DEFAULT_QUEUE);
+		Thread reader = newThread(new Runnable() {
+			public void run() {
+				long begin = System.nanoTime();
+				try {
+					List<String[]> batch = new ArrayList<String[]>(BATCH);
+					long line = 0;
+					while (file.next()) {
+						if (++line <= skip) continue;
+						batch.add(rows.copy(file));
+						if (batch.size() == BATCH) {
+							metrics.rowsFetched(batch.size());
+							queue.put(batch, read);
+							batch = new ArrayList<String[]>(BATCH);
+						}
+					}
+					metrics.rowsFetched(batch.size());
+					if (!batch.isEmpty()) queue.put(batch, read);
+					queue.end(read);
+				} catch (Throwable e) {
+					queue.fail(e);
+				} finally {
+					read.ran(System.nanoTime() - begin);
+				}
+			}
+		}, "read-" + Thread.currentThread().getName());
+		reader.start();
+		boolean done = false;
+		try {
+			long line = skip;
+			List<String[]> batch;
+			while ((batch = queue.take(build)) != null) {
+				for (String[] row : batch) {
+					rows.add(row);
+					writer.reached(String.valueOf(++line));
+				}
+			}
+			done = true;
+		} finally {
+			if (!done) stop(queue, reader);
+		}
+		join(reader, "Interrupted while reading the file");
+	}
+
+	/**
+	 * Tells a reader that its rows are no longer taken.
+	 */
+	private static void stop(Handoff<?> queue, Thread reader) {
+		queue.close();
+		reader.interrupt();
+	}
+
+	private static void join(Thread reader, String message) throws IDMapperException {
+		try {
+			reader.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IDMapperException(message, e);
+		}
+	}
+
+	/**
+	 * A bounded queue between two stages that carries the end of the input
+	 * and errors of the producer, and counts the time both sides wait.
+	 */
+	static class Handoff<T> {
+
+		private final BlockingQueue<Object> queue;
+		private final Object end = new Object();
+		private volatile Throwable failure;
+		private volatile boolean closed = false;
+
+		Handoff(int capacity) {
+			queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity));
+		}
+
+		/**
+		 * Waits for room in the queue; fails when the consumer gave up.
+		 */
+		void put(T item, BuildMetrics.Stage producer) throws InterruptedException {
+			offer(item, producer);
+		}
+
+		void end(BuildMetrics.Stage producer) throws InterruptedException {
+			offer(end, producer);
+		}
+
+		private void offer(Object item, BuildMetrics.Stage producer) throws InterruptedException {
+			long start = System.nanoTime();
+			try {
+				do {
+					if (closed) throw new InterruptedException("The next stage has stopped");
+				} while (!queue.offer(item, 1, TimeUnit.SECONDS));
+			} finally {
+				producer.blocked(System.nanoTime() - start);
+			}
+		}
+
+		/**
+		 * Fails the consumer with the error of the producer.
+		 */
+		void fail(Throwable e) {
+			failure = e;
+			queue.clear();
+			queue.offer(end);
+		}
+
+		/**
+		 * Returns the next item, or null at the end of the input.
+		 */
+		@SuppressWarnings("unchecked")
+		T take(BuildMetrics.Stage consumer) throws IDMapperException {
+			long start = System.nanoTime();
+			Object item;
+			try {
+				item = queue.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IDMapperException("Interrupted while waiting for the previous stage", e);
+			} finally {
+				consumer.waited(System.nanoTime() - start);
+			}
+			if (failure != null) throw new IDMapperException("The previous stage failed", failure);
+			return item == end ? null : (T) item;
+		}
+
+		/**
+		 * Tells the producer that no more items are taken.
+		 */
+		void close() {
+			closed = true;
+			queue.clear();
+		}
+	}
+
+	/**
+	 * Groups the mappings of a {@link MappingWriter} on a thread of its own.
+	 * The calls of the build are collected in batches and queued in order,
+	 * and carried out on the writer by {@link MappingWriter#apply}; closing
+	 * waits until they are all done.
+	 */
+	static class Grouping implements Runnable {
+
+		static final byte MAIN = 0;
+		static final byte LINK = 1;
+		static final byte ATTRIBUTE = 2;
+		static final byte REACHED = 3;
+		static final byte CHECKPOINT = 4;
+		static final byte FLUSH = 5;
+
+		private final MappingWriter writer;
+		private final Handoff<Batch> queue;
+		private final BuildMetrics.Stage rows;
+		private final BuildMetrics.Stage group;
+		private final Thread thread;
+		private final long started = System.nanoTime();
+		private Batch batch = new Batch();
+		private volatile Throwable failure;
+
+		Grouping(MappingWriter writer, int capacity, BuildMetrics metrics) {
+			this.writer = writer;
+			this.queue = new Handoff<Batch>(capacity);
+			this.rows = metrics.stage("rows");
+			this.group = metrics.stage("group");
+			this.thread = newThread(this, "group-" + Thread.currentThread().getName());
+			thread.start();
+		}
+
+		void add(byte op, Xref left, Xref right, String name, String value) throws IDMapperException {
+			batch.add(op, left, right, name, value);
+			if (batch.size == BATCH) send();
+		}
+
+		/**
+		 * Hands the calls so far to the grouping thread.
+		 */
+		void send() throws IDMapperException {
+			if (batch.size == 0) return;
+			try {
+				queue.put(batch, rows);
+			} catch (InterruptedException e) {
+				throw interrupted(e);
+			}
+			batch = new Batch();
+		}
+
+		/**
+		 * Waits until all calls are carried out.
+		 */
+		void close() throws IDMapperException {
+			send();
+			try {
+				queue.end(rows);
+				thread.join();
+			} catch (InterruptedException e) {
+				throw interrupted(e);
+			} finally {
+				rows.ran(System.nanoTime() - started);
+			}
+			checkFailure();
+		}
+
+		private IDMapperException interrupted(InterruptedException e) throws IDMapperException {
+			checkFailure();
+			Thread.currentThread().interrupt();
+			return new IDMapperException("Interrupted while waiting for the grouping stage", e);
+		}
+
+		private void checkFailure() throws IDMapperException {
+			if (failure != null) throw new IDMapperException("Could not group the mappings", failure);
+		}
+
+		public void run() {
+			long begin = System.nanoTime();
+			try {
+				Batch next;
+				while ((next = queue.take(group)) != null) {
+					for (int i = 0; i < next.size; i++) {
+						writer.apply(next.ops[i], next.lefts[i], next.rights[i], next.names[i], next.values[i]);
+					}
+				}
+			} catch (Throwable e) {
+				failure = e;
+				queue.close();
+			} finally {
+				group.ran(System.nanoTime() - begin);
+			}
+		}
+	}
+
+	/**
+	 * Writes to the database on a thread of its own. The calls of the
+	 * grouping stage are collected in batches of operations and queued;
+	 * commits and finish wait until the writer is done.
+	 */
+	private static class PipelinedSink implements MappingSink, Runnable {
+
+		private static final byte INFO = 0;
+		private static final byte GENE = 1;
+		private static final byte ATTRIBUTE = 2;
+		private static final byte LINK = 3;
+
+		private final MappingSink newDb;
+		private final Handoff<Batch> queue;
+		private final BuildMetrics.Stage group;
+		private final BuildMetrics.Stage writer;
+		private final Thread thread;
+		private Batch batch = new Batch();
+		private volatile Throwable failure;
+
+		PipelinedSink(MappingSink newDb, int capacity, BuildMetrics metrics) {
+			this.newDb = newDb;
+			this.queue = new Handoff<Batch>(capacity);
+			this.group = metrics.stage("group");
+			this.writer = metrics.stage("writer");
+			this.thread = newThread(this, "writer-" + Thread.currentThread().getName());
+			thread.start();
+		}
+
+		public void setInfo(String key, String value) throws IDMapperException {
+			add(INFO, null, null, key, value);
+		}
+
+		public void addGene(Xref xref) throws IDMapperException {
+			add(GENE, xref, null, null, null);
+		}
+
+		public void addAttribute(Xref xref, String name, String value) throws IDMapperException {
+			add(ATTRIBUTE, xref, null, name, value);
+		}
+
+		public void addLink(Xref left, Xref right) throws IDMapperException {
+			add(LINK, left, right, null, null);
+		}
+
+		private void add(byte op, Xref left, Xref right, String name, String value) throws IDMapperException {
+			batch.add(op, left, right, name, value);
+			if (batch.size == BATCH) send(new Batch());
+		}
+
+		/**
+		 * Commits once the writer has written everything before.
+		 */
+		public void commit() throws IDMapperException {
+			Batch last = batch;
+			last.commit = new CountDownLatch(1);
+			send(new Batch());
+			await(last.commit);
+		}
+
+		/**
+		 * Waits for the writer and finishes the database.
+		 */
+		public void finish() throws IDMapperException {
+			send(null);
+			join(thread, "Interrupted while waiting for the writer");
+			checkFailure();
+			newDb.finish();
+		}
+
+		private void send(Batch next) throws IDMapperException {
+			try {
+				if (batch.size > 0 || batch.commit != null) queue.put(batch, group);
+				if (next == null) queue.end(group);
+			} catch (InterruptedException e) {
+				checkFailure();
+				Thread.currentThread().interrupt();
+				throw new IDMapperException("Interrupted while waiting for the writer", e);
+			}
+			batch = next;
+		}
+
+		private void await(CountDownLatch done) throws IDMapperException {
+			long start = System.nanoTime();
+			try {
+				// the commit is dropped when the writer fails before it
+				while (!done.await(1, TimeUnit.SECONDS)) checkFailure();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IDMapperException("Interrupted while waiting for a commit", e);
+			} finally {
+				group.blocked(System.nanoTime() - start);
+			}
+			checkFailure();
+		}
+
+		private void checkFailure() throws IDMapperException {
+			if (failure != null) throw new IDMapperException("Could not write the database", failure);
+		}
+
+		public void run() {
+			long begin = System.nanoTime();
+			Batch next = null;
+			try {
+				while ((next = queue.take(writer)) != null) {
+					next.writeTo(newDb);
+					if (next.commit != null) {
+						newDb.commit();
+						next.commit.countDown();
+					}
+				}
+			} catch (Throwable e) {
+				failure = e;
+				queue.close();
+				if (next != null && next.commit != null) next.commit.countDown();
+			} finally {
+				writer.ran(System.nanoTime() - begin);
+			}
+		}
+	}
+
+	/**
+	 * Calls to the writer or the database, as parallel arrays.
+	 */
+	private static class Batch {
+
+		final byte[] ops = new byte[BATCH];
+		final Xref[] lefts = new Xref[BATCH];
+		final Xref[] rights = new Xref[BATCH];
+		final String[] names = new String[BATCH];
+		final String[] values = new String[BATCH];
+		int size = 0;
+		CountDownLatch commit;
+
+		void add(byte op, Xref left, Xref right, String name, String value) {
+			ops[size] = op;
+			lefts[size] = left;
+			rights[size] = right;
+			names[size] = name;
+			values[size] = value;
+			size++;
+		}
+
+		void writeTo(MappingSink newDb) throws IDMapperException {
+			for (int i = 0; i < size; i++) {
+				switch (ops[i]) {
+				case PipelinedSink.INFO:
+					newDb.setInfo(names[i], values[i]);
+					break;
+				case PipelinedSink.GENE:
+					newDb.addGene(lefts[i]);
+					break;
+				case PipelinedSink.ATTRIBUTE:
+					newDb.addAttribute(lefts[i], names[i], values[i]);
+					break;
+				default:
+					newDb.addLink(lefts[i], rights[i]);
+				}
+			}
+		}
+	}
+}
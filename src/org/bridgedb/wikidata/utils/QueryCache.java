@@ -0,0 +1,405 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.InputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.bridgedb.IDMapperException;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.AbstractTupleQueryResultHandler;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.TupleQueryResultHandlerException;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local cache of query results, so a build that is run again does not send
+ * its queries to the endpoint again. Results are stored under the SHA-256 of
+ * the endpoint and the query text, gzip-compressed in the binary results
+ * format, and read back as a stream through the same
+ * {@link TupleQueryResult} interface as a live answer. A live answer is only
+ * stored when it was read to the end.
+ * <p>
+ * Enabled with <code>query.cache=true</code>. The time a result was fetched
+ * is part of its file name (<code>key-millis.brt.gz</code>), and results
+ * older than <code>query.cache.ttl.hours</code> are fetched again, however
+ * often they are used. The modification time is set on every use, and the
+ * least recently used results are removed when the folder
+ * <code>query.cache.dir</code> grows beyond <code>query.cache.max.mb</code>.
+ */
+public class QueryCache {
+
+	private static final Logger log = LoggerFactory.getLogger(QueryCache.class);
+
+	public static final String DEFAULT_DIR = "cache/queries";
+	public static final int DEFAULT_TTL_HOURS = 24;
+	public static final int DEFAULT_MAX_MB = 2048;
+
+	private static final String SUFFIX = ".brt.gz";
+
+	private static final ExecutorService READERS = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "query-cache-reader");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final File dir;
+	private final long ttl;
+	private final long maxBytes;
+
+	public QueryCache(File dir, long ttl, long maxBytes) {
+		this.dir = dir;
+		this.ttl = ttl;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cache configured in the properties, or null when it is not
+	 * enabled.
+	 */
+	public static QueryCache fromProperties(Properties props) {
+		if (!Boolean.parseBoolean(props.getProperty("query.cache", "false").trim())) return null;
+		return new QueryCache(new File(props.getProperty("query.cache.dir", DEFAULT_DIR).trim()),
+				Utils.getIntProperty(props, "query.cache.ttl.hours", DEFAULT_TTL_HOURS) * 3600000L,
+				Utils.getIntProperty(props, "query.cache.max.mb", DEFAULT_MAX_MB) * 1048576L);
+	}
+
+	/**
+	 * Returns the cached result of the query when it is fresh, and otherwise
+	 * evaluates it with {@link SparqlClient} and stores the answer while it
+	 * is being read. The caller closes the result.
+	 */
+	public TupleQueryResult evaluate(String endpoint, String query) throws QueryEvaluationException {
+		String key = sha256(endpoint + "\n" + query);
+		File file = cached(key);
+		if (file != null && System.currentTimeMillis() - fetched(file) < ttl) {
+			try {
+				CachedResult cached = new CachedResult(
+						new BufferedInputStream(new GZIPInputStream(new FileInputStream(file), 65536), 65536));
+				READERS.execute(cached);
+				// the modification time orders the results for eviction
+				file.setLastModified(System.currentTimeMillis());
+				log.info("Query cache hit for " + key);
+				return cached;
+			} catch (IOException e) {
+				log.warn("Could not read cached result " + file + ", querying again: " + e.getMessage());
+			}
+		}
+		long fetched = System.currentTimeMillis();
+		TupleQueryResult result = SparqlClient.evaluate(endpoint, query);
+		try {
+			dir.mkdirs();
+			return new RecordingResult(result, key, new File(dir, key + "-" + fetched + SUFFIX));
+		} catch (IOException e) {
+			log.warn("Could not cache the result in " + dir + ": " + e.getMessage());
+			return result;
+		}
+	}
+
+	/**
+	 * Returns the stored result of the key fetched last, or null.
+	 */
+	private File cached(String key) {
+		File latest = null;
+		for (File file : results(key)) {
+			if (latest == null || fetched(file) > fetched(latest)) latest = file;
+		}
+		return latest;
+	}
+
+	/**
+	 * The stored results of the key, or of all keys when it is null.
+	 */
+	private File[] results(final String key) {
+		File[] files = dir.listFiles(new FilenameFilter() {
+			public boolean accept(File folder, String name) {
+				return name.endsWith(SUFFIX) && (key == null || name.startsWith(key + "-"));
+			}
+		});
+		return files == null ? new File[0] : files;
+	}
+
+	/**
+	 * When the result in the file was fetched, or 0 when its name does not
+	 * tell.
+	 */
+	static long fetched(File file) {
+		String name = file.getName();
+		int dash = name.lastIndexOf('-');
+		if (dash < 0 || !name.endsWith(SUFFIX)) return 0;
+		try {
+			return Long.parseLong(name.substring(dash + 1, name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Removes the least recently used results until the cache is within its
+	 * size, and results that have expired.
+	 */
+	void evict() {
+		File[] files = results(null);
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				return Long.compare(b.lastModified(), a.lastModified());
+			}
+		});
+		long now = System.currentTimeMillis();
+		long total = 0;
+		for (File file : files) {
+			total += file.length();
+			if (total > maxBytes || now - fetched(file) >= ttl) {
+				if (file.delete()) log.info("Evicted " + file.getName() + " from the query cache");
+			}
+		}
+	}
+
+	private static String sha256(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Writes the rows of a live result to a temporary file while they are
+	 * read, and moves it into the cache once the last row has been read,
+	 * replacing the results of the key fetched before.
+	 */
+	private class RecordingResult implements TupleQueryResult {
+
+		private final TupleQueryResult result;
+		private final String key;
+		private final File file;
+		private final File tmp;
+		private final OutputStream out;
+		private TupleQueryResultWriter writer;
+		private boolean closed = false;
+
+		RecordingResult(TupleQueryResult result, String key, File file) throws IOException {
+			this.result = result;
+			this.key = key;
+			this.file = file;
+			this.tmp = File.createTempFile("query-", ".part", file.getParentFile());
+			this.out = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536), 65536);
+		}
+
+		@Override
+		public List<String> getBindingNames() throws QueryEvaluationException {
+			return result.getBindingNames();
+		}
+
+		@Override
+		public boolean hasNext() throws QueryEvaluationException {
+			boolean hasNext = result.hasNext();
+			if (!hasNext && !closed) store();
+			return hasNext;
+		}
+
+		@Override
+		public BindingSet next() throws QueryEvaluationException {
+			BindingSet bs = result.next();
+			if (closed) return bs;
+			try {
+				start();
+				writer.handleSolution(bs);
+			} catch (RuntimeException e) {
+				log.warn("Could not cache the result in " + file + ": " + e.getMessage());
+				discard();
+			}
+			return bs;
+		}
+
+		@Override
+		public void remove() throws QueryEvaluationException {
+			result.remove();
+		}
+
+		private void start() {
+			if (writer != null) return;
+			writer = QueryResultIO.createTupleWriter(TupleQueryResultFormat.BINARY, out);
+			writer.startQueryResult(result.getBindingNames());
+		}
+
+		private void store() {
+			try {
+				start();
+				writer.endQueryResult();
+				out.close();
+				closed = true;
+				Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+				for (File older : results(key)) {
+					if (!older.equals(file)) older.delete();
+				}
+				evict();
+			} catch (IOException e) {
+				log.warn("Could not cache the result in " + file + ": " + e.getMessage());
+				discard();
+			} catch (RuntimeException e) {
+				log.warn("Could not cache the result in " + file + ": " + e.getMessage());
+				discard();
+			}
+		}
+
+		private void discard() {
+			closed = true;
+			try {
+				out.close();
+			} catch (IOException e) {
+				// the incomplete result is not kept
+			}
+			tmp.delete();
+		}
+
+		@Override
+		public void close() throws QueryEvaluationException {
+			try {
+				result.close();
+			} finally {
+				if (!closed) discard();
+			}
+		}
+	}
+
+	/**
+	 * Streams a stored result, parsed in batches by a reader thread with the
+	 * push parser of the binary format.
+	 */
+	private static class CachedResult extends AbstractTupleQueryResultHandler implements TupleQueryResult, Runnable {
+
+		private final InputStream in;
+		private final Pipeline.Handoff<List<BindingSet>> queue =
+				new Pipeline.Handoff<List<BindingSet>>(Pipeline.DEFAULT_QUEUE);
+		// the cache is not a stage of the build, its waits are not reported
+		private final BuildMetrics.Stage stage = new BuildMetrics.Stage();
+		private final CountDownLatch started = new CountDownLatch(1);
+		private volatile List<String> bindingNames;
+		private List<BindingSet> parsed = new ArrayList<BindingSet>(Pipeline.BATCH);
+		private List<BindingSet> batch;
+		private int next = 0;
+		private boolean done = false;
+
+		CachedResult(InputStream in) {
+			this.in = in;
+		}
+
+		public void run() {
+			try {
+				QueryResultIO.parseTuple(in, TupleQueryResultFormat.BINARY, this, SimpleValueFactory.getInstance());
+				if (!parsed.isEmpty()) queue.put(parsed, stage);
+				queue.end(stage);
+			} catch (Throwable e) {
+				queue.fail(e);
+			} finally {
+				started.countDown();
+				closeInput();
+			}
+		}
+
+		@Override
+		public void startQueryResult(List<String> names) {
+			bindingNames = names;
+			started.countDown();
+		}
+
+		@Override
+		public void handleSolution(BindingSet bs) throws TupleQueryResultHandlerException {
+			parsed.add(bs);
+			if (parsed.size() < Pipeline.BATCH) return;
+			try {
+				queue.put(parsed, stage);
+			} catch (InterruptedException e) {
+				throw new TupleQueryResultHandlerException(e);
+			}
+			parsed = new ArrayList<BindingSet>(Pipeline.BATCH);
+		}
+
+		@Override
+		public List<String> getBindingNames() throws QueryEvaluationException {
+			try {
+				started.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new QueryEvaluationException(e);
+			}
+			if (bindingNames == null) hasNext();
+			return bindingNames;
+		}
+
+		@Override
+		public boolean hasNext() throws QueryEvaluationException {
+			while (!done && (batch == null || next == batch.size())) {
+				try {
+					batch = queue.take(stage);
+				} catch (IDMapperException e) {
+					done = true;
+					throw new QueryEvaluationException("Could not read the cached result", e.getCause());
+				}
+				next = 0;
+				if (batch == null) done = true;
+			}
+			return !done;
+		}
+
+		@Override
+		public BindingSet next() throws QueryEvaluationException {
+			if (!hasNext()) throw new NoSuchElementException();
+			return batch.get(next++);
+		}
+
+		@Override
+		public void remove() throws QueryEvaluationException {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() throws QueryEvaluationException {
+			done = true;
+			queue.close();
+		}
+
+		private void closeInput() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				// nothing more is read from it
+			}
+		}
+	}
+}
@@ -0,0 +1,225 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Local cache for the previous releases that builds compare with. Files are
+ * stored under the SHA-256 of their content, and an index file per URL
+ * records which content the URL served last, with its ETag and
+ * Last-Modified headers. A cached release is revalidated with a conditional
+ * request and only downloaded again when it changed; when the server cannot
+ * be reached the cached copy is used.
+ * <p>
+ * The cache folder is set with <code>release.cache.dir</code>. Jobs must not
+ * use the cached files directly but their own copy, see {@link #checkout(File)}.
+ */
+public class ReleaseCache {
+
+	private static final Logger log = LoggerFactory.getLogger(ReleaseCache.class);
+
+	public static final String DEFAULT_DIR = "cache/releases";
+	public static final int CONNECT_TIMEOUT = 30000;
+	public static final int READ_TIMEOUT = 300000;
+
+	private static final ConcurrentHashMap<String, Object> LOCKS = new ConcurrentHashMap<String, Object>();
+	private static final ExecutorService PREFETCH = Executors.newCachedThreadPool(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, "release-prefetch");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final File dir;
+
+	public ReleaseCache(File dir) {
+		this.dir = dir;
+	}
+
+	public static ReleaseCache fromProperties(Properties props) {
+		return new ReleaseCache(new File(props.getProperty("release.cache.dir", DEFAULT_DIR).trim()));
+	}
+
+	/**
+	 * Starts {@link #get(String)} in the background, so the release is
+	 * downloaded while the database is being built.
+	 */
+	public Future<File> prefetch(final String url) {
+		return PREFETCH.submit(new Callable<File>() {
+			public File call() throws IOException {
+				return get(url);
+			}
+		});
+	}
+
+	/**
+	 * Returns the cached file for the URL after revalidating it, downloading
+	 * it when it is not cached or has changed. A local path is returned as is.
+	 */
+	public File get(String url) throws IOException {
+		File local = new File(url);
+		if (local.isFile()) return local;
+		dir.mkdirs();
+		String key = sha256(url.getBytes(StandardCharsets.UTF_8));
+		Object lock = LOCKS.putIfAbsent(key, new Object());
+		if (lock == null) lock = LOCKS.get(key);
+		synchronized (lock) {
+			RandomAccessFile lockFile = new RandomAccessFile(new File(dir, key + ".lock"), "rw");
+			try {
+				FileLock fileLock = lockFile.getChannel().lock();
+				try {
+					return fetch(url, new File(dir, key + ".properties"));
+				} finally {
+					fileLock.release();
+				}
+			} finally {
+				lockFile.close();
+			}
+		}
+	}
+
+	private File fetch(String url, File indexFile) throws IOException {
+		Properties index = new Properties();
+		if (indexFile.exists()) index = Utils.loadProperties(indexFile.getPath());
+		String sha = index.getProperty("sha256");
+		File cached = sha == null ? null : new File(dir, sha + ".bridge");
+		if (cached != null && (!cached.exists() || cached.length() != Long.parseLong(index.getProperty("size", "-1")))) {
+			cached = null;
+		}
+
+		long start = System.currentTimeMillis();
+		HttpURLConnection con;
+		int status;
+		try {
+			con = (HttpURLConnection) new URL(url).openConnection();
+			con.setConnectTimeout(CONNECT_TIMEOUT);
+			con.setReadTimeout(READ_TIMEOUT);
+			if (cached != null) {
+				if (index.getProperty("etag") != null) con.setRequestProperty("If-None-Match", index.getProperty("etag"));
+				if (index.getProperty("last.modified") != null) {
+					con.setRequestProperty("If-Modified-Since", index.getProperty("last.modified"));
+				}
+			}
+			status = con.getResponseCode();
+		} catch (IOException e) {
+			if (cached == null) throw e;
+			log.warn("Could not revalidate " + url + " (" + e.getMessage() + "), using cached copy");
+			return cached;
+		}
+		if (status == HttpURLConnection.HTTP_NOT_MODIFIED && cached != null) {
+			con.disconnect();
+			log.info("Release cache hit for " + url);
+			return cached;
+		}
+		if (status != HttpURLConnection.HTTP_OK) {
+			con.disconnect();
+			if (cached == null) throw new IOException("Download of " + url + " failed with HTTP " + status);
+			log.warn(url + " answered HTTP " + status + ", using cached copy");
+			return cached;
+		}
+
+		File tmp = File.createTempFile("download-", ".part", dir);
+		MessageDigest digest = newDigest();
+		InputStream in = new DigestInputStream(con.getInputStream(), digest);
+		try {
+			Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			tmp.delete();
+			throw e;
+		} finally {
+			in.close();
+		}
+		String newSha = hex(digest.digest());
+		File object = new File(dir, newSha + ".bridge");
+		if (object.exists()) tmp.delete();
+		else Files.move(tmp.toPath(), object.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+		Properties updated = new Properties();
+		updated.setProperty("url", url);
+		updated.setProperty("sha256", newSha);
+		updated.setProperty("size", String.valueOf(object.length()));
+		if (con.getHeaderField("ETag") != null) updated.setProperty("etag", con.getHeaderField("ETag"));
+		if (con.getHeaderField("Last-Modified") != null) updated.setProperty("last.modified", con.getHeaderField("Last-Modified"));
+		OutputStream out = new FileOutputStream(indexFile);
+		try {
+			updated.store(out, null);
+		} finally {
+			out.close();
+		}
+		if (sha != null && !sha.equals(newSha)) removeUnreferenced(sha);
+		log.info("Downloaded " + url + " (" + object.length() + " B) in "
+				+ ((System.currentTimeMillis() - start) / 1000) + " s");
+		return object;
+	}
+
+	/**
+	 * Deletes the content when no URL in the index refers to it any more.
+	 */
+	private void removeUnreferenced(String sha) throws IOException {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (!file.getName().endsWith(".properties")) continue;
+			if (sha.equals(Utils.loadProperties(file.getPath()).getProperty("sha256"))) return;
+		}
+		new File(dir, sha + ".bridge").delete();
+	}
+
+	/**
+	 * Gives a job its own working copy of a cached file: a hard link when the
+	 * file system allows it, a copy otherwise. The caller deletes it.
+	 */
+	public static File checkout(File cached) throws IOException {
+		File copy = File.createTempFile("old-", ".bridge");
+		copy.delete();
+		try {
+			Files.createLink(copy.toPath(), cached.toPath());
+		} catch (IOException e) {
+			Files.copy(cached.toPath(), copy.toPath());
+		} catch (UnsupportedOperationException e) {
+			Files.copy(cached.toPath(), copy.toPath());
+		}
+		return copy;
+	}
+
+	private static String sha256(byte[] bytes) {
+		return hex(newDigest().digest(bytes));
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String hex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+}
@@ -0,0 +1,697 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayDeque;
+import java.util.Date;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.model.impl.SimpleValueFactory;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryResultHandlerException;
+import org.eclipse.rdf4j.query.TupleQueryResultHandler;
+import org.eclipse.rdf4j.query.TupleQueryResultHandlerException;
+import org.eclipse.rdf4j.query.resultio.QueryResultIO;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultParserRegistry;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultWriterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local SPARQL endpoint that serves recorded query results, so builds can
+ * be tested and benchmarked without the Wikidata Query Service.
+ *
+ * A query is answered with <code>recordings/&lt;sha1 of the query&gt;.&lt;ext&gt;</code>
+ * when it exists, and otherwise with <code>recordings/&lt;name&gt;.&lt;ext&gt;</code> for
+ * the <code>queries/&lt;name&gt;.rq</code> it was derived from. A slice added by
+ * {@link PartitionedQuery} is then only answered with the rows of the items
+ * in its Q-id range, or with the rows with its values, when the recording has
+ * a column for the variable. The extension gives the content type:
+ * srx, srj, brt (binary) or tsv. Recordings are converted to the format the
+ * client prefers in its Accept header, as far as rdf4j can read and write both,
+ * and sent gzip-compressed when the client accepts that. With <code>--record URL</code> unknown queries
+ * are forwarded to that endpoint and the answer is stored under its hash.
+ * With <code>--files dir</code> the files in that folder are also served under
+ * <code>/files/</code>, with ETag and Last-Modified headers and 304 answers to
+ * conditional requests, standing in for the servers previous releases are
+ * downloaded from.
+ * <p>
+ * Failures of the Wikidata Query Service can be scripted: <code>--script</code>
+ * answers the next queries, in order, with the given status codes (with
+ * <code>Retry-After</code>), <code>timeout</code> for the answer WDQS gives
+ * when a query runs out of time, or <code>ok</code>, e.g.
+ * <code>--script 429,503,timeout,ok</code>. With <code>--max-range</code>
+ * queries over a wider Q-id range, or with more values, than this time out,
+ * including queries without slices, so splitting them can be tested.
+ *
+ * Usage: ReplayServer [--port 8890] [--recordings dir] [--queries dir] [--latency ms]
+ *   [--chunk-size bytes] [--chunk-delay ms] [--error-rate 0..1] [--error-status 503]
+ *   [--retry-after s] [--script 429,503,timeout,ok] [--max-range qids]
+ *   [--record URL] [--files dir]
+ */
+public class ReplayServer {
+
+	private static final Logger log = LoggerFactory.getLogger(ReplayServer.class);
+
+	private static final Map<String, String> CONTENT_TYPES = new LinkedHashMap<String, String>();
+	static {
+		CONTENT_TYPES.put("brt", "application/x-binary-rdf-results-table");
+		CONTENT_TYPES.put("srx", "application/sparql-results+xml");
+		CONTENT_TYPES.put("srj", "application/sparql-results+json");
+		CONTENT_TYPES.put("tsv", "text/tab-separated-values");
+	}
+	private static final Map<String, TupleQueryResultFormat> FORMATS = new LinkedHashMap<String, TupleQueryResultFormat>();
+	static {
+		FORMATS.put("brt", TupleQueryResultFormat.BINARY);
+		FORMATS.put("srx", TupleQueryResultFormat.SPARQL);
+		FORMATS.put("srj", TupleQueryResultFormat.JSON);
+		FORMATS.put("tsv", TupleQueryResultFormat.TSV);
+	}
+
+	/** The Q-id filter added by {@link PartitionedQuery#slice(long, long)}. */
+	private static final Pattern SLICE = Pattern.compile(
+			"STR\\(\\?(\\w+)\\), \"/entity/Q\"\\)\\) >= (\\d+)(?: && [^<]*< (\\d+))?\\)");
+	/** The values of a slice with values, and the filter of the slice with the rest. */
+	private static final Pattern VALUES_SLICE = Pattern.compile("(?m)^  VALUES \\?(\\w+) \\{ ([^}\\n]*) \\}$");
+	private static final Pattern REST_SLICE = Pattern.compile(
+			"(?m)^  FILTER\\(!BOUND\\(\\?(\\w+)\\) \\|\\| \\?\\w+ NOT IN \\(([^)\\n]*)\\)\\)$");
+
+	private final File recordings;
+	private final Map<String, String> queries = new LinkedHashMap<String, String>();
+	private final Random random = new Random(42);
+	private final AtomicLong bytesSent = new AtomicLong();
+	private final Deque<String> script = new ArrayDeque<String>();
+	private HttpServer server;
+
+	int port = 8890;
+	long latency = 0;
+	int chunkSize = 0;
+	long chunkDelay = 0;
+	double errorRate = 0;
+	int errorStatus = 503;
+	int retryAfter = 1;
+	long maxRange = 0;
+	String upstream = null;
+	File files = null;
+
+	public ReplayServer(File recordings, File queryDir) throws IOException {
+		this.recordings = recordings;
+		File[] files = queryDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (!name.endsWith(".rq")) continue;
+				String query = normalize(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+				// slices add their filter before the last closing brace
+				queries.put(name.substring(0, name.length() - 3), query.substring(0, query.lastIndexOf('}')));
+			}
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		Map<String, String> options = new LinkedHashMap<String, String>();
+		for (int i = 0; i + 1 < args.length; i += 2) options.put(args[i], args[i + 1]);
+
+		File recordings = new File(get(options, "--recordings", "recordings"));
+		ReplayServer replay = new ReplayServer(recordings, new File(get(options, "--queries", "queries")));
+		replay.port = Integer.parseInt(get(options, "--port", "8890"));
+		replay.latency = Long.parseLong(get(options, "--latency", "0"));
+		replay.chunkSize = Integer.parseInt(get(options, "--chunk-size", "0"));
+		replay.chunkDelay = Long.parseLong(get(options, "--chunk-delay", "0"));
+		replay.errorRate = Double.parseDouble(get(options, "--error-rate", "0"));
+		replay.errorStatus = Integer.parseInt(get(options, "--error-status", "503"));
+		replay.retryAfter = Integer.parseInt(get(options, "--retry-after", "1"));
+		replay.maxRange = Long.parseLong(get(options, "--max-range", "0"));
+		if (options.containsKey("--script")) replay.script(options.get("--script").split(","));
+		replay.upstream = options.get("--record");
+		if (options.containsKey("--files")) replay.files = new File(options.get("--files"));
+		replay.start();
+		log.info("Replaying " + recordings + " on " + replay.getEndpoint());
+	}
+
+	private static String get(Map<String, String> options, String key, String defaultValue) {
+		String value = options.get(key);
+		return value == null ? defaultValue : value;
+	}
+
+	public void start() throws IOException {
+		server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+		server.createContext("/sparql", new HttpHandler() {
+			public void handle(HttpExchange exchange) throws IOException {
+				try {
+					answer(exchange);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} finally {
+					exchange.close();
+				}
+			}
+		});
+		if (files != null) {
+			server.createContext("/files/", new HttpHandler() {
+				public void handle(HttpExchange exchange) throws IOException {
+					try {
+						serveFile(exchange);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						exchange.close();
+					}
+				}
+			});
+		}
+		server.setExecutor(Executors.newCachedThreadPool());
+		server.start();
+		port = server.getAddress().getPort();
+	}
+
+	/**
+	 * Answers the next queries with these responses, in order: a status code,
+	 * <code>timeout</code> or <code>ok</code>.
+	 */
+	public void script(String... responses) {
+		synchronized (script) {
+			for (String response : responses) {
+				if (!response.trim().equals("")) script.add(response.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+	}
+
+	/**
+	 * Lets queries over a wider Q-id range than this time out; 0 for no limit.
+	 */
+	public void setMaxRange(long maxRange) {
+		this.maxRange = maxRange;
+	}
+
+	/**
+	 * Sets the port to listen on; 0 picks a free port.
+	 */
+	public void setPort(int port) {
+		this.port = port;
+	}
+
+	public void stop() {
+		if (server != null) server.stop(0);
+	}
+
+	public String getEndpoint() {
+		return "http://localhost:" + port + "/sparql";
+	}
+
+	/**
+	 * Returns the URL a file in the <code>--files</code> folder is served at.
+	 */
+	public String getFileUrl(String name) {
+		return "http://localhost:" + port + "/files/" + name;
+	}
+
+	private void serveFile(HttpExchange exchange) throws IOException, InterruptedException {
+		String name = exchange.getRequestURI().getPath().substring("/files/".length());
+		File file = new File(files, name);
+		if (name.contains("/") || !file.isFile()) {
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		if (latency > 0) Thread.sleep(latency);
+		String etag = "\"" + file.length() + "-" + file.lastModified() + "\"";
+		long lastModified = file.lastModified() / 1000 * 1000;
+		SimpleDateFormat httpDate = httpDateFormat();
+		exchange.getResponseHeaders().set("ETag", etag);
+		exchange.getResponseHeaders().set("Last-Modified", httpDate.format(new Date(lastModified)));
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+		boolean notModified = ifNoneMatch != null && ifNoneMatch.equals(etag);
+		if (ifNoneMatch == null && ifModifiedSince != null) {
+			try {
+				notModified = httpDate.parse(ifModifiedSince).getTime() >= lastModified;
+			} catch (ParseException e) {
+				// answer with the file
+			}
+		}
+		if (notModified) {
+			exchange.sendResponseHeaders(304, -1);
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		exchange.sendResponseHeaders(200, file.length());
+		OutputStream out = exchange.getResponseBody();
+		try {
+			Files.copy(file.toPath(), out);
+		} finally {
+			out.close();
+		}
+	}
+
+	private void answer(HttpExchange exchange) throws IOException, InterruptedException {
+		String query = readQuery(exchange);
+		if (query == null) {
+			exchange.sendResponseHeaders(400, -1);
+			return;
+		}
+		if (latency > 0) Thread.sleep(latency);
+		String scripted;
+		synchronized (script) {
+			scripted = script.poll();
+		}
+		if (scripted == null) {
+			synchronized (random) {
+				if (errorRate > 0 && random.nextDouble() < errorRate) scripted = String.valueOf(errorStatus);
+			}
+		}
+		if (scripted == null && maxRange > 0 && range(query) > maxRange) scripted = "timeout";
+		if (scripted != null && !scripted.equals("ok")) {
+			fail(exchange, scripted);
+			return;
+		}
+
+		File recording = findRecording(query);
+		if (recording == null && upstream != null) recording = record(query, exchange.getRequestHeaders().getFirst("Accept"));
+		if (recording == null) {
+			log.warn("No recording for query " + sha1(normalize(query)));
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+
+		String ext = recording.getName().substring(recording.getName().lastIndexOf('.') + 1);
+		// a slice answered with the recording of the whole query only gets the rows of its Q-ids or values
+		boolean whole = !recording.getName().startsWith(sha1(normalize(query)));
+		Matcher slice = whole ? SLICE.matcher(query) : null;
+		if (slice != null && !slice.find()) slice = null;
+		Matcher values = whole ? VALUES_SLICE.matcher(query) : null;
+		boolean rest = false;
+		if (values != null && !values.find()) {
+			values = REST_SLICE.matcher(query);
+			rest = values.find();
+			if (!rest) values = null;
+		}
+		if ((slice != null || values != null) && !TupleQueryResultParserRegistry.getInstance().has(FORMATS.get(ext))) {
+			log.warn("Cannot answer a slice from " + recording.getName());
+			exchange.sendResponseHeaders(404, -1);
+			return;
+		}
+		String type = negotiate(ext, exchange.getRequestHeaders().getFirst("Accept"));
+		exchange.getResponseHeaders().set("Content-Type", type);
+		String encoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		boolean gzip = encoding != null && encoding.contains("gzip");
+		if (gzip) exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		boolean asRecorded = type.equals(CONTENT_TYPES.get(ext)) && slice == null && values == null;
+		exchange.sendResponseHeaders(200, chunkSize > 0 || gzip || !asRecorded ? 0 : recording.length());
+		OutputStream out = new ThrottledOutputStream(exchange.getResponseBody());
+		if (gzip) out = new GZIPOutputStream(out, 65536);
+		InputStream in = Files.newInputStream(recording.toPath());
+		try {
+			if (asRecorded) {
+				byte[] buffer = new byte[65536];
+				int read;
+				while ((read = in.read(buffer)) != -1) out.write(buffer, 0, read);
+			} else {
+				TupleQueryResultHandler writer = QueryResultIO.createTupleWriter(formatOf(type), out);
+				if (slice != null) {
+					writer = new SliceFilter(writer, column(query, slice.group(1)), Long.parseLong(slice.group(2)),
+							slice.group(3) == null ? -1 : Long.parseLong(slice.group(3)));
+				}
+				if (values != null) {
+					writer = new ValuesFilter(writer, column(query, values.group(1)), values.group(2), rest);
+				}
+				QueryResultIO.parseTuple(in, FORMATS.get(ext), writer, SimpleValueFactory.getInstance());
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+	}
+
+	/**
+	 * Answers like WDQS does when it is overloaded, or when a query ran out
+	 * of time: status 500 with the stack trace of the timeout.
+	 */
+	private void fail(HttpExchange exchange, String response) throws IOException {
+		if (!response.equals("timeout")) {
+			exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfter));
+			exchange.sendResponseHeaders(Integer.parseInt(response), -1);
+			return;
+		}
+		byte[] body = ("java.util.concurrent.ExecutionException: java.util.concurrent.TimeoutException\n")
+				.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "text/plain");
+		exchange.sendResponseHeaders(500, body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * The number of Q-ids a query covers: the width of its slice, see
+	 * {@link PartitionedQuery#slice(long, long)}, or the number of its values. A
+	 * slice without an upper bound ends at the default
+	 * <code>partition.max.qid</code>, and a query without a slice, or the slice
+	 * with the rest of the values, covers all items.
+	 */
+	static long range(String query) {
+		Matcher values = VALUES_SLICE.matcher(query);
+		if (values.find()) return values.group(2).trim().split(" ").length;
+		Matcher slice = SLICE.matcher(query);
+		if (!slice.find()) return Long.MAX_VALUE;
+		long from = Long.parseLong(slice.group(2));
+		long to = slice.group(3) == null ? PartitionedQuery.DEFAULT_MAX_QID : Long.parseLong(slice.group(3));
+		return Math.max(0, to - from);
+	}
+
+	/**
+	 * The column holding the item of a variable: the variable itself, or the
+	 * name it is selected as, like <code>(substr(STR(?gene),32) AS ?wikidata)</code>.
+	 */
+	static String column(String query, String variable) {
+		Matcher alias = Pattern.compile("STR\\(\\?" + variable + "\\)\\s*,\\s*\\d+\\s*\\)\\s+AS\\s+\\?(\\w+)",
+				Pattern.CASE_INSENSITIVE).matcher(query);
+		return alias.find() ? alias.group(1) : variable;
+	}
+
+	/**
+	 * Passes on the rows whose item has a Q-id in [from, to), as the filter
+	 * of a slice does; <code>to</code> is -1 for the last slice.
+	 */
+	private static class SliceFilter implements TupleQueryResultHandler {
+
+		private final TupleQueryResultHandler writer;
+		private final String variable;
+		private final long from;
+		private final long to;
+
+		SliceFilter(TupleQueryResultHandler writer, String variable, long from, long to) {
+			this.writer = writer;
+			this.variable = variable;
+			this.from = from;
+			this.to = to;
+		}
+
+		public void handleBoolean(boolean value) throws QueryResultHandlerException {
+			writer.handleBoolean(value);
+		}
+
+		public void handleLinks(List<String> linkUrls) throws QueryResultHandlerException {
+			writer.handleLinks(linkUrls);
+		}
+
+		public void startQueryResult(List<String> bindingNames) throws TupleQueryResultHandlerException {
+			writer.startQueryResult(bindingNames);
+		}
+
+		public void endQueryResult() throws TupleQueryResultHandlerException {
+			writer.endQueryResult();
+		}
+
+		public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+			Value item = bindingSet.getValue(variable);
+			if (item == null) return;
+			// an entity IRI, or its Q-id
+			String id = item.stringValue();
+			long qid;
+			try {
+				qid = Long.parseLong(id.substring(id.lastIndexOf('Q') + 1));
+			} catch (NumberFormatException e) {
+				return;
+			}
+			if (qid >= from && (to < 0 || qid < to)) writer.handleSolution(bindingSet);
+		}
+	}
+
+	/**
+	 * Passes on the rows whose value of a variable is one of the values of a
+	 * slice, or with the rest, none of them. Values are compared without their
+	 * namespace, so that <code>wd:Q5</code> matches the entity IRI or a
+	 * selected Q-id.
+	 */
+	private static class ValuesFilter implements TupleQueryResultHandler {
+
+		private final TupleQueryResultHandler writer;
+		private final String variable;
+		private final Set<String> values = new HashSet<String>();
+		private final boolean rest;
+
+		ValuesFilter(TupleQueryResultHandler writer, String variable, String values, boolean rest) {
+			this.writer = writer;
+			this.variable = variable;
+			for (String value : values.split(rest ? "," : " ")) {
+				if (!value.trim().equals("")) this.values.add(local(value.trim()));
+			}
+			this.rest = rest;
+		}
+
+		static String local(String value) {
+			if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+				return value.substring(1, value.length() - 1);
+			}
+			if (value.startsWith("<") && value.endsWith(">")) value = value.substring(1, value.length() - 1);
+			int end = Math.max(value.lastIndexOf('/'), value.lastIndexOf(':'));
+			return value.substring(end + 1);
+		}
+
+		public void handleBoolean(boolean value) throws QueryResultHandlerException {
+			writer.handleBoolean(value);
+		}
+
+		public void handleLinks(List<String> linkUrls) throws QueryResultHandlerException {
+			writer.handleLinks(linkUrls);
+		}
+
+		public void startQueryResult(List<String> bindingNames) throws TupleQueryResultHandlerException {
+			if (!bindingNames.contains(variable)) {
+				throw new TupleQueryResultHandlerException("The recording has no column " + variable + " to slice by");
+			}
+			writer.startQueryResult(bindingNames);
+		}
+
+		public void endQueryResult() throws TupleQueryResultHandlerException {
+			writer.endQueryResult();
+		}
+
+		public void handleSolution(BindingSet bindingSet) throws TupleQueryResultHandlerException {
+			Value value = bindingSet.getValue(variable);
+			boolean listed = value != null && values.contains(local(value.stringValue()));
+			if (listed != rest) writer.handleSolution(bindingSet);
+		}
+	}
+
+	/**
+	 * Returns the content type to answer with: the type of the recording, or
+	 * the type the client prefers when the recording can be converted to it.
+	 */
+	private static String negotiate(String ext, String accept) {
+		String recorded = CONTENT_TYPES.get(ext);
+		if (accept == null || !FORMATS.containsKey(ext)
+				|| !TupleQueryResultParserRegistry.getInstance().has(FORMATS.get(ext))) {
+			return recorded;
+		}
+		String best = recorded;
+		double bestQ = -1;
+		for (String range : accept.split(",")) {
+			String[] parts = range.trim().split(";");
+			String type = parts[0].trim();
+			double q = 1;
+			for (int i = 1; i < parts.length; i++) {
+				String param = parts[i].trim();
+				if (param.startsWith("q=")) q = Double.parseDouble(param.substring(2));
+			}
+			if (type.equals(recorded) && q >= bestQ) {
+				best = type;
+				bestQ = q;
+			} else if (q > bestQ && formatOf(type) != null
+					&& TupleQueryResultWriterRegistry.getInstance().has(formatOf(type))) {
+				best = type;
+				bestQ = q;
+			}
+		}
+		return best;
+	}
+
+	private static TupleQueryResultFormat formatOf(String contentType) {
+		for (Map.Entry<String, String> entry : CONTENT_TYPES.entrySet()) {
+			if (entry.getValue().equals(contentType)) return FORMATS.get(entry.getKey());
+		}
+		return null;
+	}
+
+	/**
+	 * The number of bytes sent in answers to queries, after compression.
+	 */
+	public long getBytesSent() {
+		return bytesSent.get();
+	}
+
+	/**
+	 * Counts the bytes of an answer and, with <code>--chunk-size</code>,
+	 * sends them in chunks with <code>--chunk-delay</code> in between.
+	 */
+	private class ThrottledOutputStream extends FilterOutputStream {
+
+		private int inChunk = 0;
+
+		ThrottledOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			bytesSent.addAndGet(len);
+			if (chunkSize <= 0) {
+				out.write(b, off, len);
+				return;
+			}
+			while (len > 0) {
+				int n = Math.min(len, chunkSize - inChunk);
+				out.write(b, off, n);
+				off += n;
+				len -= n;
+				inChunk += n;
+				if (inChunk == chunkSize) {
+					inChunk = 0;
+					out.flush();
+					if (chunkDelay > 0) {
+						try {
+							Thread.sleep(chunkDelay);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException();
+						}
+					}
+				}
+			}
+		}
+	}
+
+	File findRecording(String query) {
+		String normalized = normalize(query);
+		File found = findFile(sha1(normalized));
+		if (found != null) return found;
+		for (Map.Entry<String, String> entry : queries.entrySet()) {
+			if (normalized.startsWith(entry.getValue())) {
+				found = findFile(entry.getKey());
+				if (found != null) return found;
+			}
+		}
+		return null;
+	}
+
+	private File findFile(String base) {
+		for (String ext : CONTENT_TYPES.keySet()) {
+			File file = new File(recordings, base + "." + ext);
+			if (file.exists()) return file;
+		}
+		return null;
+	}
+
+	private File record(String query, String accept) throws IOException {
+		HttpURLConnection con = (HttpURLConnection) new URL(upstream + "?query="
+				+ URLEncoder.encode(query, "UTF-8")).openConnection();
+		con.setRequestProperty("Accept", accept == null ? CONTENT_TYPES.get("srx") : accept);
+		if (con.getResponseCode() != 200) {
+			log.warn("Upstream answered " + con.getResponseCode());
+			return null;
+		}
+		String contentType = con.getContentType();
+		String ext = "srx";
+		for (Map.Entry<String, String> entry : CONTENT_TYPES.entrySet()) {
+			if (contentType != null && contentType.startsWith(entry.getValue())) ext = entry.getKey();
+		}
+		recordings.mkdirs();
+		File file = new File(recordings, sha1(normalize(query)) + "." + ext);
+		File tmp = new File(recordings, file.getName() + ".part");
+		InputStream in = con.getInputStream();
+		try {
+			Files.copy(in, tmp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} finally {
+			in.close();
+		}
+		if (!tmp.renameTo(file)) throw new IOException("Could not store " + file);
+		log.info("Recorded " + file.getName());
+		return file;
+	}
+
+	private static String readQuery(HttpExchange exchange) throws IOException {
+		String params = exchange.getRequestURI().getRawQuery();
+		if ("POST".equals(exchange.getRequestMethod())) {
+			ByteArrayOutputStream body = new ByteArrayOutputStream();
+			InputStream in = exchange.getRequestBody();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) body.write(buffer, 0, read);
+			String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+			if (contentType != null && contentType.startsWith("application/sparql-query")) {
+				return new String(body.toByteArray(), StandardCharsets.UTF_8);
+			}
+			params = new String(body.toByteArray(), StandardCharsets.UTF_8);
+		}
+		if (params == null) return null;
+		for (String param : params.split("&")) {
+			if (param.startsWith("query=")) return URLDecoder.decode(param.substring(6), "UTF-8");
+		}
+		return null;
+	}
+
+	static SimpleDateFormat httpDateFormat() {
+		SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+		format.setTimeZone(TimeZone.getTimeZone("GMT"));
+		return format;
+	}
+
+	static String normalize(String query) {
+		return query.replaceAll("\\s+", " ").trim();
+	}
+
+	static String sha1(String text) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(text.getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) hex.append(String.format("%02x", b));
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,12 @@
+package org.bridgedb.wikidata.utils;
+
+import org.bridgedb.IDMapperException;
+import org.eclipse.rdf4j.query.BindingSet;
+
+/**
+ * Receives the rows of a query result one at a time.
+ */
+public interface RowHandler {
+
+	void handle(BindingSet bs) throws IDMapperException;
+}
@@ -0,0 +1,223 @@
+package org.bridgedb.wikidata.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.eclipse.rdf4j.query.Binding;
+import org.eclipse.rdf4j.query.BindingSet;
+
+/**
+ * Turns the rows of a query result into mappings as described by the
+ * properties of a build, so that a series needs no code of its own:
+ * <pre>
+ * mapping.main=wikidata=Wd
+ * mapping.links=doi=Pbd,pmid=Pbm,pmcid=Pmc
+ * mapping.prefixes=pmcid=PMC
+ * mapping.attributes=virusLabel=virus
+ * </pre>
+ * The main variable holds the Wikidata item of a row, the links hold its
+ * Xrefs with the system code of their data source, and the attributes are
+ * stored with the main Xref under the given name. A prefix is put in front
+ * of the values of its variable.
+ * <p>
+ * The spec is resolved once into arrays of columns with their data sources.
+ * Result rows are then read in a single pass over their bindings, which come
+ * in the order of the columns, and TSV rows by field number, see
+ * {@link #tsv(String[], MappingWriter)}.
+ */
+public class RowMapping {
+
+	private final String[] variables;
+	private final DataSource[] dataSources;
+	private final String[] attributes;
+	private final String[] prefixes;
+
+	private RowMapping(String[] variables, DataSource[] dataSources, String[] attributes, String[] prefixes) {
+		this.variables = variables;
+		this.dataSources = dataSources;
+		this.attributes = attributes;
+		this.prefixes = prefixes;
+	}
+
+	public static boolean isEnabled(Properties props) {
+		return !props.getProperty("mapping.main", "").trim().equals("");
+	}
+
+	/**
+	 * Reads the spec of a build, or returns null when <code>mapping.main</code>
+	 * is not set. The data sources must have been set up before.
+	 */
+	public static RowMapping fromProperties(Properties props) {
+		if (!isEnabled(props)) return null;
+		Map<String, String> main = pairs(props, "mapping.main");
+		if (main.size() != 1) throw new IllegalArgumentException("mapping.main needs one variable=code");
+		Map<String, String> links = pairs(props, "mapping.links");
+		Map<String, String> attrs = pairs(props, "mapping.attributes");
+		Map<String, String> prefixes = pairs(props, "mapping.prefixes");
+
+		List<String> variables = new ArrayList<String>();
+		List<DataSource> dataSources = new ArrayList<DataSource>();
+		List<String> attributes = new ArrayList<String>();
+		Map<String, String> columns = new LinkedHashMap<String, String>(main);
+		columns.putAll(links);
+		for (Map.Entry<String, String> column : columns.entrySet()) {
+			variables.add(column.getKey());
+			dataSources.add(DataSource.getExistingBySystemCode(column.getValue()));
+			attributes.add(null);
+		}
+		for (Map.Entry<String, String> attr : attrs.entrySet()) {
+			if (variables.contains(attr.getKey())) {
+				throw new IllegalArgumentException("?" + attr.getKey() + " is both an Xref and an attribute");
+			}
+			variables.add(attr.getKey());
+			dataSources.add(null);
+			attributes.add(attr.getValue());
+		}
+		String[] prefixArray = new String[variables.size()];
+		for (Map.Entry<String, String> prefix : prefixes.entrySet()) {
+			int column = variables.indexOf(prefix.getKey());
+			if (column < 0) throw new IllegalArgumentException("mapping.prefixes: no column ?" + prefix.getKey());
+			prefixArray[column] = prefix.getValue();
+		}
+		return new RowMapping(variables.toArray(new String[variables.size()]),
+				dataSources.toArray(new DataSource[dataSources.size()]),
+				attributes.toArray(new String[attributes.size()]), prefixArray);
+	}
+
+	/**
+	 * Reads <code>a=b,c=d</code> in the order given.
+	 */
+	private static Map<String, String> pairs(Properties props, String key) {
+		Map<String, String> result = new LinkedHashMap<String, String>();
+		for (String pair : props.getProperty(key, "").split(",")) {
+			if (pair.trim().equals("")) continue;
+			int eq = pair.indexOf('=');
+			if (eq <= 0 || eq == pair.length() - 1) throw new IllegalArgumentException(key + ": expected variable=value, got " + pair);
+			String variable = pair.substring(0, eq).trim();
+			if (variable.startsWith("?")) variable = variable.substring(1);
+			result.put(variable, pair.substring(eq + 1).trim());
+		}
+		return result;
+	}
+
+	/**
+	 * Returns a handler that adds the mappings of every result row to the
+	 * writer. A handler is meant for one thread.
+	 */
+	public RowHandler handler(final MappingWriter writer) {
+		return new RowHandler() {
+			private final String[] row = new String[variables.length];
+
+			public void handle(BindingSet bs) throws IDMapperException {
+				int next = 0;
+				for (Binding binding : bs) {
+					int column = column(binding.getName(), next);
+					if (column < 0) continue;
+					row[column] = binding.getValue().stringValue();
+					next = column + 1;
+				}
+				add(row, writer);
+			}
+		};
+	}
+
+	/**
+	 * The column of a variable, trying the expected one first; -1 when the
+	 * variable is not in the spec.
+	 */
+	private int column(String name, int expected) {
+		if (expected < variables.length && variables[expected].equals(name)) return expected;
+		for (int i = 0; i < variables.length; i++) {
+			if (variables[i].equals(name)) return i;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the rows of a TSV file with the given header, which are added
+	 * to the writer by field number.
+	 *
+	 * @throws IllegalArgumentException when the file has no main column
+	 */
+	public TsvRows tsv(String[] header, MappingWriter writer) {
+		Map<String, Integer> numbers = new HashMap<String, Integer>();
+		for (int i = 0; i < header.length; i++) numbers.put(header[i], i);
+		int[] fields = new int[variables.length];
+		for (int i = 0; i < variables.length; i++) {
+			Integer field = numbers.get(variables[i]);
+			fields[i] = field == null ? -1 : field;
+		}
+		if (fields[0] < 0) throw new IllegalArgumentException("No column ?" + variables[0] + " in " + Arrays.toString(header));
+		return new TsvRows(fields, writer);
+	}
+
+	/**
+	 * Adds the current row of a TSV file to a writer.
+	 */
+	public class TsvRows {
+
+		private final int[] fields;
+		private final String[] row;
+		private final MappingWriter writer;
+
+		private TsvRows(int[] fields, MappingWriter writer) {
+			this.fields = fields;
+			this.row = new String[fields.length];
+			this.writer = writer;
+		}
+
+		public void add(TsvReader file) throws IDMapperException {
+			read(file, row);
+			RowMapping.this.add(row, writer);
+		}
+
+		/**
+		 * Returns the values of the current row by column, to be added later
+		 * with {@link #add(String[])}, such as on another thread.
+		 */
+		public String[] copy(TsvReader file) {
+			String[] values = new String[fields.length];
+			read(file, values);
+			return values;
+		}
+
+		public void add(String[] values) throws IDMapperException {
+			RowMapping.this.add(values, writer);
+		}
+
+		private void read(TsvReader file, String[] values) {
+			for (int i = 0; i < fields.length; i++) {
+				values[i] = fields[i] < 0 || file.isEmpty(fields[i]) ? null : file.getField(fields[i]);
+			}
+		}
+	}
+
+	/**
+	 * Adds the values of one row, by column, and clears them. Rows without a
+	 * main Xref are skipped.
+	 */
+	private void add(String[] row, MappingWriter writer) throws IDMapperException {
+		if (row[0] != null) {
+			Xref main = new Xref(value(row, 0), dataSources[0]);
+			writer.add(main);
+			for (int i = 1; i < row.length; i++) {
+				if (row[i] == null) continue;
+				if (attributes[i] == null) writer.add(main, new Xref(value(row, i), dataSources[i]));
+				else writer.addAttribute(main, attributes[i], value(row, i));
+			}
+		}
+		Arrays.fill(row, null);
+	}
+
+	private String value(String[] row, int column) {
+		return prefixes[column] == null ? row[column] : prefixes[column] + row[column];
+	}
+}
@@ -0,0 +1,255 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts a large number of string keys with bounded memory. Keys are kept in
+ * memory until a run is full, then sorted and written to a spill file; the
+ * runs are merged when the keys are read back, sorted and without
+ * duplicates. Keys made of several columns are joined with {@link #key(String...)}.
+ * A run is full at a number of keys or at an estimate of the heap they
+ * take, whichever comes first; the runs are merged k-way with a heap of
+ * their first keys. Runs are merged in tiers to bound the number of open
+ * files: when a level holds {@link #MAX_RUNS} runs they are merged into one
+ * run of the next level, so every key is written again once per level
+ * rather than at every merge, and reading opens fewer than
+ * {@link #MAX_RUNS} runs per level.
+ */
+public class SortedRuns implements Closeable {
+
+	public static final int DEFAULT_RUN = 500000;
+	public static final int MAX_RUNS = 128;
+
+	static final char SEPARATOR = '\u0001';
+
+	private final File dir;
+	private final String name;
+	private final int runSize;
+	private final long runBytes;
+	private long bufferBytes = 0;
+	private final List<String> buffer = new ArrayList<String>();
+	private final List<List<File>> levels = new ArrayList<List<File>>();
+	private int files = 0;
+
+	/**
+	 * @param dir folder for the spill files
+	 * @param name prefix of the spill files
+	 * @param runSize number of keys kept in memory before they are spilled
+	 */
+	public SortedRuns(File dir, String name, int runSize) {
+		this(dir, name, runSize, Long.MAX_VALUE);
+	}
+
+	/**
+	 * @param runBytes estimated heap of the keys kept in memory before they are spilled
+	 */
+	public SortedRuns(File dir, String name, int runSize, long runBytes) {
+		this.dir = dir;
+		this.name = name;
+		this.runSize = Math.max(1, runSize);
+		this.runBytes = Math.max(1, runBytes);
+	}
+
+	public void add(String key) throws IOException {
+		buffer.add(key);
+		// String header, array header and the reference in the buffer
+		bufferBytes += 48 + 2L * key.length();
+		if (buffer.size() >= runSize || bufferBytes >= runBytes) spill();
+	}
+
+	/**
+	 * The number of runs spilled to disk so far.
+	 */
+	public int getRunCount() {
+		return runs().size();
+	}
+
+	private List<File> runs() {
+		List<File> runs = new ArrayList<File>();
+		for (List<File> level : levels) runs.addAll(level);
+		return runs;
+	}
+
+	/**
+	 * Returns a reader over all keys added so far, in sorted order and
+	 * without duplicates.
+	 */
+	public Reader read() throws IOException {
+		Collections.sort(buffer);
+		return new Reader(runs(), buffer);
+	}
+
+	@Override
+	public void close() {
+		buffer.clear();
+		bufferBytes = 0;
+		for (File run : runs()) run.delete();
+		levels.clear();
+	}
+
+	private void spill() throws IOException {
+		Collections.sort(buffer);
+		dir.mkdirs();
+		File run = newRun();
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), 65536));
+		try {
+			String last = null;
+			for (String key : buffer) {
+				if (key.equals(last)) continue;
+				out.writeUTF(key);
+				last = key;
+			}
+		} finally {
+			out.close();
+		}
+		addRun(0, run);
+		buffer.clear();
+		bufferBytes = 0;
+	}
+
+	private File newRun() {
+		return new File(dir, name + "-" + (files++) + ".run");
+	}
+
+	/**
+	 * Adds a run to a level, merging the level into the next one when it is
+	 * full.
+	 */
+	private void addRun(int level, File run) throws IOException {
+		while (levels.size() <= level) levels.add(new ArrayList<File>());
+		List<File> runs = levels.get(level);
+		runs.add(run);
+		if (runs.size() >= MAX_RUNS) mergeLevel(level);
+	}
+
+	/**
+	 * Merges the runs of a level into one run of the next level.
+	 */
+	private void mergeLevel(int level) throws IOException {
+		List<File> runs = levels.get(level);
+		File merged = newRun();
+		Reader reader = new Reader(runs, new ArrayList<String>());
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(merged), 65536));
+		try {
+			String key;
+			while ((key = reader.next()) != null) out.writeUTF(key);
+		} finally {
+			out.close();
+			reader.close();
+		}
+		for (File run : runs) run.delete();
+		runs.clear();
+		addRun(level + 1, merged);
+	}
+
+	/**
+	 * Joins the values of one row into a key; null values become empty strings.
+	 */
+	public static String key(String... values) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < values.length; i++) {
+			if (i > 0) sb.append(SEPARATOR);
+			if (values[i] != null) sb.append(values[i]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Splits a key made with {@link #key(String...)} back into its values.
+	 */
+	public static String[] split(String key, int columns) {
+		String[] values = new String[columns];
+		int start = 0;
+		for (int i = 0; i < columns - 1; i++) {
+			int end = key.indexOf(SEPARATOR, start);
+			values[i] = key.substring(start, end);
+			start = end + 1;
+		}
+		values[columns - 1] = key.substring(start);
+		return values;
+	}
+
+	/**
+	 * Merges the sorted runs and the sorted in-memory keys.
+	 */
+	public static class Reader implements Closeable {
+
+		private final List<DataInputStream> inputs = new ArrayList<DataInputStream>();
+		private final PriorityQueue<Head> heads = new PriorityQueue<Head>();
+		private final List<String> memory;
+		private int memoryPosition = 0;
+		private String last = null;
+
+		Reader(List<File> runs, List<String> memory) throws IOException {
+			this.memory = memory;
+			for (File run : runs) {
+				DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), 65536));
+				inputs.add(in);
+				advance(new Head(in));
+			}
+			if (!memory.isEmpty()) advance(new Head(null));
+		}
+
+		/**
+		 * Returns the next key, or null when all keys have been read.
+		 */
+		public String next() throws IOException {
+			while (!heads.isEmpty()) {
+				Head head = heads.poll();
+				String key = head.key;
+				advance(head);
+				if (!key.equals(last)) {
+					last = key;
+					return key;
+				}
+			}
+			return null;
+		}
+
+		private void advance(Head head) throws IOException {
+			if (head.in == null) {
+				if (memoryPosition == memory.size()) return;
+				head.key = memory.get(memoryPosition++);
+			} else {
+				try {
+					head.key = head.in.readUTF();
+				} catch (EOFException e) {
+					return;
+				}
+			}
+			heads.add(head);
+		}
+
+		@Override
+		public void close() throws IOException {
+			for (DataInputStream in : inputs) in.close();
+		}
+	}
+
+	private static class Head implements Comparable<Head> {
+
+		final DataInputStream in;
+		String key;
+
+		Head(DataInputStream in) {
+			this.in = in;
+		}
+
+		public int compareTo(Head other) {
+			return key.compareTo(other.key);
+		}
+	}
+}
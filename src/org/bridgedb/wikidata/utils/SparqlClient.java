@@ -0,0 +1,352 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.InputStreamFactory;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.eclipse.rdf4j.http.client.SPARQLProtocolSession;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.QueryInterruptedException;
+import org.eclipse.rdf4j.query.QueryLanguage;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultFormat;
+import org.eclipse.rdf4j.query.resultio.TupleQueryResultParserRegistry;
+import org.eclipse.rdf4j.repository.RepositoryConnection;
+import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The HTTP transport of the queries sent to the SPARQL endpoint. All queries
+ * share one pool of keep-alive connections and one repository per endpoint,
+ * ask for gzip-compressed answers, and prefer the most compact result format:
+ * binary RDF results, then TSV, JSON and XML, as far as parsers for them are
+ * on the class path. The endpoint picks from that list.
+ * <p>
+ * A query the endpoint turns away because it is busy (429, 502 or 503) is
+ * sent again after an exponential backoff with jitter, and no query is sent
+ * before the time given in <code>Retry-After</code>, see
+ * {@link WdqsPermits#pause(long)}. A query that times out fails with a
+ * {@link QueryInterruptedException}, so it can be split, see
+ * {@link PartitionedQuery}.
+ * <p>
+ * Configured with system properties:
+ * <code>sparql.format</code> (binary, tsv, json or xml; default binary),
+ * <code>sparql.connect.timeout.ms</code> (default 30 s),
+ * <code>sparql.read.timeout.ms</code>, the longest wait for the next bytes of
+ * an answer (default 5 min), <code>sparql.timeout.ms</code>, the longest a
+ * query may take from sending it to its last row (default: no limit),
+ * <code>sparql.pool.size</code>, the number of pooled connections (default 16),
+ * <code>sparql.retries</code>, the number of times a query is sent again
+ * (default 5), and <code>sparql.retry.delay.ms</code>, the first backoff
+ * (default 1 s).
+ */
+public class SparqlClient {
+
+	private static final Logger log = LoggerFactory.getLogger(SparqlClient.class);
+
+	public static final int DEFAULT_CONNECT_TIMEOUT = 30000;
+	public static final int DEFAULT_READ_TIMEOUT = 300000;
+	public static final int DEFAULT_POOL_SIZE = 16;
+	public static final int DEFAULT_RETRIES = 5;
+	public static final long DEFAULT_RETRY_DELAY = 1000;
+
+	private static final long MAX_RETRY_DELAY = 60000;
+
+	private static final Map<String, TupleQueryResultFormat> FORMATS = new LinkedHashMap<String, TupleQueryResultFormat>();
+	static {
+		FORMATS.put("binary", TupleQueryResultFormat.BINARY);
+		FORMATS.put("tsv", TupleQueryResultFormat.TSV);
+		FORMATS.put("json", TupleQueryResultFormat.JSON);
+		FORMATS.put("xml", TupleQueryResultFormat.SPARQL);
+	}
+
+	/**
+	 * The binary results parser reads a few bytes at a time, which is slow
+	 * straight from a GZIPInputStream.
+	 */
+	private static final Map<String, InputStreamFactory> DECODERS = new LinkedHashMap<String, InputStreamFactory>();
+	static {
+		InputStreamFactory gzip = new InputStreamFactory() {
+			public InputStream create(InputStream in) throws IOException {
+				return new BufferedInputStream(new GZIPInputStream(in, 65536), 65536);
+			}
+		};
+		DECODERS.put("gzip", gzip);
+		DECODERS.put("x-gzip", gzip);
+	}
+
+	/**
+	 * The status and <code>Retry-After</code> of the last answer on this
+	 * thread, which rdf4j does not keep in its exceptions.
+	 */
+	private static final ThreadLocal<long[]> LAST_ANSWER = new ThreadLocal<long[]>();
+
+	private static final ConcurrentHashMap<String, SPARQLRepository> REPOSITORIES = new ConcurrentHashMap<String, SPARQLRepository>();
+	private static CloseableHttpClient httpClient;
+
+	/**
+	 * Evaluates the query within the limit of {@link WdqsPermits}, sending it
+	 * again while the endpoint is busy. Closing the result gives back the HTTP
+	 * connection, the repository connection and the permit.
+	 *
+	 * @throws QueryInterruptedException when the query timed out
+	 */
+	public static TupleQueryResult evaluate(String endpoint, String query) throws QueryEvaluationException {
+		int retries = Integer.getInteger("sparql.retries", DEFAULT_RETRIES);
+		for (int attempt = 0; ; attempt++) {
+			LAST_ANSWER.remove();
+			try {
+				return evaluateOnce(endpoint, query);
+			} catch (QueryEvaluationException e) {
+				long[] answer = LAST_ANSWER.get();
+				int status = answer == null ? 0 : (int) answer[0];
+				if (status == 429 || status == 502 || status == 503) {
+					if (attempt >= retries) {
+						QueryEvaluationException busy = new QueryEvaluationException(
+								"The endpoint answered " + status + " " + (attempt + 1) + " times");
+						busy.addSuppressed(e);
+						throw busy;
+					}
+					if (answer[1] > 0) WdqsPermits.pause(answer[1]);
+					long delay = backoff(attempt);
+					log.warn("The endpoint answered " + status + ", sending the query again in "
+							+ Math.max(delay, answer[1]) + " ms");
+					sleep(delay);
+				} else if (status == 504 || status == 500 && String.valueOf(e.getMessage()).contains("TimeoutException")) {
+					throw new QueryInterruptedException("The query timed out on the endpoint (" + status + ")", e);
+				} else {
+					throw e;
+				}
+			}
+		}
+	}
+
+	private static TupleQueryResult evaluateOnce(String endpoint, String query) throws QueryEvaluationException {
+		RepositoryConnection con = repository(endpoint).getConnection();
+		try {
+			TupleQuery tupleQuery = con.prepareTupleQuery(QueryLanguage.SPARQL, query);
+			return new ClosingResult(WdqsPermits.evaluate(tupleQuery), con, Long.getLong("sparql.timeout.ms", 0));
+		} catch (RuntimeException e) {
+			con.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns true when the query failed because it took too long, on the
+	 * endpoint or here.
+	 */
+	public static boolean isTimeout(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof QueryInterruptedException || cause instanceof SocketTimeoutException) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * The time to wait before the next attempt: half of the exponential
+	 * backoff, plus up to as much again at random, so that queries that failed
+	 * together are not sent together again.
+	 */
+	static long backoff(int attempt) {
+		long delay = Math.min(MAX_RETRY_DELAY,
+				Long.getLong("sparql.retry.delay.ms", DEFAULT_RETRY_DELAY) << Math.min(attempt, 16));
+		return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+	}
+
+	private static void sleep(long millis) throws QueryEvaluationException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryEvaluationException("Interrupted while waiting for the endpoint", e);
+		}
+	}
+
+	/**
+	 * Milliseconds until the time in a <code>Retry-After</code> header, given
+	 * in seconds or as a date; 0 without one.
+	 */
+	static long retryAfter(Header header) {
+		if (header == null) return 0;
+		String value = header.getValue().trim();
+		try {
+			return Math.max(0, Long.parseLong(value) * 1000);
+		} catch (NumberFormatException e) {
+			Date date = DateUtils.parseDate(value);
+			return date == null ? 0 : Math.max(0, date.getTime() - System.currentTimeMillis());
+		}
+	}
+
+	/**
+	 * The result format asked for first: <code>sparql.format</code> when a
+	 * parser for it is available, otherwise the first available one of binary,
+	 * TSV, JSON and XML.
+	 */
+	public static TupleQueryResultFormat preferredFormat() {
+		TupleQueryResultParserRegistry parsers = TupleQueryResultParserRegistry.getInstance();
+		String name = System.getProperty("sparql.format", "binary").trim().toLowerCase();
+		TupleQueryResultFormat format = FORMATS.get(name);
+		if (format == null) throw new IllegalArgumentException("Unsupported sparql.format " + name);
+		if (parsers.has(format)) return format;
+		for (TupleQueryResultFormat fallback : FORMATS.values()) {
+			if (parsers.has(fallback)) {
+				log.warn("No parser for " + format.getName() + " results, asking for " + fallback.getName());
+				return fallback;
+			}
+		}
+		return format;
+	}
+
+	private static SPARQLRepository repository(String endpoint) {
+		SPARQLRepository repository = REPOSITORIES.get(endpoint);
+		if (repository != null) return repository;
+		synchronized (REPOSITORIES) {
+			repository = REPOSITORIES.get(endpoint);
+			if (repository == null) {
+				final TupleQueryResultFormat format = preferredFormat();
+				repository = new SPARQLRepository(endpoint) {
+					@Override
+					protected SPARQLProtocolSession createSPARQLProtocolSession() {
+						SPARQLProtocolSession session = super.createSPARQLProtocolSession();
+						session.setPreferredTupleQueryResultFormat(format);
+						return session;
+					}
+				};
+				repository.setHttpClient(httpClient());
+				repository.init();
+				REPOSITORIES.put(endpoint, repository);
+			}
+			return repository;
+		}
+	}
+
+	private static synchronized CloseableHttpClient httpClient() {
+		if (httpClient == null) {
+			int poolSize = Integer.getInteger("sparql.pool.size", DEFAULT_POOL_SIZE);
+			int connectTimeout = Integer.getInteger("sparql.connect.timeout.ms", DEFAULT_CONNECT_TIMEOUT);
+			PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(60, TimeUnit.SECONDS);
+			pool.setMaxTotal(poolSize);
+			pool.setDefaultMaxPerRoute(poolSize);
+			pool.setValidateAfterInactivity(2000);
+			httpClient = HttpClientBuilder.create()
+					.useSystemProperties()
+					.setConnectionManager(pool)
+					.setDefaultRequestConfig(RequestConfig.custom()
+							.setConnectTimeout(connectTimeout)
+							.setConnectionRequestTimeout(connectTimeout)
+							.setSocketTimeout(Integer.getInteger("sparql.read.timeout.ms", DEFAULT_READ_TIMEOUT))
+							.build())
+					.evictIdleConnections(60, TimeUnit.SECONDS)
+					.setContentDecoderRegistry(DECODERS)
+					.addInterceptorLast(new HttpResponseInterceptor() {
+						public void process(HttpResponse response, HttpContext context) {
+							LAST_ANSWER.set(new long[] { response.getStatusLine().getStatusCode(),
+									retryAfter(response.getFirstHeader("Retry-After")) });
+						}
+					})
+					.build();
+		}
+		return httpClient;
+	}
+
+	/**
+	 * Shuts down the repositories and closes the pooled connections.
+	 */
+	public static synchronized void shutdown() {
+		synchronized (REPOSITORIES) {
+			for (SPARQLRepository repository : REPOSITORIES.values()) repository.shutDown();
+			REPOSITORIES.clear();
+		}
+		if (httpClient != null) {
+			try {
+				httpClient.close();
+			} catch (IOException e) {
+				log.warn("Could not close the HTTP connections: " + e.getMessage());
+			}
+			httpClient = null;
+		}
+	}
+
+	/**
+	 * Closes the repository connection with the result, and ends the query
+	 * when it runs past its deadline. The deadline is checked between rows;
+	 * the read timeout covers an endpoint that stops sending.
+	 */
+	private static class ClosingResult implements TupleQueryResult {
+
+		private final TupleQueryResult result;
+		private final RepositoryConnection con;
+		private final long timeout;
+		private final long deadline;
+		private boolean closed = false;
+
+		ClosingResult(TupleQueryResult result, RepositoryConnection con, long timeout) {
+			this.result = result;
+			this.con = con;
+			this.timeout = timeout;
+			this.deadline = timeout > 0 ? System.currentTimeMillis() + timeout : Long.MAX_VALUE;
+		}
+
+		@Override
+		public List<String> getBindingNames() throws QueryEvaluationException {
+			return result.getBindingNames();
+		}
+
+		@Override
+		public boolean hasNext() throws QueryEvaluationException {
+			checkDeadline();
+			return result.hasNext();
+		}
+
+		@Override
+		public BindingSet next() throws QueryEvaluationException {
+			checkDeadline();
+			return result.next();
+		}
+
+		@Override
+		public void remove() throws QueryEvaluationException {
+			result.remove();
+		}
+
+		private void checkDeadline() throws QueryEvaluationException {
+			if (deadline == Long.MAX_VALUE || System.currentTimeMillis() < deadline) return;
+			close();
+			throw new QueryInterruptedException("Query did not finish within " + timeout + " ms");
+		}
+
+		@Override
+		public void close() throws QueryEvaluationException {
+			if (closed) return;
+			closed = true;
+			try {
+				result.close();
+			} finally {
+				con.close();
+			}
+		}
+	}
+}
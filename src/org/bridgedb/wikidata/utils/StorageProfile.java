@@ -0,0 +1,75 @@
+package org.bridgedb.wikidata.utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The Derby page size of the tables of a database being built. Derby reads
+ * it from a system property when a table is created, so it is set by
+ * {@link #apply()} and put back by {@link #restore()} once the tables exist;
+ * the finished database keeps its page size, and databases created by other
+ * code do not get it. Builds in the same JVM apply their profiles one after
+ * the other.
+ * <p>
+ * The page cache size (<code>derby.storage.pageCacheSize</code>) and
+ * durability (<code>derby.system.durability</code>) are different: Derby
+ * reads them once, when its engine boots, and they then hold for every
+ * database in the JVM, including previous releases that are read. They can
+ * only be given on the command line, like
+ * <code>-Dderby.system.durability=test</code>.
+ * <p>
+ * Configured with <code>storage.page.size</code> (bytes).
+ */
+public class StorageProfile {
+
+	private static final Logger log = LoggerFactory.getLogger(StorageProfile.class);
+
+	private static final ReentrantLock LOCK = new ReentrantLock();
+
+	private final Map<String, String> settings = new LinkedHashMap<String, String>();
+	private final Map<String, String> previous = new LinkedHashMap<String, String>();
+
+	public static StorageProfile fromProperties(Properties props) {
+		StorageProfile profile = new StorageProfile();
+		profile.set("derby.storage.pageSize", props.getProperty("storage.page.size"));
+		for (String key : new String[] { "storage.page.cache.size", "storage.durability" }) {
+			if (props.getProperty(key) != null) {
+				log.warn(key + " is ignored: it holds for all of Derby, so set it with -D on the command line");
+			}
+		}
+		return profile;
+	}
+
+	private void set(String key, String value) {
+		if (value != null && !value.trim().equals("")) settings.put(key, value.trim());
+	}
+
+	/**
+	 * Sets the Derby system properties. Must be followed by {@link #restore()}
+	 * in the same thread.
+	 */
+	public void apply() {
+		LOCK.lock();
+		previous.clear();
+		for (Map.Entry<String, String> entry : settings.entrySet()) {
+			previous.put(entry.getKey(), System.getProperty(entry.getKey()));
+			System.setProperty(entry.getKey(), entry.getValue());
+		}
+	}
+
+	public void restore() {
+		try {
+			for (Map.Entry<String, String> entry : previous.entrySet()) {
+				if (entry.getValue() == null) System.clearProperty(entry.getKey());
+				else System.setProperty(entry.getKey(), entry.getValue());
+			}
+		} finally {
+			LOCK.unlock();
+		}
+	}
+}
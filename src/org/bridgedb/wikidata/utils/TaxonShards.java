@@ -0,0 +1,257 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.IDMapperException;
+import org.eclipse.rdf4j.model.IRI;
+import org.eclipse.rdf4j.model.Value;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes the rows of a build to one database per taxon as well, next to the
+ * combined database (<code>name-homo_sapiens.bridge</code>). Every shard has
+ * its own database and {@link MappingWriter}, fed through a bounded queue by
+ * a thread of its own, so the shards are written at the same time as each
+ * other and the combined database, and are optimized and exported on that
+ * thread too. {@link #finish()} waits for the shards and lists them in a
+ * manifest next to the combined database (<code>name.shards.json</code>).
+ * <p>
+ * Enabled with <code>shard.taxa</code>, a comma-separated list of taxa. Rows
+ * are routed by <code>?taxonLabel</code>, or by the Q-id of
+ * <code>?taxon</code> when they are read from a dump, so a taxon can be
+ * listed either way. Rows of other taxa are only in the combined database.
+ */
+public class TaxonShards {
+
+	private static final Logger log = LoggerFactory.getLogger(TaxonShards.class);
+
+	/** The attribute of a main Xref holding its taxon. */
+	public static final String ATTRIBUTE = "Taxon";
+
+	private static final int BATCH = 1000;
+	private static final int QUEUED_BATCHES = 16;
+	private static final List<BindingSet> END = new ArrayList<BindingSet>();
+
+	/**
+	 * Creates the handler that adds a row to a writer, so every shard gets
+	 * one of its own.
+	 */
+	public interface Rows {
+
+		RowHandler handler(MappingWriter writer);
+	}
+
+	private final File outputFile;
+	private final Map<String, Shard> shards = new LinkedHashMap<String, Shard>();
+
+	private TaxonShards(File outputFile) {
+		this.outputFile = outputFile;
+	}
+
+	/**
+	 * Creates the shard databases and starts their writers, or returns null
+	 * when <code>shard.taxa</code> is not set.
+	 *
+	 * @param series the series of the combined database; a shard adds its taxon
+	 */
+	public static TaxonShards fromProperties(File outputFile, String series, Properties props, Rows rows)
+			throws IDMapperException {
+		String taxa = props.getProperty("shard.taxa", "").trim();
+		if (taxa.equals("")) return null;
+		if (Checkpoint.canResume(outputFile, props)) {
+			throw new IllegalArgumentException("shard.taxa cannot be used when a build resumes");
+		}
+		TaxonShards result = new TaxonShards(outputFile);
+		String base = base(outputFile);
+		for (String taxon : taxa.split(",")) {
+			taxon = taxon.trim();
+			if (taxon.equals("") || result.shards.containsKey(taxon)) continue;
+			File shardFile = new File(base + "-" + slug(taxon) + ".bridge");
+			Properties shardProps = new Properties();
+			shardProps.putAll(props);
+			shardProps.setProperty("output.file", props.getProperty("output.file", "build").trim() + "-" + slug(taxon));
+			shardProps.setProperty("checkpoint", "false");
+			if (props.getProperty("build.mode", "").trim().equals("delta")) shardProps.setProperty("build.mode", "full");
+			MappingSink sink = Utils.createSink(Utils.createDb(shardFile, series + " (" + taxon + ")",
+					props.getProperty("data.type"), "1.0.0", shardProps), shardFile, shardProps);
+			MappingWriter writer = MappingWriter.fromProperties(sink, shardProps);
+			result.shards.put(taxon, new Shard(taxon, shardFile, shardProps, sink, writer, rows.handler(writer)));
+		}
+		for (Shard shard : result.shards.values()) shard.thread.start();
+		log.info("Writing " + result.shards.size() + " taxon shards next to " + outputFile.getName());
+		return result;
+	}
+
+	/**
+	 * The taxon of a row: the label of <code>?taxon</code>, or its Q-id when
+	 * there is no label. Null when the row has no taxon.
+	 */
+	public static String taxon(BindingSet bs) {
+		Value label = bs.getValue("taxonLabel");
+		if (label != null) return label.stringValue();
+		Value taxon = bs.getValue("taxon");
+		if (taxon == null) return null;
+		return taxon instanceof IRI ? ((IRI) taxon).getLocalName() : taxon.stringValue();
+	}
+
+	/**
+	 * Returns a handler that hands every row to the combined handler, and to
+	 * the shard of its taxon.
+	 */
+	public RowHandler route(final RowHandler combined) {
+		return new RowHandler() {
+			public void handle(BindingSet bs) throws IDMapperException {
+				combined.handle(bs);
+				String taxon = taxon(bs);
+				Shard shard = taxon == null ? null : shards.get(taxon);
+				if (shard != null) shard.add(bs);
+			}
+		};
+	}
+
+	/**
+	 * Waits until every shard is written, optimized and exported, and writes
+	 * the manifest.
+	 */
+	public void finish() throws IDMapperException, IOException {
+		for (Shard shard : shards.values()) shard.end();
+		for (Shard shard : shards.values()) shard.await();
+		File manifest = new File(base(outputFile) + ".shards.json");
+		StringBuilder json = new StringBuilder();
+		json.append("{\n  \"database\": \"").append(escape(outputFile.getName())).append("\",\n  \"shards\": [");
+		String separator = "\n";
+		for (Shard shard : shards.values()) {
+			json.append(separator).append("    {\"taxon\": \"").append(escape(shard.taxon))
+					.append("\", \"file\": \"").append(escape(shard.file.getName()))
+					.append("\", \"bytes\": ").append(shard.file.length())
+					.append(", \"rows\": ").append(shard.rows)
+					.append(", \"links\": ").append(shard.writer.getTotalLinks()).append("}");
+			separator = ",\n";
+			log.info("Shard " + shard.file.getName() + ": " + shard.rows + " rows, " + shard.writer.getTotalLinks()
+					+ " links, " + shard.file.length() + " bytes");
+		}
+		json.append("\n  ]\n}\n");
+		Writer out = new OutputStreamWriter(new FileOutputStream(manifest), StandardCharsets.UTF_8);
+		try {
+			out.write(json.toString());
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String base(File outputFile) {
+		String base = outputFile.getPath();
+		if (base.endsWith(".bridge")) base = base.substring(0, base.length() - ".bridge".length());
+		return base;
+	}
+
+	static String slug(String taxon) {
+		String slug = taxon.toLowerCase(Locale.ROOT).replaceAll("[^a-z0-9]+", "_");
+		return slug.replaceAll("^_+|_+$", "");
+	}
+
+	private static String escape(String text) {
+		return text.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+
+	/**
+	 * The database of one taxon and the thread writing it.
+	 */
+	private static class Shard implements Runnable {
+
+		final String taxon;
+		final File file;
+		final Properties props;
+		final MappingSink sink;
+		final MappingWriter writer;
+		final RowHandler handler;
+		final Thread thread;
+		final BlockingQueue<List<BindingSet>> queue = new ArrayBlockingQueue<List<BindingSet>>(QUEUED_BATCHES);
+		List<BindingSet> batch = new ArrayList<BindingSet>(BATCH);
+		long rows = 0;
+		volatile Exception failure;
+
+		Shard(String taxon, File file, Properties props, MappingSink sink, MappingWriter writer, RowHandler handler) {
+			this.taxon = taxon;
+			this.file = file;
+			this.props = props;
+			this.sink = sink;
+			this.writer = writer;
+			this.handler = handler;
+			this.thread = new Thread(this, "shard-" + slug(taxon));
+			// a build that fails does not wait for its shards
+			thread.setDaemon(true);
+		}
+
+		void add(BindingSet bs) throws IDMapperException {
+			batch.add(bs);
+			rows++;
+			if (batch.size() >= BATCH) {
+				send(batch);
+				batch = new ArrayList<BindingSet>(BATCH);
+			}
+		}
+
+		void end() throws IDMapperException {
+			if (!batch.isEmpty()) send(batch);
+			send(END);
+		}
+
+		private void send(List<BindingSet> next) throws IDMapperException {
+			try {
+				while (!queue.offer(next, 1, TimeUnit.SECONDS)) checkFailure();
+				checkFailure();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IDMapperException("Interrupted while writing shard " + file.getName(), e);
+			}
+		}
+
+		private void checkFailure() throws IDMapperException {
+			if (failure != null) throw new IDMapperException("Could not write shard " + file.getName(), failure);
+		}
+
+		void await() throws IDMapperException {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IDMapperException("Interrupted while writing shard " + file.getName(), e);
+			}
+			checkFailure();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					List<BindingSet> next = queue.take();
+					if (next == END) break;
+					for (BindingSet bs : next) handler.handle(bs);
+				}
+				writer.close();
+				sink.finish();
+				BridgeOptimizer.optimize(file, props);
+				MappedExport.export(file, props);
+			} catch (Exception e) {
+				failure = e;
+				queue.clear();
+			}
+		}
+	}
+}
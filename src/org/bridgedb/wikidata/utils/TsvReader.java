@@ -0,0 +1,173 @@
+package org.bridgedb.wikidata.utils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads TSV files as returned by the Wikidata Query Service, one row at a
+ * time. Rows are split on tabs and quotes are removed without regular
+ * expressions, and the read buffer and field offsets are reused for every
+ * row, so the only allocation per field is the returned String. Files
+ * ending in <code>.gz</code> are decompressed while reading.
+ */
+public class TsvReader implements Closeable {
+
+	public static final int DEFAULT_BUFFER = 1 << 20;
+
+	private final ReadableByteChannel channel;
+	private byte[] buffer;
+	private int position = 0;
+	private int limit = 0;
+	private boolean eof = false;
+
+	private int rowStart;
+	private int fieldCount;
+	private int[] fieldStart = new int[16];
+	private int[] fieldEnd = new int[16];
+	private byte[] scratch = new byte[256];
+	private long rowNumber = 0;
+
+	public TsvReader(File file) throws IOException {
+		this(file, DEFAULT_BUFFER);
+	}
+
+	public TsvReader(File file, int bufferSize) throws IOException {
+		FileInputStream in = new FileInputStream(file);
+		if (file.getName().endsWith(".gz")) {
+			channel = Channels.newChannel(new GZIPInputStream(in, bufferSize));
+		} else {
+			channel = in.getChannel();
+		}
+		buffer = new byte[bufferSize];
+	}
+
+	/**
+	 * Moves to the next row. Returns false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		int end;
+		while ((end = indexOfNewline(position)) < 0) {
+			if (eof) {
+				if (position >= limit) return false;
+				end = limit;
+				break;
+			}
+			fill();
+		}
+		rowStart = position;
+		position = end + 1;
+		int rowEnd = (end > rowStart && buffer[end - 1] == '\r') ? end - 1 : end;
+		split(rowStart, rowEnd);
+		rowNumber++;
+		return true;
+	}
+
+	/**
+	 * Reads the header row and returns the column names without the leading '?'.
+	 */
+	public String[] readHeader() throws IOException {
+		if (!next()) return new String[0];
+		String[] names = new String[fieldCount];
+		for (int i = 0; i < fieldCount; i++) {
+			String name = getField(i);
+			names[i] = name.startsWith("?") ? name.substring(1) : name;
+		}
+		return names;
+	}
+
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	public boolean isEmpty(int field) {
+		return field >= fieldCount || fieldStart[field] == fieldEnd[field];
+	}
+
+	/**
+	 * Returns the field with all double quotes removed, or null when the row
+	 * has fewer fields.
+	 */
+	public String getField(int field) {
+		if (field >= fieldCount) return null;
+		int start = fieldStart[field];
+		int length = fieldEnd[field] - start;
+		if (scratch.length < length) scratch = new byte[Math.max(length, scratch.length * 2)];
+		int copied = 0;
+		boolean ascii = true;
+		for (int i = start; i < start + length; i++) {
+			byte b = buffer[i];
+			if (b == '"') continue;
+			if (b < 0) ascii = false;
+			scratch[copied++] = b;
+		}
+		return new String(scratch, 0, copied, ascii ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Number of the current row, counting the header as the first row.
+	 */
+	public long getRowNumber() {
+		return rowNumber;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private int indexOfNewline(int from) {
+		for (int i = from; i < limit; i++) {
+			if (buffer[i] == '\n') return i;
+		}
+		return -1;
+	}
+
+	private void split(int start, int end) {
+		fieldCount = 0;
+		int fieldBegin = start;
+		for (int i = start; i <= end; i++) {
+			if (i == end || buffer[i] == '\t') {
+				if (fieldCount == fieldStart.length) {
+					int[] starts = new int[fieldCount * 2];
+					int[] ends = new int[fieldCount * 2];
+					System.arraycopy(fieldStart, 0, starts, 0, fieldCount);
+					System.arraycopy(fieldEnd, 0, ends, 0, fieldCount);
+					fieldStart = starts;
+					fieldEnd = ends;
+				}
+				fieldStart[fieldCount] = fieldBegin;
+				fieldEnd[fieldCount] = i;
+				fieldCount++;
+				fieldBegin = i + 1;
+			}
+		}
+	}
+
+	/**
+	 * Moves the unread bytes to the start of the buffer, growing it when a
+	 * single row does not fit, and reads more data behind them.
+	 */
+	private void fill() throws IOException {
+		int remaining = limit - position;
+		if (position == 0 && limit == buffer.length) {
+			byte[] bigger = new byte[buffer.length * 2];
+			System.arraycopy(buffer, 0, bigger, 0, limit);
+			buffer = bigger;
+		} else if (position > 0) {
+			System.arraycopy(buffer, position, buffer, 0, remaining);
+			position = 0;
+			limit = remaining;
+		}
+		ByteBuffer target = ByteBuffer.wrap(buffer, limit, buffer.length - limit);
+		int read = channel.read(target);
+		if (read < 0) eof = true;
+		else limit += read;
+	}
+}
@@ -1,18 +1,19 @@
 package org.bridgedb.wikidata.utils;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.net.URL;
-import java.nio.channels.Channels;
-import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import org.bridgedb.IDMapperException;
 import org.bridgedb.rdb.construct.DBConnector;
@@ -20,50 +21,369 @@ import org.bridgedb.rdb.construct.DataDerby;
 import org.bridgedb.rdb.construct.GdbConstruct;
 import org.bridgedb.rdb.construct.GdbConstructImpl3;
 import org.bridgedb.tools.qc.BridgeQC;
-import org.eclipse.rdf4j.query.QueryLanguage;
-import org.eclipse.rdf4j.query.TupleQuery;
-import org.eclipse.rdf4j.repository.RepositoryConnection;
-import org.eclipse.rdf4j.repository.sparql.SPARQLRepository;
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class Utils {
 
+	private static final Logger log = LoggerFactory.getLogger(Utils.class);
+
+	public static final String WIKIDATA_ENDPOINT = "https://query.wikidata.org/sparql";
+
+	private static volatile String endpoint = System.getProperty("sparql.endpoint", WIKIDATA_ENDPOINT);
+
+	/**
+	 * Sets the SPARQL endpoint the queries are sent to, for example a local
+	 * {@link ReplayServer}. Defaults to the <code>sparql.endpoint</code>
+	 * system property, or the Wikidata Query Service.
+	 */
+	public static void setEndpoint(String url) {
+		endpoint = url;
+	}
+
+	public static String getEndpoint() {
+		return endpoint;
+	}
+
 	public static void runQC(String urlOldDb, File newDb) throws IDMapperException, SQLException, IOException {
-		File oldDb = new File("tmp.bridge");
-		URL website = new URL(urlOldDb);
-		ReadableByteChannel rbc = Channels.newChannel(website.openStream());
-		FileOutputStream fos = new FileOutputStream(oldDb);
-		fos.getChannel().transferFrom(rbc, 0, Long.MAX_VALUE);
-		fos.close();
-		BridgeQC qc = new BridgeQC(oldDb, newDb);
-		qc.run();
-		oldDb.delete();
+		runQC(new ReleaseCache(new File(ReleaseCache.DEFAULT_DIR)).get(urlOldDb), newDb);
 	}
-	
+
+	/**
+	 * Compares the new database with a previous release, on a copy of the
+	 * release that belongs to this job only.
+	 */
+	public static void runQC(File previousRelease, File newDb) throws IDMapperException, SQLException, IOException {
+		runQC(previousRelease, newDb, new Properties());
+	}
+
+	/**
+	 * Like {@link #runQC(File, File)}, and with <code>qc.diff=true</code> also
+	 * compares the links per data source with {@link BridgeDiff}, using
+	 * <code>qc.diff.threads</code>, <code>qc.diff.sample</code> and
+	 * <code>qc.diff.delta</code> (file for all differences). BridgeQC can be
+	 * skipped with <code>qc.bridgeqc=false</code>.
+	 */
+	public static void runQC(File previousRelease, File newDb, Properties props)
+			throws IDMapperException, SQLException, IOException {
+		File oldDb = ReleaseCache.checkout(previousRelease);
+		try {
+			if (Boolean.parseBoolean(props.getProperty("qc.bridgeqc", "true").trim())) {
+				BridgeQC qc = new BridgeQC(oldDb, newDb);
+				qc.run();
+			}
+			if (Boolean.parseBoolean(props.getProperty("qc.diff", "false").trim())) {
+				String delta = props.getProperty("qc.diff.delta", "").trim();
+				new BridgeDiff(getIntProperty(props, "qc.diff.threads", Runtime.getRuntime().availableProcessors()),
+						getIntProperty(props, "qc.diff.sample", 5), delta.equals("") ? null : new File(delta))
+						.compare(oldDb, newDb);
+			}
+		} finally {
+			oldDb.delete();
+		}
+	}
+
+	/**
+	 * The date in the names of the output directory and database of a build,
+	 * as yyyy-MM-dd: <code>build.date</code> when it is set; when the build
+	 * resumes, the latest date under <code>output/</code> with a checkpoint for
+	 * <code>output.file</code>, so a build continued on another day finds its
+	 * partial database; otherwise today.
+	 */
+	public static String buildDate(Properties props) {
+		String date = props.getProperty("build.date", "").trim();
+		if (!date.equals("")) return date;
+		String[] dates = new File("output").list();
+		if (Checkpoint.isResumeRequested(props) && dates != null) {
+			Arrays.sort(dates);
+			for (int i = dates.length - 1; i >= 0; i--) {
+				File outputFile = new File(new File("output", dates[i]),
+						props.getProperty("output.file") + "-" + dates[i] + ".bridge");
+				if (Checkpoint.sidecar(outputFile).isFile()) {
+					log.info("Resuming the build of " + dates[i]);
+					return dates[i];
+				}
+			}
+		}
+		return new SimpleDateFormat("yyyy-MM-dd").format(new Date());
+	}
+
+	/**
+	 * The <code>BUILDDATE</code> info value of a build: its
+	 * {@link #buildDate(Properties)} as yyyyMMdd.
+	 */
+	public static String buildDateInfo(Properties props) {
+		return buildDate(props).replace("-", "");
+	}
+
+	/**
+	 * Starts getting the previous release given by <code>old.db</code> from the
+	 * {@link ReleaseCache} in the background. Returns null when there is none.
+	 */
+	public static Future<File> prefetchRelease(Properties props) {
+		String oldDb = props.getProperty("old.db", "").trim();
+		if (oldDb.equals("")) return null;
+		return ReleaseCache.fromProperties(props).prefetch(oldDb);
+	}
+
+	/**
+	 * Waits for a release started with {@link #prefetchRelease(Properties)}.
+	 */
+	public static File getRelease(Future<File> release) throws IOException {
+		try {
+			return release.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while getting the previous release", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Could not get the previous release", e.getCause());
+		}
+	}
+
 	public static GdbConstruct createDb(File outputFile, String name, String dataType, String wikidataVersion) throws IDMapperException {
-		GdbConstruct newDb = new GdbConstructImpl3(outputFile.getAbsolutePath(), new DataDerby(), DBConnector.PROP_RECREATE);
-		newDb.createGdbTables();
-		newDb.preInsert();
+		return createDb(outputFile, name, dataType, wikidataVersion, new Properties());
+	}
 
-		String dateStr = new SimpleDateFormat("yyyyMMdd").format(new Date());
-		newDb.setInfo("BUILDDATE", dateStr);
+	public static GdbConstruct createDb(File outputFile, String name, String dataType, String wikidataVersion,
+			Properties props) throws IDMapperException {
+		GdbConstruct newDb = newDatabase(outputFile, props);
+
+		newDb.setInfo("BUILDDATE", buildDateInfo(props));
 		newDb.setInfo("DATASOURCENAME", "Wikidata");
 		newDb.setInfo("DATASOURCEVERSION", wikidataVersion);
 		newDb.setInfo("SERIES", name);
 		newDb.setInfo("DATATYPE", dataType);	
 		return newDb;
 	}
+
+	/**
+	 * Creates an empty database with the GdbConstructImpl3 tables, using the
+	 * {@link StorageProfile} given by the properties while it is created. When
+	 * the build resumes (see {@link Checkpoint}) the partial database of the
+	 * earlier run is opened instead; otherwise a partial database left by a
+	 * run that died is removed first.
+	 */
+	public static GdbConstruct newDatabase(File outputFile, Properties props) throws IDMapperException {
+		if (Checkpoint.canResume(outputFile, props)) {
+			GdbConstruct newDb = new GdbConstructImpl3(outputFile.getAbsolutePath(), new DataDerby(), DBConnector.PROP_NONE);
+			newDb.preInsert();
+			return newDb;
+		}
+		if (outputFile.isDirectory()) BridgeFiles.deleteRecursive(outputFile);
+		StorageProfile profile = StorageProfile.fromProperties(props);
+		profile.apply();
+		try {
+			GdbConstruct newDb = new GdbConstructImpl3(outputFile.getAbsolutePath(), new DataDerby(), DBConnector.PROP_RECREATE);
+			newDb.createGdbTables();
+			newDb.preInsert();
+			return newDb;
+		} finally {
+			profile.restore();
+		}
+	}
+
+	/**
+	 * Creates the database the mappings of a build are written to, depending on
+	 * <code>build.mode</code>: <code>full</code> writes a new database row by row,
+	 * <code>bulk</code> writes a new database with {@link BulkSink}, and
+	 * <code>delta</code> updates the previous release given by <code>old.db</code>
+	 * with only the changed mappings, see {@link DeltaBuild}.
+	 */
+	public static MappingSink createSink(File outputFile, String name, String dataType, String wikidataVersion,
+			Properties props) throws IDMapperException, IOException {
+		if (!getBuildMode(props).equals("delta")) {
+			return createSink(createDb(outputFile, name, dataType, wikidataVersion, props), outputFile, props);
+		}
+		String oldDb = props.getProperty("old.db", "").trim();
+		if (oldDb.equals("")) throw new IllegalArgumentException("build.mode=delta needs old.db");
+		MappingSink newDb = new DeltaBuild(ReleaseCache.fromProperties(props).get(oldDb), outputFile,
+				getIntProperty(props, "bulk.run.rows", SortedRuns.DEFAULT_RUN));
+		newDb.setInfo("BUILDDATE", buildDateInfo(props));
+		newDb.setInfo("DATASOURCENAME", "Wikidata");
+		newDb.setInfo("DATASOURCEVERSION", wikidataVersion);
+		newDb.setInfo("SERIES", name);
+		newDb.setInfo("DATATYPE", dataType);
+		return Pipeline.writer(newDb, props);
+	}
+
+	/**
+	 * Wraps a new database created by a builder itself, using {@link BulkSink}
+	 * when <code>build.mode</code> is <code>bulk</code>. With
+	 * <code>pipeline=true</code> it is written on a thread of its own, see
+	 * {@link Pipeline}.
+	 */
+	public static MappingSink createSink(GdbConstruct newDb, File outputFile, Properties props) {
+		String mode = getBuildMode(props);
+		if (mode.equals("bulk")) {
+			return Pipeline.writer(new BulkSink(newDb, outputFile,
+					getIntProperty(props, "bulk.run.rows", SortedRuns.DEFAULT_RUN)), props);
+		}
+		if (!mode.equals("full")) throw new IllegalArgumentException("Unsupported build.mode " + mode);
+		return Pipeline.writer(new GdbSink(newDb), props);
+	}
+
+	private static String getBuildMode(Properties props) {
+		String mode = props.getProperty("build.mode", "").trim();
+		return mode.equals("") ? "full" : mode;
+	}
 	
-	public static TupleQuery connect2Wikidata(String rqFile) throws IOException {
-		String query = readQuery("queries/"+rqFile);
-		
-		SPARQLRepository sparqlRepository = new SPARQLRepository("https://query.wikidata.org/sparql");
-		RepositoryConnection sparqlConnection = sparqlRepository.getConnection();
+	/**
+	 * Sends the query to the endpoint, see {@link SparqlClient}. The caller
+	 * closes the result.
+	 */
+	public static TupleQueryResult evaluate(String query) {
+		return SparqlClient.evaluate(endpoint, query);
+	}
 
-		TupleQuery tupleQuery = sparqlConnection.prepareTupleQuery(QueryLanguage.SPARQL, query);
-		return tupleQuery;
+	/**
+	 * Like {@link #evaluate(String)}, answering from the cache when it is not
+	 * null.
+	 */
+	public static TupleQueryResult evaluate(String query, QueryCache cache) {
+		return cache == null ? evaluate(query) : cache.evaluate(endpoint, query);
 	}
 	
-	private static String readQuery(String path) throws IOException {
+	/**
+	 * Runs the query given by <code>query.file</code> and streams the rows to the handler.
+	 * When <code>partition.count</code> is larger than one, or <code>partition.values</code>
+	 * is set, the query is fetched in slices, see {@link PartitionedQuery}. With
+	 * <code>source=dump</code> the rows are read from a local Wikidata dump instead, see
+	 * {@link DumpSource}. Rows and query latency are
+	 * counted in the {@link BuildMetrics} of the build. With <code>pipeline=true</code>
+	 * a single query is read on a thread of its own, see {@link Pipeline}.
+	 */
+	public static void fetch(Properties props, RowHandler handler) throws IOException, IDMapperException {
+		fetch(props, handler, null);
+	}
+
+	/**
+	 * Like {@link #fetch(Properties, RowHandler)}, recording every slice that
+	 * has been handed over as a checkpoint of the writer and skipping the
+	 * slices that were done before the build resumed. A query that is not
+	 * partitioned is a single slice, committed as it goes and only recorded
+	 * at its end. When it times out before any row was
+	 * handed over and <code>partition.variable</code> is set, it is fetched in
+	 * <code>partition.concurrency</code> slices instead.
+	 */
+	public static void fetch(Properties props, final RowHandler handler, MappingWriter writer)
+			throws IOException, IDMapperException {
+		BuildMetrics metrics = BuildMetrics.of(props);
+		if (DumpSource.isEnabled(props)) {
+			if (writer != null && "1".equals(writer.getPosition())) return;
+			if (writer != null) writer.withoutPositions();
+			DumpSource.fromProperties(props).fetch(handler, metrics);
+			if (writer != null) writer.checkpoint("1");
+			return;
+		}
+		String query = readQuery("queries/" + props.getProperty("query.file"));
+		if (getIntProperty(props, "partition.count", 1) > 1 || !PartitionedQuery.values(props).isEmpty()) {
+			PartitionedQuery.fromProperties(query, props).fetch(handler, metrics, writer);
+			return;
+		}
+		if (writer != null && "1".equals(writer.getPosition())) return;
+		if (writer != null) writer.withoutPositions();
+		String variable = props.getProperty("partition.variable", "").trim();
+		final long[] handed = new long[1];
+		RowHandler counting = new RowHandler() {
+			public void handle(BindingSet bs) throws IDMapperException {
+				handed[0]++;
+				handler.handle(bs);
+			}
+		};
+		try {
+			fetchQuery(query, props, variable.equals("") ? handler : counting, metrics);
+		} catch (RuntimeException | IDMapperException e) {
+			// rows that were handed over cannot be taken back
+			if (variable.equals("") || handed[0] > 0 || !SparqlClient.isTimeout(e)) throw e;
+			int count = Math.max(2, getIntProperty(props, "partition.concurrency", PartitionedQuery.DEFAULT_CONCURRENCY));
+			log.warn("The query timed out, fetching it in " + count + " slices by ?" + variable);
+			PartitionedQuery.fromProperties(query, props, count).fetch(handler, metrics, null);
+		}
+		if (writer != null) writer.checkpoint("1");
+	}
+
+	/**
+	 * Reads the rows of <code>input.file</code>, a TSV file as returned by
+	 * WDQS, continuing after the line of the checkpoint. With
+	 * <code>pipeline=true</code> the file is read on a thread of its own, see
+	 * {@link Pipeline}.
+	 */
+	public static void readTsv(Properties props, RowMapping mapping, MappingWriter writer)
+			throws IOException, IDMapperException {
+		BuildMetrics metrics = BuildMetrics.of(props);
+		TsvReader file = new TsvReader(new File(props.getProperty("input.file")));
+		try {
+			RowMapping.TsvRows rows = mapping.tsv(file.readHeader(), writer);
+			long done = writer.getPosition() == null ? 0 : Long.parseLong(writer.getPosition());
+			if (Pipeline.isEnabled(props)) {
+				Pipeline.readTsv(file, done, rows, writer, metrics);
+				return;
+			}
+			long line = 0;
+			while (file.next()) {
+				if (++line <= done) continue;
+				rows.add(file);
+				metrics.rowFetched();
+				writer.reached(String.valueOf(line));
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static void fetchQuery(String query, Properties props, RowHandler handler, BuildMetrics metrics)
+			throws IDMapperException {
+		long start = System.nanoTime();
+		if (Pipeline.isEnabled(props)) {
+			Pipeline.fetch(evaluate(query, QueryCache.fromProperties(props)), handler, metrics, start);
+			return;
+		}
+		try (TupleQueryResult result = evaluate(query, QueryCache.fromProperties(props))) {
+			boolean first = true;
+			while (result.hasNext()) {
+				if (first) {
+					metrics.queried(System.nanoTime() - start);
+					first = false;
+				}
+				metrics.rowFetched();
+				handler.handle(result.next());
+			}
+		}
+	}
+
+	public static Properties loadProperties(String path) throws IOException {
+		Properties props = new Properties();
+		FileInputStream in = new FileInputStream(new File(path));
+		try {
+			props.load(in);
+		} finally {
+			in.close();
+		}
+		return props;
+	}
+
+	/**
+	 * Loads the properties of a builder and applies its command line options:
+	 * <code>--resume</code> continues a build that died, see {@link Checkpoint}.
+	 */
+	public static Properties loadProperties(String path, String[] args) throws IOException {
+		Properties props = loadProperties(path);
+		for (String arg : args) {
+			if (arg.equals("--resume")) props.setProperty("resume", "true");
+		}
+		return props;
+	}
+
+	public static int getIntProperty(Properties props, String key, int defaultValue) {
+		String value = props.getProperty(key);
+		if (value == null || value.trim().equals("")) return defaultValue;
+		return Integer.parseInt(value.trim());
+	}
+
+	public static String readQuery(String path) throws IOException {
 		String content = readFile(path, StandardCharsets.UTF_8);
 		return content;
 	}
@@ -0,0 +1,150 @@
+package org.bridgedb.wikidata.utils;
+
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.eclipse.rdf4j.query.BindingSet;
+import org.eclipse.rdf4j.query.QueryEvaluationException;
+import org.eclipse.rdf4j.query.TupleQuery;
+import org.eclipse.rdf4j.query.TupleQueryResult;
+
+/**
+ * Limits the number of queries that are open against the Wikidata Query
+ * Service at the same time, over all builds running in this JVM. Without
+ * a limit (the default, or the <code>sparql.max.queries</code> system
+ * property) queries are evaluated directly. When the endpoint asks to wait
+ * with <code>Retry-After</code>, no new query is sent by any build until
+ * that time has passed, see {@link #pause(long)}.
+ * <p>
+ * A build can also be limited to a number of open queries of its own with
+ * {@link #setJobLimit(int)}, which holds for the thread that calls it and the
+ * threads it starts, such as the slices of a {@link PartitionedQuery}. A
+ * query then waits for a permit of its build first and of the JVM second.
+ */
+public class WdqsPermits {
+
+	private static volatile Semaphore permits = null;
+	private static volatile long notBefore = 0;
+	private static final InheritableThreadLocal<Semaphore> JOB_PERMITS = new InheritableThreadLocal<Semaphore>();
+
+	static {
+		setMaxConnections(Integer.getInteger("sparql.max.queries", 0));
+	}
+
+	public static void setMaxConnections(int maxConnections) {
+		permits = maxConnections > 0 ? new Semaphore(maxConnections, true) : null;
+	}
+
+	/**
+	 * Limits the queries of the current thread, and of the threads it starts
+	 * from now on, to this many at the same time; 0 for no limit of their own.
+	 */
+	public static void setJobLimit(int maxQueries) {
+		if (maxQueries > 0) JOB_PERMITS.set(new Semaphore(maxQueries, true));
+		else JOB_PERMITS.remove();
+	}
+
+	/**
+	 * Holds back all new queries for this long, in milliseconds.
+	 */
+	public static synchronized void pause(long millis) {
+		notBefore = Math.max(notBefore, System.currentTimeMillis() + millis);
+	}
+
+	private static void awaitPause() throws QueryEvaluationException {
+		long wait;
+		while ((wait = notBefore - System.currentTimeMillis()) > 0) {
+			try {
+				Thread.sleep(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new QueryEvaluationException("Interrupted while waiting for the endpoint", e);
+			}
+		}
+	}
+
+	/**
+	 * Evaluates the query once a connection is available and the endpoint
+	 * does not ask to wait. The connection is given back when the returned
+	 * result is closed.
+	 */
+	public static TupleQueryResult evaluate(TupleQuery tupleQuery) throws QueryEvaluationException {
+		awaitPause();
+		final Semaphore job = JOB_PERMITS.get();
+		final Semaphore current = permits;
+		if (job == null && current == null) return tupleQuery.evaluate();
+		acquire(job);
+		try {
+			acquire(current);
+		} catch (QueryEvaluationException e) {
+			if (job != null) job.release();
+			throw e;
+		}
+		try {
+			return new PermitResult(tupleQuery.evaluate(), job, current);
+		} catch (RuntimeException e) {
+			if (current != null) current.release();
+			if (job != null) job.release();
+			throw e;
+		}
+	}
+
+	private static void acquire(Semaphore permit) throws QueryEvaluationException {
+		if (permit == null) return;
+		try {
+			permit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new QueryEvaluationException("Interrupted while waiting for a WDQS connection", e);
+		}
+	}
+
+	private static class PermitResult implements TupleQueryResult {
+
+		private final TupleQueryResult result;
+		private Semaphore job;
+		private Semaphore permit;
+
+		PermitResult(TupleQueryResult result, Semaphore job, Semaphore permit) {
+			this.result = result;
+			this.job = job;
+			this.permit = permit;
+		}
+
+		@Override
+		public List<String> getBindingNames() throws QueryEvaluationException {
+			return result.getBindingNames();
+		}
+
+		@Override
+		public boolean hasNext() throws QueryEvaluationException {
+			return result.hasNext();
+		}
+
+		@Override
+		public BindingSet next() throws QueryEvaluationException {
+			return result.next();
+		}
+
+		@Override
+		public void remove() throws QueryEvaluationException {
+			result.remove();
+		}
+
+		@Override
+		public void close() throws QueryEvaluationException {
+			try {
+				result.close();
+			} finally {
+				if (permit != null) {
+					permit.release();
+					permit = null;
+				}
+				if (job != null) {
+					job.release();
+					job = null;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package org.bridgedb.wikidata.utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+
+/**
+ * A memory-efficient set of Xrefs, used to add every identifier to the
+ * database exactly once. Wikidata Q-ids and purely numeric identifiers
+ * (PubMed, NCBI Gene, ...) are stored as primitive longs, all other
+ * identifiers as UTF-8 bytes in one array per data source. Both use open
+ * addressing, so there is no object per element.
+ * <p>
+ * Nothing is ever removed, so the set grows with the number of distinct
+ * Xrefs. A number takes an 8-byte slot, another identifier an 8-byte slot
+ * and its bytes plus one or two; the tables are kept at most three quarters
+ * full and double when they are, so an Xref takes 11 to 21 bytes, and
+ * twice that while a table is copied. Per data source about 800 million
+ * identifiers of each kind and 2 GB of identifier bytes fit. The set fails
+ * with an {@link IllegalStateException} before it grows beyond these limits
+ * or beyond the number of bytes it was created with.
+ */
+public class XrefSet {
+
+	private final Map<DataSource, LongSet> numbers = new HashMap<DataSource, LongSet>();
+	private final Map<DataSource, StringSet> strings = new HashMap<DataSource, StringSet>();
+	private final long maxBytes;
+	private long reserved = 0;
+	private long size = 0;
+
+	public XrefSet() {
+		this(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Creates a set that uses at most about <code>maxBytes</code>, not
+	 * counting the copy made while a table grows.
+	 */
+	public XrefSet(long maxBytes) {
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Adds the Xref and returns true if it was not in the set yet.
+	 */
+	public boolean add(Xref xref) {
+		DataSource ds = xref.getDataSource();
+		String id = xref.getId();
+		long number = toNumber(id);
+		boolean added;
+		if (number > 0) {
+			LongSet set = numbers.get(ds);
+			if (set == null) {
+				set = new LongSet(this);
+				numbers.put(ds, set);
+			}
+			added = set.add(number);
+		} else {
+			StringSet set = strings.get(ds);
+			if (set == null) {
+				set = new StringSet(this);
+				strings.put(ds, set);
+			}
+			added = set.add(id);
+		}
+		if (added) size++;
+		return added;
+	}
+
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Approximate number of bytes used by the set.
+	 */
+	public long memoryUsage() {
+		long bytes = 0;
+		for (LongSet set : numbers.values()) bytes += set.memoryUsage();
+		for (StringSet set : strings.values()) bytes += set.memoryUsage();
+		return bytes;
+	}
+
+	/**
+	 * Accounts for <code>bytes</code> more memory, failing when the set would
+	 * go beyond its limit.
+	 */
+	void reserve(long bytes) {
+		if (reserved + bytes > maxBytes) {
+			throw new IllegalStateException("The set of " + size + " distinct Xrefs would grow beyond "
+					+ (maxBytes >> 20) + " MB; give it more memory or split the build");
+		}
+		reserved += bytes;
+	}
+
+	/**
+	 * Returns the identifier as a positive number when it is a Q-id or only
+	 * consists of digits without leading zeros, and -1 otherwise. Q-ids get
+	 * bit 62 set so they never collide with plain numbers.
+	 */
+	static long toNumber(String id) {
+		int length = id.length();
+		int start = 0;
+		long flag = 0;
+		if (length > 1 && id.charAt(0) == 'Q') {
+			start = 1;
+			flag = 1L << 62;
+		}
+		if (length - start == 0 || length - start > 18 || id.charAt(start) == '0') return -1;
+		long value = 0;
+		for (int i = start; i < length; i++) {
+			char c = id.charAt(i);
+			if (c < '0' || c > '9') return -1;
+			value = value * 10 + (c - '0');
+		}
+		return value | flag;
+	}
+
+	/** The largest table; doubling it would overflow the array size. */
+	private static final int MAX_TABLE = 1 << 30;
+
+	private static int mix(long value) {
+		value ^= value >>> 33;
+		value *= 0xff51afd7ed558ccdL;
+		value ^= value >>> 33;
+		return (int) value;
+	}
+
+	/**
+	 * Open-addressing set of positive longs; 0 marks an empty slot.
+	 */
+	static class LongSet {
+
+		private final XrefSet owner;
+		private long[] table;
+		private int size = 0;
+
+		LongSet(XrefSet owner) {
+			this.owner = owner;
+			owner.reserve(1024 * 8L);
+			table = new long[1024];
+		}
+
+		boolean add(long value) {
+			if (size * 4 >= table.length * 3) grow();
+			if (insert(table, value)) {
+				size++;
+				return true;
+			}
+			return false;
+		}
+
+		private static boolean insert(long[] table, long value) {
+			int mask = table.length - 1;
+			int slot = mix(value) & mask;
+			while (table[slot] != 0) {
+				if (table[slot] == value) return false;
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = value;
+			return true;
+		}
+
+		private void grow() {
+			if (table.length >= MAX_TABLE) {
+				throw new IllegalStateException("More than " + size + " numeric identifiers of one data source");
+			}
+			owner.reserve(table.length * 8L);
+			long[] bigger = new long[table.length * 2];
+			for (long value : table) {
+				if (value != 0) insert(bigger, value);
+			}
+			table = bigger;
+		}
+
+		long memoryUsage() {
+			return table.length * 8L;
+		}
+	}
+
+	/**
+	 * Open-addressing set of strings stored as length-prefixed UTF-8 bytes in
+	 * a single growing array. Slots hold the offset of the entry plus one.
+	 */
+	static class StringSet {
+
+		private final XrefSet owner;
+		private byte[] data;
+		private int used = 0;
+		private int[] table;
+		private int[] hashes;
+		private int size = 0;
+
+		StringSet(XrefSet owner) {
+			this.owner = owner;
+			owner.reserve((1 << 16) + 1024 * 8L);
+			data = new byte[1 << 16];
+			table = new int[1024];
+			hashes = new int[1024];
+		}
+
+		boolean add(String id) {
+			byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+			int hash = hash(bytes);
+			if (size * 4 >= table.length * 3) grow();
+			int mask = table.length - 1;
+			int slot = hash & mask;
+			while (table[slot] != 0) {
+				if (hashes[slot] == hash && equalsAt(table[slot] - 1, bytes)) return false;
+				slot = (slot + 1) & mask;
+			}
+			table[slot] = append(bytes) + 1;
+			hashes[slot] = hash;
+			size++;
+			return true;
+		}
+
+		private int append(byte[] bytes) {
+			int needed = used + bytes.length + 5;
+			if (needed > data.length) {
+				long newLength = Math.max((long) data.length * 2, needed);
+				if (newLength > Integer.MAX_VALUE - 8) {
+					throw new IllegalStateException("The " + size + " identifiers of one data source take more than 2 GB");
+				}
+				owner.reserve(newLength - data.length);
+				byte[] bigger = new byte[(int) newLength];
+				System.arraycopy(data, 0, bigger, 0, used);
+				data = bigger;
+			}
+			int offset = used;
+			int length = bytes.length;
+			while (length >= 0x80) {
+				data[used++] = (byte) (length | 0x80);
+				length >>>= 7;
+			}
+			data[used++] = (byte) length;
+			System.arraycopy(bytes, 0, data, used, bytes.length);
+			used += bytes.length;
+			return offset;
+		}
+
+		private boolean equalsAt(int offset, byte[] bytes) {
+			int length = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[offset++];
+				length |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			if (length != bytes.length) return false;
+			for (int i = 0; i < length; i++) {
+				if (data[offset + i] != bytes[i]) return false;
+			}
+			return true;
+		}
+
+		private void grow() {
+			if (table.length >= MAX_TABLE) {
+				throw new IllegalStateException("More than " + size + " identifiers of one data source");
+			}
+			owner.reserve(table.length * 8L);
+			int[] biggerTable = new int[table.length * 2];
+			int[] biggerHashes = new int[table.length * 2];
+			int mask = biggerTable.length - 1;
+			for (int i = 0; i < table.length; i++) {
+				if (table[i] == 0) continue;
+				int slot = hashes[i] & mask;
+				while (biggerTable[slot] != 0) slot = (slot + 1) & mask;
+				biggerTable[slot] = table[i];
+				biggerHashes[slot] = hashes[i];
+			}
+			table = biggerTable;
+			hashes = biggerHashes;
+		}
+
+		private static int hash(byte[] bytes) {
+			int h = 0x9747b28c;
+			for (byte b : bytes) {
+				h ^= b;
+				h *= 0x5bd1e995;
+				h ^= h >>> 15;
+			}
+			return mix(h);
+		}
+
+		long memoryUsage() {
+			return data.length + table.length * 8L;
+		}
+	}
+}
@@ -0,0 +1,340 @@
+/**
+Copyright 2020-2023 Martina Kutmon
+               		Egon Willighagen
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+    http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ **/
+package org.bridgedb.wikidata;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.bridgedb.wikidata.utils.BridgeFiles;
+import org.bridgedb.wikidata.utils.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks that a build which is killed and resumed gives the same database
+ * as a build that runs through. The build of the properties file runs once
+ * without interruption, then again in a child JVM that is killed at a random
+ * time and resumed with <code>--resume</code>, as often as asked, until it
+ * finishes. The data nodes, attributes and links of both databases are then
+ * compared; the check exits with 1 when they differ.
+ * <p>
+ * The builds run in folders of their own under the work folder, with
+ * <code>checkpoint=true</code>. The input must be the same for every run: a
+ * TSV input file, a dump, or a recording served by a {@link
+ * org.bridgedb.wikidata.utils.ReplayServer} given with
+ * <code>--endpoint</code>. With <code>--rows N</code> a TSV input of N
+ * synthetic rows for the first two columns of <code>mapping.main</code> and
+ * <code>mapping.links</code> is written instead, for the builders that read
+ * <code>input.file</code>.
+ *
+ * Usage: ResumeCheck [--kills N] [--seed S] [--rows N] [--endpoint URL] [--work folder] file.props
+ */
+public class ResumeCheck {
+
+	private static final Logger log = LoggerFactory.getLogger(ResumeCheck.class);
+
+	public static final int DEFAULT_KILLS = 5;
+
+	/** Tables compared, as the columns they are ordered by. */
+	private static final String[] TABLES = {
+		"SELECT DISTINCT id, code FROM datanode ORDER BY 1, 2",
+		"SELECT DISTINCT id, code, attrname, attrvalue FROM attribute ORDER BY 1, 2, 3, 4",
+		// a main Xref that comes back after its window may have the same link twice
+		"SELECT DISTINCT idLeft, codeLeft, idRight, codeRight FROM link ORDER BY 1, 2, 3, 4"
+	};
+
+	public static void main(String[] args) throws Exception {
+		if (args.length > 0 && args[0].equals("--child")) {
+			child(args);
+			return;
+		}
+		int kills = DEFAULT_KILLS;
+		long seed = System.nanoTime();
+		int rows = 0;
+		String endpoint = null;
+		File work = null;
+		File propsFile = null;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("--kills")) kills = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("--rows")) rows = Integer.parseInt(args[++i]);
+			else if (args[i].equals("--endpoint")) endpoint = args[++i];
+			else if (args[i].equals("--work")) work = new File(args[++i]);
+			else propsFile = new File(args[i]);
+		}
+		if (propsFile == null) {
+			System.out.println("Usage: ResumeCheck [--kills N] [--seed S] [--rows N] [--endpoint URL] [--work folder] file.props");
+			return;
+		}
+		if (work == null) work = Files.createTempDirectory("resume-check-").toFile();
+		log.info("Checking " + propsFile.getName() + " in " + work + " with seed " + seed);
+		ResumeCheck check = new ResumeCheck(work, endpoint, new Random(seed));
+		Properties props = check.prepare(Utils.loadProperties(propsFile.getPath()), rows);
+		System.exit(check.run(props, kills) ? 0 : 1);
+	}
+
+	/**
+	 * Runs a build in the current folder, which the parent has prepared.
+	 */
+	private static void child(String[] args) throws Exception {
+		Properties props = Utils.loadProperties(args[1], args);
+		BuildAll.Builder builder = BuildAll.BUILDERS.get(props.getProperty("builder"));
+		if (builder == null) throw new IllegalArgumentException("No builder " + props.getProperty("builder"));
+		builder.setupDatasources();
+		builder.build(props);
+	}
+
+	private final File work;
+	private final String endpoint;
+	private final Random random;
+
+	public ResumeCheck(File work, String endpoint, Random random) {
+		this.work = work;
+		this.endpoint = endpoint;
+		this.random = random;
+	}
+
+	/**
+	 * Returns the properties both builds run with: checkpoints on, the same
+	 * build date, no previous release or optimizing, and input files by
+	 * absolute path.
+	 */
+	Properties prepare(Properties props, int rows) throws IOException {
+		props = (Properties) props.clone();
+		work.mkdirs();
+		props.setProperty("checkpoint", "true");
+		props.setProperty("build.date", new SimpleDateFormat("yyyy-MM-dd").format(new Date()));
+		props.setProperty("old.db", "");
+		props.setProperty("optimize", "false");
+		for (String key : new String[] { "input.file", "dump.file" }) {
+			String path = props.getProperty(key, "").trim();
+			if (!path.equals("")) props.setProperty(key, new File(path).getAbsolutePath());
+		}
+		if (rows > 0) {
+			File input = new File(work, "input.tsv");
+			writeRows(input, rows, props);
+			props.setProperty("input.file", input.getAbsolutePath());
+		}
+		return props;
+	}
+
+	/**
+	 * Writes a TSV input where every item has one to three links, the rows of
+	 * an item being next to each other as in a sorted query result.
+	 */
+	private void writeRows(File input, int rows, Properties props) throws IOException {
+		String main = column(props.getProperty("mapping.main"));
+		String link = column(props.getProperty("mapping.links"));
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(input), StandardCharsets.UTF_8));
+		try {
+			out.write("?" + main + "\t?" + link + "\n");
+			int item = 0;
+			for (int row = 0; row < rows; item++) {
+				for (int i = 1 + random.nextInt(3); i > 0 && row < rows; i--, row++) {
+					out.write("\"Q" + (item + 1) + "\"\t\"" + (1000000 + row) + "\"\n");
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static String column(String mapping) {
+		if (mapping == null || mapping.trim().equals("")) throw new IllegalArgumentException("--rows needs mapping.main and mapping.links");
+		return mapping.trim().split(",")[0].split("=")[0].trim();
+	}
+
+	/**
+	 * Builds once without and once with kills, and compares the databases.
+	 */
+	boolean run(Properties props, int kills) throws IOException, InterruptedException, SQLException {
+		File reference = new File(work, "reference");
+		long start = System.currentTimeMillis();
+		int exit = build(reference, props, false, 0);
+		long millis = Math.max(1, System.currentTimeMillis() - start);
+		log.info("The uninterrupted build took " + millis + " ms and exited with " + exit);
+		if (exit != 0) return false;
+
+		File resumed = new File(work, "resumed");
+		int killed = 0;
+		boolean resume = false;
+		while (killed < kills) {
+			long delay = 1 + (long) (random.nextDouble() * millis);
+			exit = build(resumed, props, resume, delay);
+			if (exit != Integer.MIN_VALUE) break;
+			killed++;
+			resume = true;
+			log.info("Killed the build after " + delay + " ms (" + killed + " of " + kills + ")");
+		}
+		if (exit == Integer.MIN_VALUE) exit = build(resumed, props, true, 0);
+		log.info("The resumed build was killed " + killed + " times and exited with " + exit);
+		if (exit != 0) return false;
+		return compare(database(reference), database(resumed));
+	}
+
+	/**
+	 * Runs the build in a child JVM in the folder, and kills it after the
+	 * delay unless it is 0. Returns the exit code, or Integer.MIN_VALUE when
+	 * the build was killed.
+	 */
+	private int build(File dir, Properties props, boolean resume, long delay)
+			throws IOException, InterruptedException {
+		dir.mkdirs();
+		File propsFile = new File(dir, "build.props");
+		FileOutputStream out = new FileOutputStream(propsFile);
+		try {
+			props.store(out, "written by ResumeCheck");
+		} finally {
+			out.close();
+		}
+		File queries = new File("queries");
+		if (queries.isDirectory() && !new File(dir, "queries").exists()) copy(queries, new File(dir, "queries"));
+
+		List<String> command = new ArrayList<String>();
+		command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+		command.add("-Xmx" + Utils.getIntProperty(props, "job.heap.mb", BuildAll.DEFAULT_JOB_HEAP) + "m");
+		if (endpoint != null) command.add("-Dsparql.endpoint=" + endpoint);
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(ResumeCheck.class.getName());
+		command.add("--child");
+		command.add(propsFile.getName());
+		if (resume) command.add("--resume");
+		Process process = new ProcessBuilder(command).directory(dir).inheritIO().start();
+		if (delay > 0 && !process.waitFor(delay, TimeUnit.MILLISECONDS)) {
+			process.destroyForcibly().waitFor();
+			return Integer.MIN_VALUE;
+		}
+		return process.waitFor();
+	}
+
+	private static void copy(File from, File to) throws IOException {
+		to.mkdirs();
+		File[] files = from.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.isDirectory()) copy(file, new File(to, file.getName()));
+			else Files.copy(file.toPath(), new File(to, file.getName()).toPath());
+		}
+	}
+
+	/**
+	 * The finished database of a build, the only .bridge file under its
+	 * output folder.
+	 */
+	private static File database(File dir) throws IOException {
+		List<File> found = new ArrayList<File>();
+		find(new File(dir, "output"), found);
+		if (found.size() != 1) throw new IOException("Expected one finished database in " + dir + ", found " + found);
+		return found.get(0);
+	}
+
+	private static void find(File dir, List<File> found) {
+		File[] files = dir.listFiles();
+		if (files == null) return;
+		for (File file : files) {
+			if (file.isDirectory()) find(file, found);
+			else if (file.getName().endsWith(".bridge")) found.add(file);
+		}
+	}
+
+	/**
+	 * Compares the tables of both databases row by row, and logs the first
+	 * difference of each. The databases are unpacked first, because Derby
+	 * scans deflated archives very slowly.
+	 */
+	static boolean compare(File expected, File actual) throws IOException, SQLException {
+		boolean same = true;
+		File expectedDir = Files.createTempDirectory("resume-expected-").toFile();
+		File actualDir = Files.createTempDirectory("resume-actual-").toFile();
+		try {
+			BridgeFiles.unzip(expected, expectedDir);
+			BridgeFiles.unzip(actual, actualDir);
+			Connection left = BridgeFiles.open(expectedDir);
+			Connection right = BridgeFiles.open(actualDir);
+			try {
+				same = compare(left, right);
+			} finally {
+				left.close();
+				right.close();
+			}
+		} finally {
+			BridgeFiles.shutdown(expectedDir);
+			BridgeFiles.shutdown(actualDir);
+			BridgeFiles.deleteRecursive(expectedDir);
+			BridgeFiles.deleteRecursive(actualDir);
+		}
+		log.info(same ? "The resumed database is the same" : "The resumed database differs");
+		return same;
+	}
+
+	private static boolean compare(Connection left, Connection right) throws SQLException {
+		boolean same = true;
+		for (String query : TABLES) {
+			Statement leftSt = left.createStatement();
+			Statement rightSt = right.createStatement();
+			ResultSet leftRs = leftSt.executeQuery(query);
+			ResultSet rightRs = rightSt.executeQuery(query);
+			int columns = leftRs.getMetaData().getColumnCount();
+			long rows = 0;
+			String difference = null;
+			while (difference == null) {
+				boolean hasLeft = leftRs.next();
+				boolean hasRight = rightRs.next();
+				if (!hasLeft && !hasRight) break;
+				if (hasLeft != hasRight) {
+					difference = hasLeft ? "missing " + row(leftRs, columns) : "extra " + row(rightRs, columns);
+				} else if (!row(leftRs, columns).equals(row(rightRs, columns))) {
+					difference = row(leftRs, columns) + " became " + row(rightRs, columns);
+				}
+				rows++;
+			}
+			leftSt.close();
+			rightSt.close();
+			if (difference == null) {
+				log.info("Same " + rows + " rows: " + query);
+			} else {
+				log.warn("Different at row " + rows + ", " + difference + ": " + query);
+				same = false;
+			}
+		}
+		return same;
+	}
+
+	private static String row(ResultSet rs, int columns) throws SQLException {
+		StringBuilder row = new StringBuilder();
+		for (int i = 1; i <= columns; i++) row.append(i == 1 ? "" : "\t").append(rs.getString(i));
+		return row.toString();
+	}
+}
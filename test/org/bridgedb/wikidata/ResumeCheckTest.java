@@ -0,0 +1,81 @@
+package org.bridgedb.wikidata;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Random;
+
+import org.bridgedb.wikidata.utils.ReplayServer;
+import org.bridgedb.wikidata.utils.Utils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs {@link ResumeCheck} on a synthetic TSV input and on a partitioned
+ * query answered by a {@link ReplayServer}.
+ */
+public class ResumeCheckTest {
+
+	private static final int ITEMS = 20000;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void resumesFromInputFile() throws Exception {
+		ResumeCheck check = new ResumeCheck(folder.newFolder(), null, new Random(11));
+		Properties props = check.prepare(Utils.loadProperties("properties/pathways.props"), 2 * ITEMS);
+		assertTrue(check.run(props, 2));
+	}
+
+	@Test
+	public void resumesFromSlices() throws Exception {
+		File recordings = folder.newFolder();
+		writeRecording(new File(recordings, "genes.srj"));
+		ReplayServer replay = new ReplayServer(recordings, new File("queries"));
+		replay.setPort(0);
+		replay.start();
+		try {
+			ResumeCheck check = new ResumeCheck(folder.newFolder(), replay.getEndpoint(), new Random(11));
+			Properties props = Utils.loadProperties("properties/genes.props");
+			props.setProperty("partition.count", "8");
+			props.setProperty("partition.max.qid", String.valueOf(ITEMS));
+			props.setProperty("job.heap.mb", "256");
+			assertTrue(check.run(check.prepare(props, 0), 2));
+		} finally {
+			replay.stop();
+		}
+	}
+
+	private static String literal(String value) {
+		return "{\"type\": \"literal\", \"value\": \"" + value + "\"}";
+	}
+
+	/**
+	 * A recording of the genes query where every item has one or two Ensembl
+	 * genes.
+	 */
+	private static void writeRecording(File file) throws Exception {
+		Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8));
+		try {
+			out.write("{\"head\": {\"vars\": [\"taxonLabel\", \"wikidata\", \"ensembl\"]}, \"results\": {\"bindings\": [\n");
+			for (int item = 1; item <= ITEMS; item++) {
+				for (int gene = 0; gene < 1 + item % 2; gene++) {
+					if (item > 1 || gene > 0) out.write(",\n");
+					out.write("{\"taxonLabel\": " + literal("Homo sapiens") + ", \"wikidata\": " + literal("Q" + item)
+							+ ", \"ensembl\": " + literal("ENSG" + (100000 + 2 * item + gene)) + "}");
+				}
+			}
+			out.write("]}}\n");
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Properties;
+
+import org.junit.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+public class BuildMetricsTest {
+
+	/**
+	 * Two builds with the same output.file are counted separately, and the
+	 * JSON file has the counters of its own build only.
+	 */
+	@Test
+	public void sameOutputFile() throws Exception {
+		Properties first = new Properties();
+		first.setProperty("output.file", "wikidata_genes.bridge");
+		Properties second = new Properties();
+		second.putAll(first);
+		BuildMetrics one = BuildMetrics.start(first);
+		BuildMetrics two = BuildMetrics.start(second);
+		try {
+			assertNotSame(one, two);
+			assertSame(one, BuildMetrics.of(first));
+			assertSame(two, BuildMetrics.of(second));
+			one.rowFetched();
+			one.rowFetched();
+			two.rowFetched();
+
+			JsonNode json = new ObjectMapper().readTree(one.json(1.5));
+			assertEquals("wikidata_genes.bridge", json.get("build").asText());
+			assertEquals(first.getProperty("build.id"), json.get("id").asText());
+			assertEquals(2, json.get("rowsFetched").asLong());
+			assertEquals(1.5, json.get("durationSeconds").asDouble(), 0);
+			assertEquals(1, new ObjectMapper().readTree(two.json(1)).get("rowsFetched").asLong());
+		} finally {
+			one.end();
+			two.end();
+		}
+		assertNotSame(one, BuildMetrics.of(first));
+	}
+}
@@ -0,0 +1,104 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.DataSourceTxt;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BulkSinkTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static DataSource wikidata;
+	private static DataSource ensembl;
+
+	@BeforeClass
+	public static void setupDatasources() {
+		if (!DataSource.systemCodeExists("Wd")) DataSourceTxt.init();
+		wikidata = DataSource.getExistingBySystemCode("Wd");
+		ensembl = DataSource.getExistingBySystemCode("En");
+	}
+
+	/**
+	 * A bulk build has the same rows as a full build, also with quotes,
+	 * separators and line breaks in values, and without the rows that have a
+	 * value too long for its column.
+	 */
+	@Test
+	public void sameRowsAsFullBuild() throws Exception {
+		List<String> full = build("full");
+		assertEquals(full, build("bulk"));
+		assertEquals(8, full.size());
+	}
+
+	private List<String> build(String mode) throws Exception {
+		Properties props = new Properties();
+		props.setProperty("build.mode", mode);
+		File outputFile = new File(folder.getRoot(), mode + ".bridge");
+		MappingSink sink = Utils.createSink(Utils.newDatabase(outputFile, props), outputFile, props);
+		Xref q1 = new Xref("Q1", wikidata);
+		Xref q2 = new Xref("Q2", wikidata);
+		Xref tooLong = new Xref(repeat('Q', 60), wikidata);
+		sink.addGene(q1);
+		sink.addGene(q2);
+		sink.addGene(tooLong);
+		sink.addLink(q1, new Xref("ENSG1", ensembl));
+		sink.addLink(q2, new Xref("ENSG2", ensembl));
+		sink.addLink(q2, tooLong);
+		sink.addAttribute(q1, "Symbol", "a \"quoted\", value");
+		sink.addAttribute(q1, "Synonym", "two\nlines");
+		sink.addAttribute(q1, "Description", repeat('x', 300));
+		sink.addAttribute(q2, "Symbol", "plain");
+		sink.addAttribute(q2, "Taxon", "");
+		sink.commit();
+		sink.finish();
+		return rows(outputFile);
+	}
+
+	private static List<String> rows(File bridgeFile) throws Exception {
+		List<String> rows = new ArrayList<String>();
+		Connection con = BridgeFiles.openReadOnly(bridgeFile);
+		try {
+			Statement st = con.createStatement();
+			add(rows, st.executeQuery("SELECT id, code FROM datanode"), "gene", 2);
+			add(rows, st.executeQuery("SELECT idLeft, codeLeft, idRight, codeRight FROM link"), "link", 4);
+			add(rows, st.executeQuery("SELECT id, code, attrName, attrValue FROM attribute"), "attribute", 4);
+			st.close();
+		} finally {
+			con.close();
+		}
+		Collections.sort(rows);
+		return rows;
+	}
+
+	private static void add(List<String> rows, ResultSet rs, String kind, int columns) throws Exception {
+		while (rs.next()) {
+			StringBuilder row = new StringBuilder(kind);
+			for (int i = 1; i <= columns; i++) row.append(' ').append(rs.getString(i));
+			rows.add(row.toString());
+		}
+		rs.close();
+	}
+
+	private static String repeat(char c, int count) {
+		char[] chars = new char[count];
+		Arrays.fill(chars, c);
+		return new String(chars);
+	}
+}
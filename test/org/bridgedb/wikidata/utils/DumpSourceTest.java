@@ -0,0 +1,82 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.eclipse.rdf4j.query.BindingSet;
+import org.junit.Test;
+
+/**
+ * Checks {@link DumpSource} against the small dump files in
+ * <code>fixtures/dump</code>, without network. The folder holds the same
+ * items as N-Triples and JSON dumps (<code>items.nt.gz</code>,
+ * <code>items.json.bz2</code>, ...) and, per properties file, the rows they
+ * should give (<code>genes.tsv</code> for <code>genes.props</code>), as
+ * printed by {@link DumpSource#main(String[])}. Every dump is read with the
+ * <code>dump.columns</code> and <code>dump.require</code> of every properties
+ * file, on two threads and in batches of a few lines, so that batches end
+ * between items; the rows are compared in any order.
+ */
+public class DumpSourceTest {
+
+	private static final File FIXTURES = new File("fixtures/dump");
+	private static final File PROPERTIES = new File("properties");
+
+	@Test
+	public void rowsOfEveryDump() throws Exception {
+		File[] dumps = FIXTURES.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith("items.");
+			}
+		});
+		File[] expected = FIXTURES.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".tsv");
+			}
+		});
+		assertTrue("No dumps in " + FIXTURES, dumps != null && dumps.length > 0);
+		assertTrue("No expected rows in " + FIXTURES, expected != null && expected.length > 0);
+		Arrays.sort(dumps);
+		Arrays.sort(expected);
+		for (File rows : expected) {
+			String name = rows.getName().substring(0, rows.getName().length() - ".tsv".length());
+			Properties props = Utils.loadProperties(new File(PROPERTIES, name + ".props").getPath());
+			for (File dump : dumps) check(props, dump, rows);
+		}
+	}
+
+	/**
+	 * Reads the dump with the properties and compares the rows with the
+	 * expected ones.
+	 */
+	private static void check(Properties props, File dump, File rows) throws Exception {
+		props.setProperty("dump.file", dump.getPath());
+		props.setProperty("dump.threads", "2");
+		props.setProperty("dump.batch.lines", "3");
+		final DumpSource source = DumpSource.fromProperties(props);
+		final List<String> actual = new ArrayList<String>();
+		source.fetch(new RowHandler() {
+			public void handle(BindingSet bs) {
+				actual.add(source.tsv(bs));
+			}
+		}, new BuildMetrics("dump", BuildMetrics.DEFAULT_PROGRESS_INTERVAL));
+
+		List<String> lines = Files.readAllLines(rows.toPath(), StandardCharsets.UTF_8);
+		String what = dump.getName() + " with " + rows.getName();
+		assertEquals(what, lines.get(0), source.header());
+		List<String> wanted = new ArrayList<String>(lines.subList(1, lines.size()));
+		Collections.sort(wanted);
+		Collections.sort(actual);
+		assertEquals(what, wanted, actual);
+	}
+}
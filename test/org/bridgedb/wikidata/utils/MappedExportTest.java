@@ -0,0 +1,74 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.DataSourceTxt;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappedExportTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static DataSource wikidata;
+	private static DataSource ensembl;
+	private static DataSource uniprot;
+
+	@BeforeClass
+	public static void setupDatasources() {
+		if (!DataSource.systemCodeExists("Wd")) DataSourceTxt.init();
+		wikidata = DataSource.getExistingBySystemCode("Wd");
+		ensembl = DataSource.getExistingBySystemCode("En");
+		uniprot = DataSource.getExistingBySystemCode("S");
+	}
+
+	/**
+	 * Exports a small database and looks up every Xref of its links in the
+	 * export and the database; the export fails on any difference.
+	 */
+	@Test
+	public void answersAsTheDatabase() throws Exception {
+		File bridgeFile = new File(folder.getRoot(), "test.bridge");
+		MappingSink sink = new GdbSink(Utils.newDatabase(bridgeFile, new Properties()));
+		for (int item = 1; item <= 200; item++) {
+			Xref main = new Xref("Q" + item, wikidata);
+			sink.addGene(main);
+			sink.addLink(main, main);
+			for (int gene = 0; gene < item % 3; gene++) {
+				Xref right = new Xref("ENSG" + (item / 2 * 10 + gene), ensembl);
+				sink.addGene(right);
+				sink.addLink(main, right);
+			}
+			if (item % 5 == 0) sink.addLink(main, new Xref("P" + item + "\u00e9", uniprot));
+		}
+		sink.commit();
+		sink.finish();
+
+		File mappedFile = MappedExport.mappedFile(bridgeFile);
+		new MappedExport(Integer.MAX_VALUE).export(bridgeFile, mappedFile);
+		assertTrue(mappedFile.isFile());
+
+		MappedIDMapper mapper = new MappedIDMapper(mappedFile);
+		try {
+			Set<Xref> expected = new HashSet<Xref>();
+			expected.add(new Xref("Q5", wikidata));
+			expected.add(new Xref("ENSG20", ensembl));
+			expected.add(new Xref("ENSG21", ensembl));
+			expected.add(new Xref("P5\u00e9", uniprot));
+			assertEquals(expected, mapper.mapID(new Xref("Q5", wikidata)));
+		} finally {
+			mapper.close();
+		}
+	}
+}
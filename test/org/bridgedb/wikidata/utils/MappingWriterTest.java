@@ -0,0 +1,108 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.IDMapperException;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.DataSourceTxt;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MappingWriterTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private static DataSource wikidata;
+	private static DataSource ensembl;
+
+	@BeforeClass
+	public static void setupDatasources() {
+		if (!DataSource.systemCodeExists("Wd")) DataSourceTxt.init();
+		wikidata = DataSource.getExistingBySystemCode("Wd");
+		ensembl = DataSource.getExistingBySystemCode("En");
+	}
+
+	/**
+	 * A main Xref whose rows are in two windows, and that is also a right
+	 * Xref of another one, is written once with all of its links and
+	 * attributes, as when all rows are in one window.
+	 */
+	@Test
+	public void mainInTwoWindows() throws Exception {
+		List<String> expected = new ArrayList<String>();
+		Collections.addAll(expected,
+				"attribute Q1:Wd Taxon human",
+				"attribute Q1:Wd Taxon mouse",
+				"attribute Q2:Wd Taxon human",
+				"gene ENSG1:En",
+				"gene ENSG2:En",
+				"gene ENSG3:En",
+				"gene Q1:Wd",
+				"gene Q2:Wd",
+				"link Q1:Wd ENSG1:En",
+				"link Q1:Wd ENSG3:En",
+				"link Q1:Wd Q1:Wd",
+				"link Q2:Wd ENSG2:En",
+				"link Q2:Wd Q1:Wd",
+				"link Q2:Wd Q2:Wd");
+		assertEquals(expected, write(100000, 64L << 20));
+		assertEquals(expected, write(1, 1));
+	}
+
+	private List<String> write(int window, long heapBytes) throws Exception {
+		RecordingSink sink = new RecordingSink();
+		MappingWriter writer = new MappingWriter(sink, window, new CommitPolicy(sink, 50000, 10000));
+		writer.groupOnDisk(folder.newFolder(), heapBytes);
+		Xref q1 = new Xref("Q1", wikidata);
+		Xref q2 = new Xref("Q2", wikidata);
+		writer.add(q1, new Xref("ENSG1", ensembl));
+		writer.addAttribute(q1, "Taxon", "human");
+		writer.add(q2, new Xref("ENSG2", ensembl));
+		writer.add(q2, q1);
+		writer.addAttribute(q2, "Taxon", "human");
+		writer.add(q1, new Xref("ENSG1", ensembl));
+		writer.addAttribute(q1, "Taxon", "mouse");
+		writer.add(q1, new Xref("ENSG3", ensembl));
+		writer.close();
+		Collections.sort(sink.rows);
+		return sink.rows;
+	}
+
+	static class RecordingSink implements MappingSink {
+
+		final List<String> rows = new ArrayList<String>();
+
+		public void setInfo(String key, String value) {
+		}
+
+		public void addGene(Xref xref) {
+			rows.add("gene " + text(xref));
+		}
+
+		public void addAttribute(Xref xref, String name, String value) {
+			rows.add("attribute " + text(xref) + " " + name + " " + value);
+		}
+
+		public void addLink(Xref left, Xref right) {
+			rows.add("link " + text(left) + " " + text(right));
+		}
+
+		public void commit() throws IDMapperException {
+		}
+
+		public void finish() {
+		}
+
+		static String text(Xref xref) {
+			return xref.getId() + ":" + xref.getDataSource().getSystemCode();
+		}
+	}
+}
@@ -0,0 +1,49 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class PartitionedQueryTest {
+
+	private static final String QUERY = "SELECT ?gene ?ensembl WHERE {\n"
+			+ "  ?gene wdt:P594 ?ensembl .\n"
+			+ "  OPTIONAL { ?gene wdt:P703 ?taxon }\n"
+			+ "}";
+
+	/**
+	 * With values, each slice binds a group of them and the last one has the
+	 * rows with none of them.
+	 */
+	@Test
+	public void valuesSlices() {
+		PartitionedQuery partitioned = new PartitionedQuery(QUERY, "taxon", 2, PartitionedQuery.DEFAULT_MAX_QID, 1, 0);
+		partitioned.setValues(Arrays.asList("wd:Q1", "wd:Q2", "wd:Q3"), "?gene wdt:P703 ?taxon .");
+		List<String> slices = partitioned.slices();
+		assertEquals(3, slices.size());
+		assertEquals("SELECT ?gene ?ensembl WHERE {\n"
+				+ "  ?gene wdt:P594 ?ensembl .\n"
+				+ "  OPTIONAL { ?gene wdt:P703 ?taxon }\n"
+				+ "  VALUES ?taxon { wd:Q1 }\n"
+				+ "  ?gene wdt:P703 ?taxon .\n"
+				+ "}", slices.get(0));
+		assertEquals(1, ReplayServer.range(slices.get(0)));
+		assertEquals(2, ReplayServer.range(slices.get(1)));
+		assertEquals("SELECT ?gene ?ensembl WHERE {\n"
+				+ "  ?gene wdt:P594 ?ensembl .\n"
+				+ "  OPTIONAL { ?gene wdt:P703 ?taxon }\n"
+				+ "  FILTER(!BOUND(?taxon) || ?taxon NOT IN (wd:Q1, wd:Q2, wd:Q3))\n"
+				+ "}", slices.get(2));
+	}
+
+	@Test
+	public void qidSlices() {
+		PartitionedQuery partitioned = new PartitionedQuery(QUERY, "gene", 2, 100, 1, 0);
+		List<String> slices = partitioned.slices();
+		assertEquals(2, slices.size());
+		assertEquals(50, ReplayServer.range(slices.get(0)));
+	}
+}
@@ -0,0 +1,45 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SortedRunsTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * Keys spilled over more runs than fit in one level are read back sorted
+	 * and without duplicates, with fewer than MAX_RUNS runs per level.
+	 */
+	@Test
+	public void mergesInTiers() throws Exception {
+		Random random = new Random(1);
+		TreeSet<String> expected = new TreeSet<String>();
+		SortedRuns runs = new SortedRuns(folder.getRoot(), "test", 2);
+		int keys = 2 * SortedRuns.MAX_RUNS * SortedRuns.MAX_RUNS + 10;
+		for (int i = 0; i < keys; i++) {
+			String key = SortedRuns.key("Q" + random.nextInt(keys), "Wd");
+			expected.add(key);
+			runs.add(key);
+		}
+		assertTrue(runs.getRunCount() < 3 * SortedRuns.MAX_RUNS);
+		List<String> read = new ArrayList<String>();
+		SortedRuns.Reader reader = runs.read();
+		String key;
+		while ((key = reader.next()) != null) read.add(key);
+		reader.close();
+		runs.close();
+		assertEquals(new ArrayList<String>(expected), read);
+		assertEquals(0, folder.getRoot().list().length);
+	}
+}
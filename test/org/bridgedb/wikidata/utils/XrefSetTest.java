@@ -0,0 +1,50 @@
+package org.bridgedb.wikidata.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.bridgedb.DataSource;
+import org.bridgedb.Xref;
+import org.bridgedb.bio.DataSourceTxt;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class XrefSetTest {
+
+	private static DataSource wikidata;
+	private static DataSource ensembl;
+
+	@BeforeClass
+	public static void setupDatasources() {
+		if (!DataSource.systemCodeExists("Wd")) DataSourceTxt.init();
+		wikidata = DataSource.getExistingBySystemCode("Wd");
+		ensembl = DataSource.getExistingBySystemCode("En");
+	}
+
+	@Test
+	public void addsOnce() {
+		XrefSet set = new XrefSet();
+		assertTrue(set.add(new Xref("Q1", wikidata)));
+		assertTrue(set.add(new Xref("ENSG1", ensembl)));
+		assertFalse(set.add(new Xref("Q1", wikidata)));
+		assertFalse(set.add(new Xref("ENSG1", ensembl)));
+		assertEquals(2, set.size());
+	}
+
+	/**
+	 * The set fails when it would grow beyond its limit, and not before.
+	 */
+	@Test
+	public void failsAtItsLimit() {
+		XrefSet set = new XrefSet(64 * 1024);
+		for (int i = 1; i <= 768; i++) set.add(new Xref("Q" + i, wikidata));
+		try {
+			for (int i = 769; i <= 100000; i++) set.add(new Xref("Q" + i, wikidata));
+			fail("The set grew beyond its limit");
+		} catch (IllegalStateException e) {
+			assertTrue(set.memoryUsage() <= 64 * 1024);
+		}
+	}
+}